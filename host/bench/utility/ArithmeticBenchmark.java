@@ -0,0 +1,125 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package utility;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of the balance and cost arithmetic of the engine the applet is
+ * built with (Arithmetic.SHORT_ARITHMETIC, set by the short.arithmetic
+ * property of build.xml). The bench-arithmetic target runs it on the int and
+ * on the short-only build. The benchmark is in the applet package to reach
+ * the engine.
+ *
+ * The operands are small (amount below 2^10, price below 2^16, as in a usual
+ * purchase) or large (products close to 2^31, some of them overflow).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ArithmeticBenchmark {
+
+    /**
+     * Number of prepared operand pairs, they are used in turn
+     */
+    private static final int OPERANDS = 1024;
+
+    @Param({"small", "large"})
+    public String operands;
+
+    /**
+     * Amounts and prices, 4 bytes each
+     */
+    private final byte[] amounts = new byte[OPERANDS * Arithmetic.INT_LENGTH];
+    private final byte[] prices = new byte[OPERANDS * Arithmetic.INT_LENGTH];
+
+    private final byte[] cost = new byte[Arithmetic.INT_LENGTH];
+
+    private final byte[] balance = new byte[Arithmetic.INT_LENGTH];
+
+    private final byte[] totals = new byte[Arithmetic.INT_LENGTH];
+
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        boolean large = "large".equals(operands);
+        for (int i = 0; i < OPERANDS; i++) {
+            int amount = large ? 1 + random.nextInt(1 << 16) : 1 + random.nextInt(1 << 10);
+            int price = large ? (int) (0x7FFFFFFFL / amount) - 64 + random.nextInt(128) : 1 + random.nextInt(1 << 16);
+            setInt(amounts, i, amount);
+            setInt(prices, i, price);
+        }
+        setInt(balance, 0, Integer.MAX_VALUE);
+    }
+
+    private static void setInt(byte[] buffer, int index, int value) {
+        int offset = index * Arithmetic.INT_LENGTH;
+        buffer[offset] = (byte) (value >> 24);
+        buffer[offset + 1] = (byte) (value >> 16);
+        buffer[offset + 2] = (byte) (value >> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    /**
+     * @return offset of the next operand pair
+     */
+    private short nextOffset() {
+        int offset = next * Arithmetic.INT_LENGTH;
+        next = (next + 1) & (OPERANDS - 1);
+        return (short) offset;
+    }
+
+    /**
+     * cost = amount * price with the overflow check
+     */
+    @Benchmark
+    public boolean cost() {
+        short offset = nextOffset();
+        return Arithmetic.multiply(amounts, offset, prices, offset, cost, (short) 0);
+    }
+
+    /**
+     * the arithmetic of a purchase: cost, balance check and new balance
+     */
+    @Benchmark
+    public byte purchase() {
+        short offset = nextOffset();
+        if (Arithmetic.multiply(amounts, offset, prices, offset, cost, (short) 0)) {
+            if (Arithmetic.compare(balance, (short) 0, cost, (short) 0) < 0) {
+                setInt(balance, 0, Integer.MAX_VALUE);
+            }
+            Arithmetic.subtract(balance, (short) 0, cost, (short) 0, balance, (short) 0);
+        }
+        return balance[3];
+    }
+
+    /**
+     * add an amount to totals, as every appended record does
+     */
+    @Benchmark
+    public byte total() {
+        short offset = nextOffset();
+        Arithmetic.add(totals, (short) 0, amounts, offset, totals, (short) 0);
+        return totals[3];
+    }
+}
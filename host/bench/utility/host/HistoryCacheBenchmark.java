@@ -0,0 +1,88 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package utility.host;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * History and aggregate commands of a terminal with a HistoryCache against
+ * the same commands sent to the card. The cached benchmarks hit the cache,
+ * the histories do not change; cachedAfterPurchase pays a purchase, the
+ * GET_CHANGE_COUNTER it forces and the miss of the next history command.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HistoryCacheBenchmark {
+
+    private static final byte[] PIN = {0x01, 0x02, 0x03};
+
+    private static final int HISTORY_CAPACITY = 30;
+
+    private CardSession card;
+
+    private CachedCardSession session;
+
+    private final byte[] histories = Apdus.histories(0, HISTORY_CAPACITY);
+
+    private final byte[] aggregates = Apdus.aggregates(Apdus.AGGREGATES_STATION, "S0001");
+
+    /**
+     * price 0 keeps the balance
+     */
+    private final byte[] update = Apdus.update("S0001", "1404031200", 10, 0);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        card = new CardSession(Apdus.installParameters(PIN, HISTORY_CAPACITY));
+        session = new CachedCardSession(card, "card", new HistoryCache(64, 1 << 20));
+        session.select();
+        session.exchange(Apdus.verify(PIN));
+        for (int i = 0; i < HISTORY_CAPACITY; i++) {
+            session.exchange(update);
+        }
+    }
+
+    @Benchmark
+    public byte[] plainGetPurchaseHistories() {
+        return card.exchange(histories);
+    }
+
+    @Benchmark
+    public byte[] cachedGetPurchaseHistories() {
+        return session.exchange(histories);
+    }
+
+    @Benchmark
+    public byte[] plainGetAggregates() {
+        return card.exchange(aggregates);
+    }
+
+    @Benchmark
+    public byte[] cachedGetAggregates() {
+        return session.exchange(aggregates);
+    }
+
+    @Benchmark
+    public byte[] cachedAfterPurchase() {
+        session.exchange(update);
+        return session.exchange(histories);
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package utility.host;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+/**
+ * Latency of every instruction of the applet on jCardSim, for several history
+ * sizes. The history is full before the measurement so updates overwrite the
+ * oldest record as they do on a card in use. The queries by time and by
+ * station select a part of the history, with a small history they may find
+ * nothing, which is measured as well.
+ *
+ * Each trial fails if the applet allocates persistent memory after
+ * installation. The bytes an instruction writes to the persistent memory are
+ * reported by NvmProfiler (-prof utility.host.NvmProfiler), host allocations
+ * by the gc profiler (-prof gc).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class InstructionBenchmark {
+
+    private static final byte[] PIN = {0x01, 0x02, 0x03};
+
+    private static final String[] STATIONS = {"S0001", "S0002", "S0003", "S0004", "S0005", "S0006", "S0007"};
+
+    /**
+     * Number of prepared update commands, they are sent in turn
+     */
+    private static final int UPDATE_COMMANDS = 256;
+
+    /**
+     * Number of commands sent to measure the NVM bytes of an instruction
+     */
+    private static final int NVM_SAMPLES = 64;
+
+    /**
+     * SW of a query which found no purchase history
+     */
+    private static final int SW_PURCHASE_INFO_NOT_FOUND = 0x6308;
+
+    /**
+     * History capacity of the card, the history is filled to it
+     */
+    @Param({"1", "30", "255"})
+    public int historySize;
+
+    private CardSession card;
+
+    private byte[][] updates;
+
+    private byte[][] receipts;
+
+    private int nextUpdate;
+
+    private final byte[] verify = Apdus.verify(PIN);
+
+    private final byte[] getBalance = Apdus.getBalance();
+
+    private final byte[] histories = Apdus.histories(0, 0);
+
+    private final byte[] historiesByTime = Apdus.historiesByTime("1401");
+
+    private final byte[] historiesByStation = Apdus.historiesByStation(STATIONS[0]);
+
+    private final byte[] last = Apdus.last(1);
+
+    private final byte[] changePin = Apdus.changePin(PIN);
+
+    @Setup(Level.Trial)
+    public void setUp(BenchmarkParams params) {
+        card = new CardSession(Apdus.installParameters(PIN, historySize));
+        card.select();
+        card.expectSuccess(verify);
+
+        // price 0 keeps the balance, the times are distinct
+        updates = new byte[UPDATE_COMMANDS][];
+        receipts = new byte[UPDATE_COMMANDS][];
+        for (int i = 0; i < UPDATE_COMMANDS; i++) {
+            String time = String.format("14%02d%02d%02d%02d", 1 + i / 96, 1 + i / 24 % 4, i % 24, i % 60);
+            updates[i] = Apdus.update(STATIONS[i % STATIONS.length], time, 1 + i % 50, 0);
+            receipts[i] = Apdus.purchaseWithReceipt(STATIONS[i % STATIONS.length], time, 1 + i % 50, 0, Apdus.RECEIPT_PLAIN);
+        }
+        for (int i = 0; i < historySize; i++) {
+            card.expectSuccess(updates[i]);
+        }
+        nextUpdate = historySize % UPDATE_COMMANDS;
+
+        String benchmark = params.getBenchmark();
+        measureNvmBytes(benchmark.substring(benchmark.lastIndexOf('.') + 1));
+
+        card.markMemory();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (card.memoryChanged()) {
+            throw new IllegalStateException("the applet allocated persistent memory");
+        }
+    }
+
+    /**
+     * Sends the command of a benchmark and checks that it does not fail, the
+     * average NVM bytes it writes, in all and in its transaction, are set in
+     * NvmProfiler
+     *
+     * @param benchmark: name of the benchmark method
+     */
+    private void measureNvmBytes(String benchmark) {
+        long total = 0;
+        long transaction = 0;
+        for (int i = 0; i < NVM_SAMPLES; i++) {
+            byte[] response;
+            switch (benchmark) {
+                case "verify":
+                    response = verify();
+                    break;
+                case "getBalance":
+                    response = getBalance();
+                    break;
+                case "updatePurchaseInfo":
+                    response = updatePurchaseInfo();
+                    break;
+                case "getPurchaseHistories":
+                    response = getPurchaseHistories();
+                    break;
+                case "getPurchaseHistoriesByTime":
+                    response = getPurchaseHistoriesByTime();
+                    break;
+                case "getPurchaseHistoriesByStation":
+                    response = getPurchaseHistoriesByStation();
+                    break;
+                case "getLastPurchaseHistory":
+                    response = getLastPurchaseHistory();
+                    break;
+                case "changePin":
+                    response = changePin();
+                    break;
+                case "purchaseWithReceipt":
+                    response = purchaseWithReceipt();
+                    break;
+                default:
+                    throw new IllegalArgumentException(benchmark);
+            }
+            int sw = CardSession.sw(response);
+            if (sw != CardSession.SW_NO_ERROR && sw != SW_PURCHASE_INFO_NOT_FOUND) {
+                throw new IllegalStateException(String.format("%s failed with SW %04X", benchmark, sw));
+            }
+            total += card.nvmWrites();
+            transaction += card.transactionBytes();
+        }
+        NvmProfiler.bytesPerOperation = (double) total / NVM_SAMPLES;
+        NvmProfiler.transactionBytesPerOperation = (double) transaction / NVM_SAMPLES;
+    }
+
+    @Benchmark
+    public byte[] verify() {
+        return card.exchange(verify);
+    }
+
+    @Benchmark
+    public byte[] getBalance() {
+        return card.exchange(getBalance);
+    }
+
+    @Benchmark
+    public byte[] updatePurchaseInfo() {
+        byte[] command = updates[nextUpdate];
+        nextUpdate = (nextUpdate + 1) % UPDATE_COMMANDS;
+        return card.exchange(command);
+    }
+
+    @Benchmark
+    public byte[] purchaseWithReceipt() {
+        byte[] command = receipts[nextUpdate];
+        nextUpdate = (nextUpdate + 1) % UPDATE_COMMANDS;
+        return card.exchange(command);
+    }
+
+    @Benchmark
+    public byte[] getPurchaseHistories() {
+        return card.exchange(histories);
+    }
+
+    @Benchmark
+    public byte[] getPurchaseHistoriesByTime() {
+        return card.exchange(historiesByTime);
+    }
+
+    @Benchmark
+    public byte[] getPurchaseHistoriesByStation() {
+        return card.exchange(historiesByStation);
+    }
+
+    @Benchmark
+    public byte[] getLastPurchaseHistory() {
+        return card.exchange(last);
+    }
+
+    /**
+     * change PIN clears the validation of the PIN, it is measured with the
+     * verify it needs before
+     */
+    @Benchmark
+    public byte[] changePin() {
+        card.exchange(verify);
+        return card.exchange(changePin);
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package utility.host;
+
+import java.util.Arrays;
+import java.util.Collection;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+
+/**
+ * Reports the bytes the measured instruction writes to the persistent memory
+ * of the applet, and the ones of them written in its transaction, as counted
+ * by get memory status. The benchmark measures them at setup, the counts do
+ * not depend on the timing.
+ */
+public class NvmProfiler implements InternalProfiler {
+
+    /**
+     * NVM bytes written by one operation of the running benchmark
+     */
+    static volatile double bytesPerOperation;
+
+    /**
+     * Transaction buffer bytes used by one operation of the running benchmark
+     */
+    static volatile double transactionBytesPerOperation;
+
+    @Override
+    public String getDescription() {
+        return "NVM bytes written by the applet per operation";
+    }
+
+    @Override
+    public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+    }
+
+    @Override
+    public Collection<? extends Result<?>> afterIteration(BenchmarkParams benchmarkParams,
+            IterationParams iterationParams, IterationResult result) {
+        return Arrays.asList(
+                new ScalarResult("nvm.bytes.norm", bytesPerOperation, "B/op", AggregationPolicy.AVG),
+                new ScalarResult("nvm.transaction.norm", transactionBytesPerOperation, "B/op", AggregationPolicy.AVG));
+    }
+}
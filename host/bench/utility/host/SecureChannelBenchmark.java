@@ -0,0 +1,133 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package utility.host;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the secure channel on jCardSim: the mutual authentication, paid
+ * once per selection, against the C-MAC and R-MAC paid by every command. The
+ * plain benchmarks send the same commands to a card without channel key.
+ *
+ * The secured benchmarks open a new channel before the counter of the card
+ * runs out, once every MAX_COUNTER commands.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SecureChannelBenchmark {
+
+    private static final byte[] PIN = {0x01, 0x02, 0x03};
+
+    private static final byte[] CHANNEL_KEY = {0x40, 0x41, 0x42, 0x43, 0x44, 0x45, 0x46, 0x47,
+        0x48, 0x49, 0x4A, 0x4B, 0x4C, 0x4D, 0x4E, 0x4F};
+
+    private static final int HISTORY_CAPACITY = 30;
+
+    private CardSession securedCard;
+
+    private SecureSession session;
+
+    private CardSession plainCard;
+
+    private final byte[] getBalance = Apdus.getBalance();
+
+    private final byte[] last = Apdus.last(1);
+
+    /**
+     * price 0 keeps the balance
+     */
+    private final byte[] update = Apdus.update("S0001", "1404031200", 10, 0);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        securedCard = new CardSession(Apdus.installParametersWithChannel(PIN, HISTORY_CAPACITY, CHANNEL_KEY));
+        securedCard.select();
+        session = new SecureSession(securedCard, CHANNEL_KEY);
+        session.open();
+        expectSuccess(session.exchange(Apdus.verify(PIN)));
+
+        plainCard = new CardSession(Apdus.installParameters(PIN, HISTORY_CAPACITY));
+        plainCard.select();
+        plainCard.expectSuccess(Apdus.verify(PIN));
+
+        // the history is full, the updates overwrite the oldest record
+        for (int i = 0; i < HISTORY_CAPACITY; i++) {
+            expectSuccess(session.exchange(update));
+            plainCard.expectSuccess(update);
+        }
+    }
+
+    private static void expectSuccess(byte[] response) {
+        if (CardSession.sw(response) != CardSession.SW_NO_ERROR) {
+            throw new IllegalStateException(String.format("secured command failed with SW %04X", CardSession.sw(response)));
+        }
+    }
+
+    /**
+     * sends a secured command, on a new channel when the counter runs out
+     */
+    private byte[] secured(byte[] command) {
+        if (session.counter() >= SecureSession.MAX_COUNTER - 1) {
+            session.open();
+            expectSuccess(session.exchange(Apdus.verify(PIN)));
+        }
+        return session.exchange(command);
+    }
+
+    /**
+     * mutual authentication: both steps, session key derivation on both
+     * sides
+     */
+    @Benchmark
+    public void handshake() {
+        session.open();
+    }
+
+    @Benchmark
+    public byte[] securedGetBalance() {
+        return secured(getBalance);
+    }
+
+    @Benchmark
+    public byte[] plainGetBalance() {
+        return plainCard.exchange(getBalance);
+    }
+
+    @Benchmark
+    public byte[] securedUpdatePurchaseInfo() {
+        return secured(update);
+    }
+
+    @Benchmark
+    public byte[] plainUpdatePurchaseInfo() {
+        return plainCard.exchange(update);
+    }
+
+    @Benchmark
+    public byte[] securedGetLastPurchaseHistory() {
+        return secured(last);
+    }
+
+    @Benchmark
+    public byte[] plainGetLastPurchaseHistory() {
+        return plainCard.exchange(last);
+    }
+}
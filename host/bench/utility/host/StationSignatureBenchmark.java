@@ -0,0 +1,95 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package utility.host;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of UPDATE_PURCHASE_INFO on jCardSim for each station signature
+ * algorithm. The card is installed with the algorithm and the key of a
+ * StationSigner (D3, D4) and every update is signed by it, so the card
+ * verifies a real signature; the messages are signed before the measurement.
+ * The history is full, the updates overwrite the oldest record.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StationSignatureBenchmark {
+
+    private static final byte[] PIN = {0x01, 0x02, 0x03};
+
+    private static final int HISTORY_CAPACITY = 30;
+
+    /**
+     * Number of prepared update commands, they are sent in turn
+     */
+    private static final int UPDATE_COMMANDS = 256;
+
+    /**
+     * SW of an update whose station signature is not valid
+     */
+    private static final int SW_INVALID_STATION_SIGNATURE = 0x6304;
+
+    @Param({"DUMMY", "AES_CMAC", "ECDSA_P256"})
+    public StationSigner.Algorithm algorithm;
+
+    private CardSession card;
+
+    private byte[][] updates;
+
+    private int nextUpdate;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        StationSigner signer = StationSigner.generate(algorithm);
+        card = new CardSession(Apdus.installParametersWithSignature(PIN, HISTORY_CAPACITY, algorithm.code(),
+                signer.verificationKey()));
+        card.select();
+        card.expectSuccess(Apdus.verify(PIN));
+
+        // price 0 keeps the balance, the times are distinct
+        updates = new byte[UPDATE_COMMANDS][];
+        for (int i = 0; i < UPDATE_COMMANDS; i++) {
+            String time = String.format("14%02d%02d%02d%02d", 1 + i / 96, 1 + i / 24 % 4, i % 24, i % 60);
+            updates[i] = Apdus.update("S0001", time, 1 + i % 50, 0, signer);
+        }
+        for (int i = 0; i < HISTORY_CAPACITY; i++) {
+            card.expectSuccess(updates[i]);
+        }
+        nextUpdate = HISTORY_CAPACITY;
+
+        // the card checks the signature: a message signed with another key
+        // is refused
+        if (algorithm != StationSigner.Algorithm.DUMMY) {
+            byte[] forged = Apdus.update("S0001", "1404031200", 1, 0, StationSigner.generate(algorithm));
+            if (CardSession.sw(card.exchange(forged)) != SW_INVALID_STATION_SIGNATURE) {
+                throw new IllegalStateException("the card accepted a message signed with another key");
+            }
+        }
+    }
+
+    @Benchmark
+    public byte[] updatePurchaseInfo() {
+        byte[] command = updates[nextUpdate];
+        nextUpdate = (nextUpdate + 1) % UPDATE_COMMANDS;
+        return card.exchange(command);
+    }
+}
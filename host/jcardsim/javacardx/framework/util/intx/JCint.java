@@ -0,0 +1,44 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package javacardx.framework.util.intx;
+
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+/**
+ * Implementation of JCint for jCardSim, whose jar only contains the API stub
+ * (getInt returns 0, setInt is native). It is compiled before the jar in the
+ * class path of the host tools.
+ */
+public final class JCint {
+
+    public static final int makeInt(byte b1, byte b2, byte b3, byte b4) {
+        return ((b1 & 0xFF) << 24) | ((b2 & 0xFF) << 16) | ((b3 & 0xFF) << 8) | (b4 & 0xFF);
+    }
+
+    public static final int makeInt(short s1, short s2) {
+        return ((s1 & 0xFFFF) << 16) | (s2 & 0xFFFF);
+    }
+
+    public static final int getInt(byte[] bArray, short bOff) {
+        return makeInt(bArray[bOff], bArray[bOff + 1], bArray[bOff + 2], bArray[bOff + 3]);
+    }
+
+    /**
+     * @return bOff + 4
+     */
+    public static final short setInt(byte[] bArray, short bOff, int iValue) {
+        Util.setShort(bArray, bOff, (short) (iValue >> 16));
+        return Util.setShort(bArray, (short) (bOff + 2), (short) iValue);
+    }
+
+    public static int[] makeTransientIntArray(short length, byte event) {
+        if (event != JCSystem.CLEAR_ON_RESET && event != JCSystem.CLEAR_ON_DESELECT) {
+            throw new IllegalArgumentException("invalid event");
+        }
+        return new int[length];
+    }
+}
@@ -0,0 +1,452 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package utility.host;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HexFormat;
+
+/**
+ * Builders of the APDUs and installation parameters the SelfServiceGasStation
+ * applet accepts. The formats are the ones of scripts/selfservicegasstation.scr.
+ */
+public final class Apdus {
+
+    /**
+     * CLA of the applet commands
+     */
+    public static final byte CLA = (byte) 0x80;
+
+    /**
+     * CLA of a chained command, every block of a chain but the last one
+     */
+    public static final byte CLA_CHAINING = (byte) 0x90;
+
+    /**
+     * CLA bit of the commands secured by a C-MAC
+     */
+    public static final byte CLA_SECURE_MESSAGING = 0x04;
+
+    public static final byte VERIFY = 0x01;
+    public static final byte GET_BALANCE = 0x02;
+    public static final byte UPDATE_PURCHASE_INFO = 0x03;
+    public static final byte GET_PURCHASE_HISTORIES = 0x04;
+    public static final byte GET_PURCHASE_HISTORIES_BY_TIME = 0x05;
+    public static final byte GET_PURCHASE_HISTORIES_BY_STATION = 0x06;
+    public static final byte GET_LAST_PURCHASE_HISTORY = 0x07;
+    public static final byte CHANGE_PIN = 0x08;
+    public static final byte GET_MEMORY_STATUS = 0x09;
+    public static final byte PURCHASE_WITH_RECEIPT = 0x0A;
+    public static final byte GET_PURCHASE_HISTORIES_SINCE = 0x0B;
+    public static final byte GET_AGGREGATES = 0x0C;
+    public static final byte GET_METRICS = 0x0D;
+    public static final byte MUTUAL_AUTHENTICATE = 0x0E;
+    public static final byte QUERY_PURCHASE_HISTORIES = 0x0F;
+    public static final byte PRE_AUTHORIZE = 0x10;
+    public static final byte CAPTURE = 0x11;
+    public static final byte CHECK_PURCHASES = 0x12;
+    public static final byte GET_CHANGE_COUNTER = 0x13;
+    public static final byte GET_RESPONSE = (byte) 0xC0;
+
+    /**
+     * P1 of purchase with receipt
+     */
+    public static final byte RECEIPT_PLAIN = 0x00;
+    public static final byte RECEIPT_MAC = 0x01;
+
+    /**
+     * P1 of get aggregates
+     */
+    public static final byte AGGREGATES_ALL = 0x00;
+    public static final byte AGGREGATES_STATION = 0x01;
+    public static final byte AGGREGATES_MONTH = 0x02;
+
+    /**
+     * P1 of check purchases
+     */
+    public static final byte CHECK_STATION = 0x00;
+    public static final byte CHECK_DATE = 0x01;
+    public static final byte CHECK_STATION_DATE = 0x02;
+
+    /**
+     * P1 of get memory status
+     */
+    public static final byte MEMORY_GET = 0x00;
+    public static final byte MEMORY_MARK = 0x01;
+    public static final byte MEMORY_CHECK = 0x02;
+    public static final byte MEMORY_NVM_WRITES = 0x03;
+    public static final byte MEMORY_COMMIT = 0x04;
+
+    /**
+     * P1 of get metrics
+     */
+    public static final byte METRICS_SUMMARY = 0x00;
+    public static final byte METRICS_COMMANDS = 0x01;
+    public static final byte METRICS_NVM_WRITES = 0x02;
+    public static final byte METRICS_FAILURES = 0x03;
+
+    /**
+     * P1 of mutual authenticate
+     */
+    public static final byte CHANNEL_INITIALIZE = 0x00;
+    public static final byte CHANNEL_AUTHENTICATE = 0x01;
+
+    /**
+     * Tags of the query criteria, the stations are station ID TLVs (C4)
+     */
+    public static final int QUERY_STATION_TAG = 0xC4;
+    public static final int QUERY_TIME_TAG = 0xCB;
+    public static final int QUERY_AMOUNT_TAG = 0xCC;
+    public static final int QUERY_PRICE_TAG = 0xCD;
+    public static final int QUERY_LIMIT_TAG = 0xCE;
+    public static final int QUERY_ORDER_TAG = 0xCF;
+
+    /**
+     * Orders of a query
+     */
+    public static final byte ORDER_OLDEST = 0x00;
+    public static final byte ORDER_NEWEST = 0x01;
+    public static final byte ORDER_TIME = 0x02;
+    public static final byte ORDER_TIME_REVERSE = 0x03;
+
+    /**
+     * Length of an encoded purchase info TLV (E2)
+     */
+    public static final int PURCHASE_INFO_TLV_SIZE = 33;
+
+    /**
+     * Dummy station signature, accepted when no station key is installed
+     */
+    public static final byte[] DUMMY_SIGNATURE = {(byte) 0x88, (byte) 0x88, (byte) 0x88, (byte) 0x88,
+        (byte) 0x88, (byte) 0x88, (byte) 0x88, (byte) 0x88};
+
+    private static final HexFormat HEX = HexFormat.of().withUpperCase();
+
+    private Apdus() {
+    }
+
+    /**
+     * @param pin: user PIN
+     * @param historyCapacity: number of records kept by the card
+     * @return installation parameters (D0 PIN, D1 history capacity)
+     */
+    public static byte[] installParameters(byte[] pin, int historyCapacity) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tlv(out, 0xD0, pin);
+        tlv(out, 0xD1, new byte[]{(byte) (historyCapacity >> 8), (byte) historyCapacity});
+        return out.toByteArray();
+    }
+
+    public static byte[] verify(byte[] pin) {
+        return command(CLA, VERIFY, 0, 0, pin, 0x7F);
+    }
+
+    public static byte[] getBalance() {
+        return command(CLA, GET_BALANCE, 0, 0, null, 0x00);
+    }
+
+    public static byte[] changePin(byte[] pin) {
+        return command(CLA, CHANGE_PIN, 0, 0, pin, 0x7F);
+    }
+
+    /**
+     * @param stationID: 5 characters
+     * @param buyTime: YYMMDDhhmm
+     * @param amount: amount of gasoline
+     * @param price: unit price
+     * @return value of a purchase info (its four fields)
+     */
+    public static byte[] purchaseInfo(String stationID, String buyTime, int amount, int price) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tlv(out, 0xC4, stationID.getBytes(StandardCharsets.US_ASCII));
+        tlv(out, 0xC5, buyTime.getBytes(StandardCharsets.US_ASCII));
+        tlv(out, 0xC6, intBytes(amount));
+        tlv(out, 0xC7, intBytes(price));
+        return out.toByteArray();
+    }
+
+    /**
+     * @param pin: user PIN
+     * @param historyCapacity: number of records kept by the card
+     * @param receiptKey: AES-128 key of the receipt MAC
+     * @return installation parameters (D0 PIN, D1 history capacity, D5
+     * receipt key)
+     */
+    public static byte[] installParameters(byte[] pin, int historyCapacity, byte[] receiptKey) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(installParameters(pin, historyCapacity));
+        tlv(out, 0xD5, receiptKey);
+        return out.toByteArray();
+    }
+
+    /**
+     * @param pin: user PIN
+     * @param historyCapacity: number of records kept by the card
+     * @param channelKey: AES-128 static key of the secure channel
+     * @return installation parameters (D0 PIN, D1 history capacity, D6
+     * channel key)
+     */
+    public static byte[] installParametersWithChannel(byte[] pin, int historyCapacity, byte[] channelKey) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(installParameters(pin, historyCapacity));
+        tlv(out, 0xD6, channelKey);
+        return out.toByteArray();
+    }
+
+    /**
+     * @param pin: user PIN
+     * @param historyCapacity: number of records kept by the card
+     * @param signatureAlgorithm: algorithm of the station signature, see
+     * StationSigner.Algorithm.code
+     * @param stationKey: key of the station signature, null for the dummy
+     * signature
+     * @return installation parameters (D0 PIN, D1 history capacity, D3
+     * signature algorithm, D4 station key)
+     */
+    public static byte[] installParametersWithSignature(byte[] pin, int historyCapacity, byte signatureAlgorithm,
+            byte[] stationKey) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(installParameters(pin, historyCapacity));
+        tlv(out, 0xD3, new byte[]{signatureAlgorithm});
+        if (stationKey != null) {
+            tlv(out, 0xD4, stationKey);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return update purchase info command (E3 message) signed with the dummy
+     * signature
+     */
+    public static byte[] update(String stationID, String buyTime, int amount, int price) {
+        return command(CLA, UPDATE_PURCHASE_INFO, 0, 0, updateMessage(stationID, buyTime, amount, price), 0x7F);
+    }
+
+    /**
+     * @param signer: signer of the station the card was installed with
+     * @return update purchase info command (E3 message) signed by the station
+     */
+    public static byte[] update(String stationID, String buyTime, int amount, int price, StationSigner signer) {
+        return command(CLA, UPDATE_PURCHASE_INFO, 0, 0, updateMessage(stationID, buyTime, amount, price, signer), 0x7F);
+    }
+
+    /**
+     * @param mode: RECEIPT_PLAIN or RECEIPT_MAC
+     * @return purchase with receipt command, the update message is signed with
+     * the dummy signature
+     */
+    public static byte[] purchaseWithReceipt(String stationID, String buyTime, int amount, int price, byte mode) {
+        return command(CLA, PURCHASE_WITH_RECEIPT, mode, 0, updateMessage(stationID, buyTime, amount, price), 0x00);
+    }
+
+    /**
+     * @param maxCost: maximum cost of the purchase, held against the balance
+     * @return pre-authorize command, the response is the handle of the hold
+     * (2 bytes) and the balance not held
+     */
+    public static byte[] preAuthorize(int maxCost) {
+        return command(CLA, PRE_AUTHORIZE, 0, 0, intBytes(maxCost), 0x00);
+    }
+
+    /**
+     * @param handle: handle of the hold
+     * @param mode: RECEIPT_PLAIN or RECEIPT_MAC
+     * @return capture command of the purchase, the update message is signed
+     * with the dummy signature
+     */
+    public static byte[] capture(int handle, String stationID, String buyTime, int amount, int price, byte mode) {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        data.write(handle >> 8);
+        data.write(handle);
+        data.writeBytes(updateMessage(stationID, buyTime, amount, price));
+        return command(CLA, CAPTURE, mode, 0, data.toByteArray(), 0x00);
+    }
+
+    /**
+     * @param handle: handle of the hold
+     * @return capture command releasing the whole hold
+     */
+    public static byte[] release(int handle) {
+        return command(CLA, CAPTURE, 0, 0, new byte[]{(byte) (handle >> 8), (byte) handle}, 0x00);
+    }
+
+    /**
+     * @return update message (E3) signed with the dummy signature
+     */
+    public static byte[] updateMessage(String stationID, String buyTime, int amount, int price) {
+        return updateMessage(purchaseInfo(stationID, buyTime, amount, price), DUMMY_SIGNATURE);
+    }
+
+    /**
+     * @return update message (E3) signed by a station, the signature covers
+     * the purchase info fields
+     */
+    public static byte[] updateMessage(String stationID, String buyTime, int amount, int price, StationSigner signer) {
+        byte[] info = purchaseInfo(stationID, buyTime, amount, price);
+        return updateMessage(info, signer.sign(info));
+    }
+
+    private static byte[] updateMessage(byte[] info, byte[] signature) {
+        ByteArrayOutputStream value = new ByteArrayOutputStream();
+        value.writeBytes(info);
+        tlv(value, 0xC8, signature);
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        tlv(message, 0xE3, value.toByteArray());
+        return message.toByteArray();
+    }
+
+    /**
+     * @param first: index of the first history, 0 is the oldest
+     * @param count: maximum number of histories, 0 for all
+     */
+    public static byte[] histories(int first, int count) {
+        return command(CLA, GET_PURCHASE_HISTORIES, first, count, null, 0x00);
+    }
+
+    /**
+     * @param prefix: prefix of the buy time, 1 to 10 digits
+     */
+    public static byte[] historiesByTime(String prefix) {
+        return command(CLA, GET_PURCHASE_HISTORIES_BY_TIME, 0, 0, prefix.getBytes(StandardCharsets.US_ASCII), 0x00);
+    }
+
+    /**
+     * @param stationID: 5 characters
+     */
+    public static byte[] historiesByStation(String stationID) {
+        return command(CLA, GET_PURCHASE_HISTORIES_BY_STATION, 0, 0, stationID.getBytes(StandardCharsets.US_ASCII), 0x00);
+    }
+
+    /**
+     * @param count: number of histories from the most recent one
+     */
+    public static byte[] last(int count) {
+        return command(CLA, GET_LAST_PURCHASE_HISTORY, count, 0, null, 0x00);
+    }
+
+    /**
+     * @param sequence: high-water mark of the previous download, 0 for all
+     */
+    public static byte[] historiesSince(int sequence) {
+        return command(CLA, GET_PURCHASE_HISTORIES_SINCE, 0, 0, intBytes(sequence), 0x00);
+    }
+
+    /**
+     * @param kind: AGGREGATES_ALL, AGGREGATES_STATION or AGGREGATES_MONTH
+     * @param key: station ID or month (YYMM), null for all
+     */
+    public static byte[] aggregates(byte kind, String key) {
+        byte[] data = key == null ? null : key.getBytes(StandardCharsets.US_ASCII);
+        return command(CLA, GET_AGGREGATES, kind, 0, data, 0x00);
+    }
+
+    /**
+     * @param stationID: 5 characters, null for any station
+     * @param datePrefix: prefix of the buy time (ex: YYMMDD), null for any
+     * date
+     * @return check purchases command, the response is the number of
+     * purchase histories (2 bytes)
+     */
+    public static byte[] checkPurchases(String stationID, String datePrefix) {
+        byte kind = stationID == null ? CHECK_DATE : datePrefix == null ? CHECK_STATION : CHECK_STATION_DATE;
+        String data = (stationID == null ? "" : stationID) + (datePrefix == null ? "" : datePrefix);
+        return command(CLA, CHECK_PURCHASES, kind, 0, data.getBytes(StandardCharsets.US_ASCII), 0x00);
+    }
+
+    /**
+     * @return get change counter command, the response is the next sequence
+     * number TLV (C9) as the selection answers it
+     */
+    public static byte[] changeCounter() {
+        return command(CLA, GET_CHANGE_COUNTER, 0, 0, null, 0x00);
+    }
+
+    /**
+     * @param page: METRICS_SUMMARY, METRICS_COMMANDS, METRICS_NVM_WRITES or
+     * METRICS_FAILURES
+     */
+    public static byte[] metrics(byte page) {
+        return command(CLA, GET_METRICS, page, 0, null, 0x00);
+    }
+
+    /**
+     * @param step: CHANNEL_INITIALIZE (data: host challenge) or
+     * CHANNEL_AUTHENTICATE (data: host cryptogram)
+     */
+    public static byte[] mutualAuthenticate(byte step, byte[] data) {
+        return command(CLA, MUTUAL_AUTHENTICATE, step, 0, data, 0x00);
+    }
+
+    /**
+     * @param criteria: criteria TLVs, see queryCriterion, empty for all the
+     * histories
+     */
+    public static byte[] query(byte[] criteria) {
+        return command(CLA, QUERY_PURCHASE_HISTORIES, 0, 0, criteria.length == 0 ? null : criteria, 0x00);
+    }
+
+    /**
+     * @param tag: QUERY_*_TAG
+     * @param value: station ID, buy time prefix or range as characters, a
+     * range of two ints, the limit or the order as one byte
+     * @return one criterion TLV of a query, to concatenate
+     */
+    public static byte[] queryCriterion(int tag, byte[] value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tlv(out, tag, value);
+        return out.toByteArray();
+    }
+
+    public static byte[] memoryStatus(byte p1) {
+        return command(CLA, GET_MEMORY_STATUS, p1, 0, null, 0x00);
+    }
+
+    public static byte[] getResponse(byte le) {
+        return new byte[]{0x00, GET_RESPONSE, 0x00, 0x00, le};
+    }
+
+    /**
+     * @param data: command data, null for none
+     * @param le: expected length, 0x00 for 256
+     * @return short command APDU
+     */
+    public static byte[] command(byte cla, byte ins, int p1, int p2, byte[] data, int le) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(new byte[]{cla, ins, (byte) p1, (byte) p2});
+        if (data != null) {
+            if (data.length > 255) {
+                throw new IllegalArgumentException("data longer than a short APDU");
+            }
+            out.write(data.length);
+            out.writeBytes(data);
+        }
+        out.write(le);
+        return out.toByteArray();
+    }
+
+    /**
+     * write a TLV with a one byte tag
+     */
+    public static void tlv(ByteArrayOutputStream out, int tag, byte[] value) {
+        out.write(tag);
+        if (value.length > 0xFF) {
+            out.write(0x82);
+            out.write(value.length >> 8);
+        } else if (value.length > 0x7F) {
+            out.write(0x81);
+        }
+        out.write(value.length);
+        out.writeBytes(value);
+    }
+
+    public static byte[] intBytes(int value) {
+        return new byte[]{(byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8), (byte) value};
+    }
+
+    public static String toHex(byte[] bytes, int length) {
+        return HEX.formatHex(bytes, 0, length);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package utility.host;
+
+import java.util.Arrays;
+
+/**
+ * Terminal client of a card which serves the history and aggregate commands
+ * from a HistoryCache while the change counter of the card has not moved.
+ * The selection answers the counter; after a command which may append a
+ * purchase the counter is read again by GET_CHANGE_COUNTER, before the next
+ * cached command only.
+ *
+ * A cached response is served only once the PIN was verified in the
+ * session, as the card would require it. The card identifier must identify
+ * the card for the terminal, the counter only tells whether its histories
+ * moved.
+ */
+public class CachedCardSession {
+
+    /**
+     * SW of the history commands when there is no purchase history to send,
+     * an answer as cacheable as the histories
+     */
+    public static final int SW_PURCHASE_INFO_NOT_FOUND = 0x6308;
+
+    private final CardSession card;
+
+    private final String cardID;
+
+    private final HistoryCache cache;
+
+    private int counter;
+
+    private boolean counterKnown;
+
+    private boolean verified;
+
+    /**
+     * @param card: card of the session
+     * @param cardID: identifier of the card in the cache
+     * @param cache: cache of the terminal
+     */
+    public CachedCardSession(CardSession card, String cardID, HistoryCache cache) {
+        this.card = card;
+        this.cardID = cardID;
+        this.cache = cache;
+    }
+
+    /**
+     * Selects the applet and takes the change counter it answers
+     */
+    public void select() {
+        counter = HistoryCache.changeCounter(card.select());
+        counterKnown = true;
+        verified = false;
+    }
+
+    /**
+     * @return current change counter of the card, read from the card only
+     * when a command may have moved it
+     */
+    public int counter() {
+        if (!counterKnown) {
+            counter = HistoryCache.changeCounter(card.expectSuccess(Apdus.changeCounter()));
+            counterKnown = true;
+        }
+        return counter;
+    }
+
+    /**
+     * Sends a command, or answers it from the cache
+     *
+     * @param command: command APDU
+     * @return the whole response data followed by the last SW, as
+     * CardSession.exchange
+     */
+    public byte[] exchange(byte[] command) {
+        byte ins = command[1];
+        if (command[0] == Apdus.CLA && verified && isCacheable(ins)) {
+            int current = counter();
+            byte[] response = cache.get(cardID, command, current);
+            if (response == null) {
+                response = card.exchange(command);
+                int sw = CardSession.sw(response);
+                if (sw == CardSession.SW_NO_ERROR || sw == SW_PURCHASE_INFO_NOT_FOUND) {
+                    cache.put(cardID, command, current, response);
+                }
+            }
+            return response;
+        }
+
+        byte[] response = card.exchange(command);
+        if (ins == Apdus.VERIFY) {
+            // a wrong PIN invalidates the verification on the card too
+            verified = CardSession.sw(response) == CardSession.SW_NO_ERROR;
+        } else if (ins == Apdus.GET_CHANGE_COUNTER && CardSession.sw(response) == CardSession.SW_NO_ERROR) {
+            counter = HistoryCache.changeCounter(Arrays.copyOf(response, response.length - 2));
+            counterKnown = true;
+        } else if (!isReadOnly(ins)) {
+            counterKnown = false;
+        }
+        return response;
+    }
+
+    /**
+     * @return true for the commands whose response depends only on the
+     * purchase histories and the command
+     */
+    static boolean isCacheable(byte ins) {
+        switch (ins) {
+            case Apdus.GET_PURCHASE_HISTORIES:
+            case Apdus.GET_PURCHASE_HISTORIES_BY_TIME:
+            case Apdus.GET_PURCHASE_HISTORIES_BY_STATION:
+            case Apdus.GET_LAST_PURCHASE_HISTORY:
+            case Apdus.GET_PURCHASE_HISTORIES_SINCE:
+            case Apdus.GET_AGGREGATES:
+            case Apdus.QUERY_PURCHASE_HISTORIES:
+            case Apdus.CHECK_PURCHASES:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return true for the commands which never append a purchase history,
+     * any other command may move the change counter
+     */
+    static boolean isReadOnly(byte ins) {
+        switch (ins) {
+            case Apdus.GET_BALANCE:
+            case Apdus.CHANGE_PIN:
+            case Apdus.GET_MEMORY_STATUS:
+            case Apdus.GET_METRICS:
+            case Apdus.MUTUAL_AUTHENTICATE:
+            case Apdus.PRE_AUTHORIZE:
+                return true;
+            default:
+                return isCacheable(ins);
+        }
+    }
+}
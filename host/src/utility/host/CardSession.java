@@ -0,0 +1,195 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package utility.host;
+
+import com.licel.jcardsim.base.SimulatorRuntime;
+import com.licel.jcardsim.smartcardio.CardSimulator;
+import com.licel.jcardsim.utils.AIDUtil;
+import java.util.Arrays;
+import javacard.framework.AID;
+import javacard.framework.Applet;
+import utility.SelfServiceGasStation;
+
+/**
+ * A SelfServiceGasStation applet installed in an in-process jCardSim card.
+ * Each session is an independent card, a session is used by one thread at a
+ * time.
+ */
+public class CardSession {
+
+    /**
+     * AID of the applet instance
+     */
+    public static final byte[] APPLET_AID = {(byte) 0x92, (byte) 0x25, (byte) 0xB1, (byte) 0xD8, (byte) 0xAA, (byte) 0x74};
+
+    /**
+     * SW of a successful command
+     */
+    public static final int SW_NO_ERROR = 0x9000;
+
+    /**
+     * SW1 of a response continued by GET RESPONSE
+     */
+    private static final int SW1_BYTES_REMAINING = 0x61;
+
+    private final SimulatorRuntime runtime;
+
+    private final CardSimulator simulator;
+
+    private final AID aid;
+
+    /**
+     * Installs the applet in a new simulated card
+     *
+     * @param parameters: applet installation parameters, see
+     * Apdus.installParameters
+     */
+    public CardSession(byte[] parameters) {
+        runtime = new SimulatorRuntime();
+        simulator = new CardSimulator(runtime);
+        aid = AIDUtil.create(APPLET_AID);
+
+        // the install data is formatted as the card manager does: instance
+        // AID, control info, applet parameters (each with its length)
+        byte[] data = new byte[APPLET_AID.length + parameters.length + 3];
+        int offset = 0;
+        data[offset++] = (byte) APPLET_AID.length;
+        System.arraycopy(APPLET_AID, 0, data, offset, APPLET_AID.length);
+        offset += APPLET_AID.length;
+        data[offset++] = 0;
+        data[offset++] = (byte) parameters.length;
+        System.arraycopy(parameters, 0, data, offset, parameters.length);
+
+        simulator.installApplet(aid, SelfServiceGasStation.class, data, (short) 0, (byte) data.length);
+    }
+
+    /**
+     * Selects the applet
+     *
+     * @return response data of the selection: the change counter of the
+     * purchase histories, see HistoryCache.changeCounter
+     */
+    public byte[] select() {
+        byte[] response = simulator.selectAppletWithResult(aid);
+        if (sw(response) != SW_NO_ERROR) {
+            throw new IllegalStateException("applet selection failed");
+        }
+        return Arrays.copyOf(response, response.length - 2);
+    }
+
+    /**
+     * Sends one command
+     *
+     * @param command: command APDU
+     * @return response data followed by the SW
+     */
+    public byte[] transmit(byte[] command) {
+        return simulator.transmitCommand(command);
+    }
+
+    /**
+     * Sends a command and its GET RESPONSE commands while the card has bytes
+     * remaining
+     *
+     * @param command: command APDU
+     * @return the whole response data followed by the last SW
+     */
+    public byte[] exchange(byte[] command) {
+        byte[] response = simulator.transmitCommand(command);
+        if ((response[response.length - 2] & 0xFF) != SW1_BYTES_REMAINING) {
+            return response;
+        }
+
+        byte[] whole = new byte[0];
+        while ((response[response.length - 2] & 0xFF) == SW1_BYTES_REMAINING) {
+            whole = append(whole, response, response.length - 2);
+            response = simulator.transmitCommand(Apdus.getResponse(response[response.length - 1]));
+        }
+        return append(whole, response, response.length);
+    }
+
+    /**
+     * Sends a command which must succeed
+     *
+     * @param command: command APDU
+     * @return response data, without the SW
+     */
+    public byte[] expectSuccess(byte[] command) {
+        byte[] response = exchange(command);
+        if (sw(response) != SW_NO_ERROR) {
+            throw new IllegalStateException(String.format("command %s failed with SW %04X",
+                    Apdus.toHex(command, Math.min(command.length, 5)), sw(response)));
+        }
+        return Arrays.copyOf(response, response.length - 2);
+    }
+
+    /**
+     * @return number of bytes the previous command wrote to the persistent
+     * memory of the applet
+     */
+    public int nvmWrites() {
+        byte[] data = expectSuccess(Apdus.memoryStatus(Apdus.MEMORY_NVM_WRITES));
+        return ((data[0] & 0xFF) << 8) | (data[1] & 0xFF);
+    }
+
+    /**
+     * @return number of bytes the previous command wrote in its transaction,
+     * the transaction buffer it used besides the JCRE's own entries
+     */
+    public int transactionBytes() {
+        byte[] data = expectSuccess(Apdus.memoryStatus(Apdus.MEMORY_COMMIT));
+        return ((data[0] & 0xFF) << 8) | (data[1] & 0xFF);
+    }
+
+    /**
+     * @return free persistent memory of the card
+     */
+    public long freePersistentMemory() {
+        byte[] data = expectSuccess(Apdus.memoryStatus(Apdus.MEMORY_GET));
+        return ((long) (data[0] & 0xFF) << 24) | ((data[1] & 0xFF) << 16) | ((data[2] & 0xFF) << 8) | (data[3] & 0xFF);
+    }
+
+    /**
+     * Marks the current free persistent memory, see memoryChanged
+     */
+    public void markMemory() {
+        expectSuccess(Apdus.memoryStatus(Apdus.MEMORY_MARK));
+    }
+
+    /**
+     * @return true if the free persistent memory changed since markMemory
+     */
+    public boolean memoryChanged() {
+        return sw(exchange(Apdus.memoryStatus(Apdus.MEMORY_CHECK))) != SW_NO_ERROR;
+    }
+
+    /**
+     * @return the applet instance, for the checks looking into its objects
+     */
+    Applet applet() {
+        return runtime.lookupApplet(aid).getApplet();
+    }
+
+    /**
+     * Resets the card, the applet must be selected again
+     */
+    public void reset() {
+        simulator.reset();
+    }
+
+    /**
+     * @return SW of a response
+     */
+    public static int sw(byte[] response) {
+        return ((response[response.length - 2] & 0xFF) << 8) | (response[response.length - 1] & 0xFF);
+    }
+
+    private static byte[] append(byte[] whole, byte[] part, int length) {
+        byte[] result = Arrays.copyOf(whole, whole.length + length);
+        System.arraycopy(part, 0, result, whole.length, length);
+        return result;
+    }
+}
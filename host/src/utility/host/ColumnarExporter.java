@@ -0,0 +1,306 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package utility.host;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Exports dumps of purchase histories (see HistoryParser) to part files of
+ * columns. The cards of a dump are split in ranges of cardsPerPart cards, a
+ * fork/join pool parses each range in place into its own HistoryBatch and
+ * writes it to its part file, so the parts are exported on all the cores.
+ *
+ * Formats of the part files:
+ * CSV: header card,station,buy_time,amount,price then one line per record.
+ * COLUMNS: magic "SSGC", number of rows (int), then the columns one after
+ * the other: card (int), station (5 bytes), buy time (long), amount
+ * (unsigned int), price (unsigned int). Big-endian, the columns can be
+ * mapped back without parsing.
+ *
+ * Usage: ColumnarExporter output-directory csv|columns dump-file...
+ * Each dump file is memory-mapped, up to 2 GB per file, the card indexes go
+ * on from one file to the next. The part files of a dump file are prefixed
+ * by its rank and its name.
+ */
+public class ColumnarExporter {
+
+    public enum Format {
+        CSV(".csv"), COLUMNS(".col");
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+    }
+
+    /**
+     * Magic number of a COLUMNS part file, "SSGC"
+     */
+    public static final int COLUMNS_MAGIC = 0x53534743;
+
+    public static final int DEFAULT_CARDS_PER_PART = 4096;
+
+    /**
+     * Expected number of records per card, initial capacity of the batches
+     */
+    private static final int RECORDS_PER_CARD = 30;
+
+    private static final byte[] CSV_HEADER = "card,station,buy_time,amount,price\n".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Longest CSV line: card, amount and price of up to 11 characters each,
+     * the station, the buy time, 4 commas and the newline
+     */
+    static final int CSV_LINE_LENGTH = 3 * 11 + HistoryBatch.STATION_ID_LENGTH + HistoryParser.BUY_TIME_LENGTH + 5;
+
+    private static final int OUTPUT_BUFFER = 1 << 16;
+
+    private final Path directory;
+
+    private final Format format;
+
+    private final int cardsPerPart;
+
+    private final ForkJoinPool pool;
+
+    /**
+     * @param directory: directory of the part files, created if needed
+     * @param format: format of the part files
+     * @param cardsPerPart: number of cards per part file
+     * @param pool: pool running the exports
+     */
+    public ColumnarExporter(Path directory, Format format, int cardsPerPart, ForkJoinPool pool) {
+        if (cardsPerPart < 1) {
+            throw new IllegalArgumentException("at least one card per part");
+        }
+        this.directory = directory;
+        this.format = format;
+        this.cardsPerPart = cardsPerPart;
+        this.pool = pool;
+    }
+
+    /**
+     * Exports a dump, its part files are named prefix-part-NNNNN with the
+     * number of the part in the dump
+     *
+     * @param dump: buffer of the dump, from its position to its limit, it is
+     * not modified
+     * @param firstCard: card index of the first card of the dump
+     * @param prefix: prefix of the part files
+     * @return number of records exported
+     * @throws IllegalArgumentException if the dump is malformed
+     * @throws IOException if a part file cannot be written
+     */
+    public long export(ByteBuffer dump, int firstCard, String prefix) throws IOException {
+        return export(dump, HistoryParser.index(dump), firstCard, prefix);
+    }
+
+    /**
+     * Exports a dump already indexed
+     *
+     * @param offsets: offsets of the TLVs of the dump, see HistoryParser.index
+     */
+    public long export(ByteBuffer dump, int[] offsets, int firstCard, String prefix) throws IOException {
+        Files.createDirectories(directory);
+        if (offsets.length == 0) {
+            return 0;
+        }
+        try {
+            return pool.invoke(new PartTask(dump, offsets, firstCard, prefix, 0, offsets.length));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Splits its range of cards in halves on part boundaries, down to one part.
+     * The tasks are never serialized.
+     */
+    @SuppressWarnings("serial")
+    private final class PartTask extends RecursiveTask<Long> {
+
+        private final ByteBuffer dump;
+
+        private final int[] offsets;
+
+        private final int firstCard;
+
+        private final String prefix;
+
+        private final int from;
+
+        private final int to;
+
+        PartTask(ByteBuffer dump, int[] offsets, int firstCard, String prefix, int from, int to) {
+            this.dump = dump;
+            this.offsets = offsets;
+            this.firstCard = firstCard;
+            this.prefix = prefix;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Long compute() {
+            int parts = (to - from + cardsPerPart - 1) / cardsPerPart;
+            if (parts <= 1) {
+                return exportPart();
+            }
+            int middle = from + parts / 2 * cardsPerPart;
+            PartTask high = new PartTask(dump, offsets, firstCard, prefix, middle, to);
+            high.fork();
+            long low = new PartTask(dump, offsets, firstCard, prefix, from, middle).compute();
+            return low + high.join();
+        }
+
+        private long exportPart() {
+            // a view of its own per part, the position and limit of the dump are shared
+            ByteBuffer buffer = dump.duplicate();
+            HistoryBatch batch = new HistoryBatch((to - from) * RECORDS_PER_CARD);
+            for (int i = from; i < to; i++) {
+                HistoryParser.parse(buffer, offsets[i], firstCard + i, batch);
+            }
+            Path file = directory.resolve(String.format(Locale.ROOT, "%s-part-%05d%s", prefix,
+                    from / cardsPerPart, format.extension));
+            try {
+                if (format == Format.CSV) {
+                    writeCsv(batch, file);
+                } else {
+                    writeColumns(batch, file);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return batch.size();
+        }
+    }
+
+    /**
+     * Writes a batch as CSV, the lines are encoded by hand in a reused buffer
+     */
+    static void writeCsv(HistoryBatch batch, Path file) throws IOException {
+        byte[] line = new byte[CSV_LINE_LENGTH];
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), OUTPUT_BUFFER)) {
+            out.write(CSV_HEADER);
+            for (int row = 0; row < batch.size(); row++) {
+                int length = decimal(batch.card()[row], line, 0);
+                line[length++] = ',';
+                length = HistoryBatch.unpackStation(batch.station()[row], line, length);
+                line[length++] = ',';
+                // the buy time keeps its leading zeros
+                long time = batch.buyTime()[row];
+                for (int i = HistoryParser.BUY_TIME_LENGTH - 1; i >= 0; i--) {
+                    line[length + i] = (byte) ('0' + time % 10);
+                    time /= 10;
+                }
+                length += HistoryParser.BUY_TIME_LENGTH;
+                line[length++] = ',';
+                // the amount and the price are unsigned
+                length = decimal(Integer.toUnsignedLong(batch.amount()[row]), line, length);
+                line[length++] = ',';
+                length = decimal(Integer.toUnsignedLong(batch.price()[row]), line, length);
+                line[length++] = '\n';
+                out.write(line, 0, length);
+            }
+        }
+    }
+
+    /**
+     * Writes a batch as COLUMNS, each column in one bulk put
+     */
+    static void writeColumns(HistoryBatch batch, Path file) throws IOException {
+        int rows = batch.size();
+        ByteBuffer buffer = ByteBuffer.allocate(2 * Integer.BYTES
+                + rows * (3 * Integer.BYTES + HistoryBatch.STATION_ID_LENGTH + Long.BYTES));
+        buffer.putInt(COLUMNS_MAGIC).putInt(rows);
+        buffer.asIntBuffer().put(batch.card(), 0, rows);
+        buffer.position(buffer.position() + rows * Integer.BYTES);
+        byte[] station = new byte[HistoryBatch.STATION_ID_LENGTH];
+        for (int row = 0; row < rows; row++) {
+            HistoryBatch.unpackStation(batch.station()[row], station, 0);
+            buffer.put(station);
+        }
+        buffer.asLongBuffer().put(batch.buyTime(), 0, rows);
+        buffer.position(buffer.position() + rows * Long.BYTES);
+        buffer.asIntBuffer().put(batch.amount(), 0, rows);
+        buffer.position(buffer.position() + rows * Integer.BYTES);
+        buffer.asIntBuffer().put(batch.price(), 0, rows);
+        buffer.position(buffer.position() + rows * Integer.BYTES);
+        buffer.flip();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Writes the decimal digits of a value
+     *
+     * @return offset after the digits
+     */
+    private static int decimal(long value, byte[] out, int offset) {
+        long rest = value;
+        if (rest < 0) {
+            out[offset++] = '-';
+            rest = -rest;
+        }
+        int digits = 1;
+        for (long power = 10; power <= rest; power *= 10) {
+            digits++;
+        }
+        for (int i = digits - 1; i >= 0; i--) {
+            out[offset + i] = (byte) ('0' + rest % 10);
+            rest /= 10;
+        }
+        return offset + digits;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: ColumnarExporter output-directory csv|columns dump-file...");
+            System.exit(2);
+        }
+        Format format = Format.valueOf(args[1].toUpperCase(Locale.ROOT));
+        ColumnarExporter exporter = new ColumnarExporter(Paths.get(args[0]), format, DEFAULT_CARDS_PER_PART,
+                ForkJoinPool.commonPool());
+        int firstCard = 0;
+        long records = 0;
+        long start = System.nanoTime();
+        for (int i = 2; i < args.length; i++) {
+            Path dump = Paths.get(args[i]);
+            try (FileChannel channel = FileChannel.open(dump, StandardOpenOption.READ)) {
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException(String.format("%s is larger than 2 GB, split it", dump));
+                }
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                int[] offsets = HistoryParser.index(buffer);
+                String prefix = String.format(Locale.ROOT, "%03d-%s", i - 2, dump.getFileName());
+                records += exporter.export(buffer, offsets, firstCard, prefix);
+                firstCard += offsets.length;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf(Locale.ROOT, "records: %d, %.1f ms, %.0f records/s, %d threads%n", records, elapsed / 1e6,
+                records * 1e9 / Math.max(elapsed, 1), ForkJoinPool.commonPool().getParallelism());
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package utility.host;
+
+import java.util.Arrays;
+
+/**
+ * Purchase histories in columns of primitive arrays, one row per record.
+ * HistoryParser appends the records of the cards to a batch, the columns grow
+ * as needed and are reused after clear(): parsing makes no object per record.
+ *
+ * The station ID (5 ASCII characters) is packed in a long, the buy time
+ * (YYMMDDhhmm) is kept as its decimal value. The arrays returned by the
+ * accessors are the columns themselves, valid up to size().
+ */
+public final class HistoryBatch {
+
+    /**
+     * Length of a station ID
+     */
+    public static final int STATION_ID_LENGTH = 5;
+
+    private int size;
+
+    private int[] card;
+
+    private long[] station;
+
+    private long[] buyTime;
+
+    private int[] amount;
+
+    private int[] price;
+
+    /**
+     * @param capacity: initial number of rows
+     */
+    public HistoryBatch(int capacity) {
+        capacity = Math.max(capacity, 1);
+        card = new int[capacity];
+        station = new long[capacity];
+        buyTime = new long[capacity];
+        amount = new int[capacity];
+        price = new int[capacity];
+    }
+
+    /**
+     * @return number of rows
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes all the rows, the columns are kept
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * @return index of the card of each row, its rank in the dump
+     */
+    public int[] card() {
+        return card;
+    }
+
+    /**
+     * @return station ID of each row, see packStation
+     */
+    public long[] station() {
+        return station;
+    }
+
+    /**
+     * @return buy time of each row, YYMMDDhhmm as a number
+     */
+    public long[] buyTime() {
+        return buyTime;
+    }
+
+    /**
+     * @return amount of each row, the 4 bytes of the card as an unsigned int
+     * (see Integer.toUnsignedLong)
+     */
+    public int[] amount() {
+        return amount;
+    }
+
+    /**
+     * @return price of each row, unsigned as the amount
+     */
+    public int[] price() {
+        return price;
+    }
+
+    /**
+     * Appends a row
+     */
+    void add(int cardIndex, long stationID, long time, int amountValue, int priceValue) {
+        if (size == card.length) {
+            int capacity = size * 2;
+            card = Arrays.copyOf(card, capacity);
+            station = Arrays.copyOf(station, capacity);
+            buyTime = Arrays.copyOf(buyTime, capacity);
+            amount = Arrays.copyOf(amount, capacity);
+            price = Arrays.copyOf(price, capacity);
+        }
+        card[size] = cardIndex;
+        station[size] = stationID;
+        buyTime[size] = time;
+        amount[size] = amountValue;
+        price[size] = priceValue;
+        size++;
+    }
+
+    /**
+     * @return station ID packed in a long, the first character in the high
+     * byte
+     */
+    public static long packStation(byte[] stationID) {
+        long packed = 0;
+        for (int i = 0; i < STATION_ID_LENGTH; i++) {
+            packed = (packed << 8) | (stationID[i] & 0xFF);
+        }
+        return packed;
+    }
+
+    /**
+     * Writes a packed station ID as its characters
+     *
+     * @return offset after the station ID
+     */
+    public static int unpackStation(long packed, byte[] out, int offset) {
+        for (int i = STATION_ID_LENGTH - 1; i >= 0; i--) {
+            out[offset + i] = (byte) packed;
+            packed >>>= 8;
+        }
+        return offset + STATION_ID_LENGTH;
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package utility.host;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Responses of the history and aggregate commands of the cards, kept by a
+ * terminal (see CachedCardSession). An entry is the response of a command to
+ * a card, valid while the change counter of the card is the one it was read
+ * with: the purchase histories change only by purchases, and every purchase
+ * moves the counter.
+ *
+ * The entries are kept in least recently used order, within a number of
+ * entries and a number of bytes (commands and responses); the least recently
+ * used entries are evicted first. A cache can be saved to a file and loaded
+ * back from it, memory-mapped, so a terminal keeps its entries across
+ * restarts. The methods are synchronized, one cache can serve the sessions
+ * of several pumps.
+ */
+public class HistoryCache {
+
+    /**
+     * Tag and length of the change counter TLV, the next sequence number
+     */
+    public static final int CHANGE_COUNTER_TAG = 0xC9;
+    public static final int CHANGE_COUNTER_LENGTH = 4;
+
+    /**
+     * Magic number of a cache file, "SSHC"
+     */
+    public static final int FILE_MAGIC = 0x53534843;
+
+    private final int maxEntries;
+
+    private final long maxBytes;
+
+    /**
+     * Entries in access order, the eldest is the least recently used
+     */
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long bytes;
+
+    private long hits;
+
+    private long misses;
+
+    private long staleMisses;
+
+    private long evictions;
+
+    /**
+     * @param maxEntries: maximum number of entries
+     * @param maxBytes: maximum number of bytes of the commands and responses
+     * of the entries
+     */
+    public HistoryCache(int maxEntries, long maxBytes) {
+        if (maxEntries < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("the cache must hold at least one entry");
+        }
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param data: response data of the selection or of GET_CHANGE_COUNTER
+     * @return the change counter
+     * @throws IllegalArgumentException if the data is not a change counter
+     * TLV
+     */
+    public static int changeCounter(byte[] data) {
+        if (data.length != 2 + CHANGE_COUNTER_LENGTH || (data[0] & 0xFF) != CHANGE_COUNTER_TAG
+                || data[1] != CHANGE_COUNTER_LENGTH) {
+            throw new IllegalArgumentException("no change counter in " + Apdus.toHex(data, data.length));
+        }
+        return ByteBuffer.wrap(data, 2, CHANGE_COUNTER_LENGTH).getInt();
+    }
+
+    /**
+     * Looks a response up, an entry of another counter is removed
+     *
+     * @param card: identifier of the card
+     * @param command: command APDU
+     * @param counter: current change counter of the card
+     * @return a copy of the response (data and SW), null if it is not cached
+     * for this counter
+     */
+    public synchronized byte[] get(String card, byte[] command, int counter) {
+        Key key = new Key(card, command);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (entry.counter != counter) {
+            // the histories moved since, the entry is of no use any more
+            misses++;
+            staleMisses++;
+            entries.remove(key);
+            bytes -= entry.size();
+            return null;
+        }
+        hits++;
+        return entry.response.clone();
+    }
+
+    /**
+     * Stores a response, the least recently used entries are evicted to keep
+     * the bounds
+     *
+     * @param card: identifier of the card
+     * @param command: command APDU
+     * @param counter: change counter of the card when the response was read
+     * @param response: response, data and SW
+     */
+    public synchronized void put(String card, byte[] command, int counter, byte[] response) {
+        Entry entry = new Entry(command.clone(), counter, response.clone());
+        if (entry.size() > maxBytes) {
+            return;
+        }
+        Entry previous = entries.put(new Key(card, entry.command), entry);
+        if (previous != null) {
+            bytes -= previous.size();
+        }
+        bytes += entry.size();
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (entries.size() > maxEntries || bytes > maxBytes) {
+            bytes -= eldest.next().size();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Removes all the entries, the metrics are kept
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * @return number of entries
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return number of bytes of the commands and responses of the entries
+     */
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    /**
+     * @return number of lookups without entry or with a stale entry
+     */
+    public synchronized long misses() {
+        return misses;
+    }
+
+    /**
+     * @return number of lookups which found an entry of another counter
+     */
+    public synchronized long staleMisses() {
+        return staleMisses;
+    }
+
+    /**
+     * @return number of entries evicted to keep the bounds
+     */
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    /**
+     * @return hits over lookups, 0 before the first lookup
+     */
+    public synchronized double hitRatio() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     * Saves the entries to a file, from the least recently used one: magic,
+     * number of entries, then for each one the card (UTF-8, 2 byte length),
+     * the counter, the command (2 byte length) and the response (4 byte
+     * length). Big-endian.
+     *
+     * @param file: file written, replaced if it exists
+     */
+    public synchronized void save(Path file) throws IOException {
+        long length = 2 * Integer.BYTES;
+        for (Map.Entry<Key, Entry> e : entries.entrySet()) {
+            length += Short.BYTES + e.getKey().card.getBytes(StandardCharsets.UTF_8).length
+                    + Integer.BYTES + Short.BYTES + Integer.BYTES + e.getValue().size();
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+            buffer.putInt(FILE_MAGIC).putInt(entries.size());
+            for (Map.Entry<Key, Entry> e : entries.entrySet()) {
+                byte[] card = e.getKey().card.getBytes(StandardCharsets.UTF_8);
+                Entry entry = e.getValue();
+                buffer.putShort((short) card.length).put(card).putInt(entry.counter);
+                buffer.putShort((short) entry.command.length).put(entry.command);
+                buffer.putInt(entry.response.length).put(entry.response);
+            }
+            buffer.force();
+        }
+    }
+
+    /**
+     * Loads the entries of a file written by save, the file is
+     * memory-mapped. They are added to the entries of the cache, in their
+     * order of use, within the bounds.
+     *
+     * @param file: file read
+     * @return number of entries read
+     * @throws IOException if the file cannot be read or is not a cache file
+     */
+    public synchronized int load(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(String.format("%s is not a history cache file", file));
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 2 * Integer.BYTES || buffer.getInt() != FILE_MAGIC) {
+                throw new IOException(String.format("%s is not a history cache file", file));
+            }
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                byte[] card = new byte[buffer.getShort() & 0xFFFF];
+                buffer.get(card);
+                int counter = buffer.getInt();
+                byte[] command = new byte[buffer.getShort() & 0xFFFF];
+                buffer.get(command);
+                int responseLength = buffer.getInt();
+                if (responseLength < 0 || responseLength > buffer.remaining()) {
+                    throw new IOException(String.format("%s is truncated", file));
+                }
+                byte[] response = new byte[responseLength];
+                buffer.get(response);
+                put(new String(card, StandardCharsets.UTF_8), command, counter, response);
+            }
+            return count;
+        } catch (BufferUnderflowException e) {
+            throw new IOException(String.format("%s is truncated", file), e);
+        }
+    }
+
+    /**
+     * A command to a card
+     */
+    private static final class Key {
+
+        private final String card;
+
+        private final byte[] command;
+
+        private final int hash;
+
+        Key(String card, byte[] command) {
+            this.card = card;
+            this.command = command;
+            this.hash = 31 * card.hashCode() + Arrays.hashCode(command);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return hash == key.hash && card.equals(key.card) && Arrays.equals(command, key.command);
+        }
+    }
+
+    /**
+     * A response and the counter it was read with
+     */
+    private static final class Entry {
+
+        private final byte[] command;
+
+        private final int counter;
+
+        private final byte[] response;
+
+        Entry(byte[] command, int counter, byte[] response) {
+            this.command = command;
+            this.counter = counter;
+            this.response = response;
+        }
+
+        int size() {
+            return command.length + response.length;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package utility.host;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Parser of the purchase histories TLV (E1) the applet sends, in place in a
+ * ByteBuffer: a heap buffer, a direct one or a memory-mapped file of card
+ * dumps. The buffer is read with absolute gets, neither it nor its content is
+ * copied, and the records go to the columns of a HistoryBatch.
+ *
+ * A dump is the purchase histories TLVs of many cards one after the other,
+ * the response data of GET_PURCHASE_HISTORIES without its SW. The card index
+ * of a record is the rank of its TLV in the dump.
+ */
+public final class HistoryParser {
+
+    /**
+     * Tags of the applet, see PurchaseHistory
+     */
+    public static final int PURCHASE_HISTORIES_TAG = 0xE1;
+    public static final int PURCHASE_INFO_TAG = 0xE2;
+    public static final int STATION_ID_TAG = 0xC4;
+    public static final int BUY_TIME_TAG = 0xC5;
+    public static final int AMOUNT_TAG = 0xC6;
+    public static final int PRICE_TAG = 0xC7;
+
+    /**
+     * Number of digits of a buy time
+     */
+    public static final int BUY_TIME_LENGTH = 10;
+
+    private static final int INT_LENGTH = 4;
+
+    private HistoryParser() {
+    }
+
+    /**
+     * Finds the purchase histories TLVs of a dump, only their headers are read
+     *
+     * @param dump: buffer of the dump, from its position to its limit
+     * @return offset of each TLV in the buffer, in the order of the dump
+     * @throws IllegalArgumentException if the dump is not a list of purchase
+     * histories TLVs
+     */
+    public static int[] index(ByteBuffer dump) {
+        int[] offsets = new int[1024];
+        int count = 0;
+        int offset = dump.position();
+        int end = dump.limit();
+        while (offset < end) {
+            if ((dump.get(offset) & 0xFF) != PURCHASE_HISTORIES_TAG) {
+                throw new IllegalArgumentException(String.format("no purchase histories TLV at %d", offset));
+            }
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            offsets[count++] = offset;
+            offset = next(dump, offset, end);
+        }
+        return Arrays.copyOf(offsets, count);
+    }
+
+    /**
+     * Parses one purchase histories TLV
+     *
+     * @param buffer: buffer holding the TLV
+     * @param offset: offset of the TLV
+     * @param cardIndex: card index of its records
+     * @param batch: batch the records are appended to
+     * @return offset after the TLV
+     * @throws IllegalArgumentException if the TLV is malformed or a record
+     * misses a field
+     */
+    public static int parse(ByteBuffer buffer, int offset, int cardIndex, HistoryBatch batch) {
+        int end = buffer.limit();
+        if ((buffer.get(offset) & 0xFF) != PURCHASE_HISTORIES_TAG) {
+            throw new IllegalArgumentException(String.format("no purchase histories TLV at %d", offset));
+        }
+        int next = next(buffer, offset, end);
+        int record = valueOffset(buffer, offset);
+        while (record < next) {
+            if ((buffer.get(record) & 0xFF) != PURCHASE_INFO_TAG) {
+                throw new IllegalArgumentException(String.format("no purchase info TLV at %d", record));
+            }
+            int recordEnd = next(buffer, record, next);
+            parseRecord(buffer, valueOffset(buffer, record), recordEnd, cardIndex, batch);
+            record = recordEnd;
+        }
+        return next;
+    }
+
+    /**
+     * Parses the fields of a purchase info, in any order
+     */
+    private static void parseRecord(ByteBuffer buffer, int offset, int end, int cardIndex, HistoryBatch batch) {
+        long station = -1;
+        long time = -1;
+        long amount = -1;
+        long price = -1;
+        while (offset < end) {
+            int tag = buffer.get(offset) & 0xFF;
+            int fieldEnd = next(buffer, offset, end);
+            int value = valueOffset(buffer, offset);
+            int length = fieldEnd - value;
+            switch (tag) {
+                case STATION_ID_TAG:
+                    checkLength(value, length, HistoryBatch.STATION_ID_LENGTH);
+                    station = bigEndian(buffer, value, length);
+                    break;
+                case BUY_TIME_TAG:
+                    checkLength(value, length, BUY_TIME_LENGTH);
+                    time = 0;
+                    for (int i = 0; i < length; i++) {
+                        int digit = buffer.get(value + i) - '0';
+                        if (digit < 0 || digit > 9) {
+                            throw new IllegalArgumentException(String.format("buy time digit expected at %d", value + i));
+                        }
+                        time = time * 10 + digit;
+                    }
+                    break;
+                case AMOUNT_TAG:
+                    checkLength(value, length, INT_LENGTH);
+                    amount = bigEndian(buffer, value, INT_LENGTH);
+                    break;
+                case PRICE_TAG:
+                    checkLength(value, length, INT_LENGTH);
+                    price = bigEndian(buffer, value, INT_LENGTH);
+                    break;
+                default:
+                    // fields added later are skipped
+                    break;
+            }
+            offset = fieldEnd;
+        }
+        if (station < 0 || time < 0 || amount < 0 || price < 0) {
+            throw new IllegalArgumentException(String.format("purchase info without all its fields before %d", end));
+        }
+        batch.add(cardIndex, station, time, (int) amount, (int) price);
+    }
+
+    private static void checkLength(int offset, int length, int expected) {
+        if (length != expected) {
+            throw new IllegalArgumentException(String.format("field of %d bytes at %d, %d expected", length, offset, expected));
+        }
+    }
+
+    /**
+     * @return unsigned big-endian value of bytes, whatever the order of the
+     * buffer
+     */
+    private static long bigEndian(ByteBuffer buffer, int offset, int length) {
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            value = (value << 8) | (buffer.get(offset + i) & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * @return offset of the value of the TLV at an offset
+     */
+    private static int valueOffset(ByteBuffer buffer, int offset) {
+        int length = buffer.get(offset + 1) & 0xFF;
+        return offset + 2 + (length > 0x80 ? length - 0x80 : 0);
+    }
+
+    /**
+     * @return offset after the TLV at an offset, which must end before end.
+     * One byte tags and lengths up to 0x82, as the applet sends.
+     */
+    private static int next(ByteBuffer buffer, int offset, int end) {
+        if (end - offset < 2) {
+            throw new IllegalArgumentException(String.format("truncated TLV at %d", offset));
+        }
+        int length = buffer.get(offset + 1) & 0xFF;
+        int value = offset + 2;
+        if (length == 0x81 && value < end) {
+            length = buffer.get(value) & 0xFF;
+            value++;
+        } else if (length == 0x82 && value + 1 < end) {
+            length = (int) bigEndian(buffer, value, 2);
+            value += 2;
+        } else if (length > 0x7F) {
+            throw new IllegalArgumentException(String.format("unsupported TLV length at %d", offset));
+        }
+        if (length > end - value) {
+            throw new IllegalArgumentException(String.format("truncated TLV at %d", offset));
+        }
+        return value + length;
+    }
+}
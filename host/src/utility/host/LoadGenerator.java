@@ -0,0 +1,149 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package utility.host;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load generator of a busy station: every card is served by its own pump
+ * terminal, a virtual thread, and the cards run at the same time. A session
+ * is a card tap: reset, select, VERIFY, UPDATE_PURCHASE_INFO, GET_BALANCE and
+ * GET_LAST_PURCHASE_HISTORY.
+ *
+ * Usage: LoadGenerator [cards] [sessions per card] [history capacity]
+ */
+public class LoadGenerator {
+
+    private static final byte[] PIN = {0x01, 0x02, 0x03};
+
+    private static final String[] STATIONS = {"S0001", "S0002", "S0003", "S0004", "S0005"};
+
+    /**
+     * Unit price of the purchases, the initial balance pays 150 sessions of
+     * the largest amount
+     */
+    private static final int PRICE = 160;
+
+    private static final int MAX_AMOUNT = 40;
+
+    private final int cards;
+
+    private final int sessions;
+
+    private final int historyCapacity;
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final AtomicLong apdus = new AtomicLong();
+
+    /**
+     * @param cards: number of cards served at the same time
+     * @param sessions: number of sessions of each card
+     * @param historyCapacity: history capacity of the cards
+     */
+    public LoadGenerator(int cards, int sessions, int historyCapacity) {
+        this.cards = cards;
+        this.sessions = sessions;
+        this.historyCapacity = historyCapacity;
+    }
+
+    /**
+     * Runs the sessions of all the cards
+     *
+     * @return latencies of all the sessions in nanoseconds, sorted
+     */
+    public long[] run() throws Exception {
+        List<Future<long[]>> pumps = new ArrayList<>(cards);
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < cards; i++) {
+                final int card = i;
+                pumps.add(executor.submit(() -> pump(card)));
+            }
+        }
+
+        long[] latencies = new long[cards * sessions];
+        for (int i = 0; i < cards; i++) {
+            System.arraycopy(pumps.get(i).get(), 0, latencies, i * sessions, sessions);
+        }
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    /**
+     * Serves one card
+     *
+     * @param index: index of the card
+     * @return latencies of its sessions in nanoseconds
+     */
+    private long[] pump(int index) {
+        CardSession card = new CardSession(Apdus.installParameters(PIN, historyCapacity));
+        byte[] verify = Apdus.verify(PIN);
+        byte[] getBalance = Apdus.getBalance();
+        byte[] last = Apdus.last(1);
+        long[] latencies = new long[sessions];
+
+        for (int i = 0; i < sessions; i++) {
+            // one purchase a minute, at a station chosen by the card
+            String time = String.format("14%02d%02d%02d%02d", 1 + i / 1440 % 12, 1 + i / 1440 / 12 % 28,
+                    i / 60 % 24, i % 60);
+            byte[] update = Apdus.update(STATIONS[(index + i) % STATIONS.length], time,
+                    1 + (index + i) % MAX_AMOUNT, PRICE);
+
+            long start = System.nanoTime();
+            card.reset();
+            card.select();
+            boolean success = send(card, verify)
+                    & send(card, update)
+                    & send(card, getBalance)
+                    & send(card, last);
+            latencies[i] = System.nanoTime() - start;
+            if (!success) {
+                failures.incrementAndGet();
+            }
+        }
+        return latencies;
+    }
+
+    private boolean send(CardSession card, byte[] command) {
+        apdus.incrementAndGet();
+        return CardSession.sw(card.exchange(command)) == CardSession.SW_NO_ERROR;
+    }
+
+    /**
+     * @param latencies: sorted latencies
+     * @param percentile: between 0 and 100
+     * @return latency of the percentile, nearest rank
+     */
+    static long percentile(long[] latencies, double percentile) {
+        int rank = (int) Math.ceil(percentile / 100 * latencies.length);
+        return latencies[Math.max(rank, 1) - 1];
+    }
+
+    public static void main(String[] args) throws Exception {
+        int cards = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int sessions = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int historyCapacity = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+
+        LoadGenerator generator = new LoadGenerator(cards, sessions, historyCapacity);
+        long start = System.nanoTime();
+        long[] latencies = generator.run();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("cards %d, sessions %d, history capacity %d%n", cards, latencies.length, historyCapacity);
+        System.out.printf("failed sessions %d%n", generator.failures.get());
+        System.out.printf("elapsed %.3f s, %.0f sessions/s, %.0f APDU/s%n",
+                seconds, latencies.length / seconds, generator.apdus.get() / seconds);
+        System.out.printf("session latency (us): p50 %.1f, p99 %.1f, p999 %.1f, max %.1f%n",
+                percentile(latencies, 50) / 1e3, percentile(latencies, 99) / 1e3,
+                percentile(latencies, 99.9) / 1e3, latencies[latencies.length - 1] / 1e3);
+    }
+}
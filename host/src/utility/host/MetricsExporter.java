@@ -0,0 +1,172 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package utility.host;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Exports the GET_METRICS counters of a card as time series, in the
+ * Prometheus text format with a timestamp on each sample (milliseconds).
+ * Counters are named ssgs_*_total, gauges ssgs_*.
+ *
+ * The main method runs the sessions of a card (as LoadGenerator does, with a
+ * wrong PIN now and then) and samples its metrics every interval sessions.
+ *
+ * Usage: MetricsExporter [sessions] [interval] [history capacity] [output
+ * file, standard output if none]
+ */
+public class MetricsExporter {
+
+    /**
+     * Number of command slots and of status slots of the metrics pages
+     */
+    public static final int COMMAND_SLOTS = 24;
+    public static final int STATUS_SLOTS = 27;
+
+    /**
+     * Number of SW of the applet with a status slot, from 63 00
+     */
+    private static final int APPLICATION_STATUSES = 16;
+
+    /**
+     * SW of the status slots after the ones of the applet
+     */
+    private static final int[] ISO_STATUSES = {0x6700, 0x6884, 0x6982, 0x6985, 0x6A80, 0x6A86, 0x6B00, 0x6D00,
+        0x6E00, 0x6F00};
+
+    private static final byte[] PIN = {0x01, 0x02, 0x03};
+
+    private static final byte[] WRONG_PIN = {0x09, 0x09, 0x09};
+
+    private static final String[] STATIONS = {"S0001", "S0002", "S0003", "S0004", "S0005"};
+
+    private final CardSession card;
+
+    private final PrintStream out;
+
+    /**
+     * @param card: card read, the applet must be selected
+     * @param out: output of the samples
+     */
+    public MetricsExporter(CardSession card, PrintStream out) {
+        this.card = card;
+        this.out = out;
+    }
+
+    /**
+     * @return label of a command slot: the INS in hex, "other" for the INS
+     * without a slot
+     */
+    public static String commandLabel(int slot) {
+        if (slot == 0) {
+            return "C0";
+        }
+        return slot == COMMAND_SLOTS - 1 ? "other" : String.format("%02X", slot);
+    }
+
+    /**
+     * @return label of a status slot: the SW in hex, "other" for the SW
+     * without a slot
+     */
+    public static String statusLabel(int slot) {
+        if (slot == 0) {
+            return "other";
+        }
+        if (slot <= APPLICATION_STATUSES) {
+            return String.format("%04X", 0x6300 + slot - 1);
+        }
+        return String.format("%04X", ISO_STATUSES[slot - 1 - APPLICATION_STATUSES]);
+    }
+
+    /**
+     * Reads all the metrics pages and writes one sample of each series
+     */
+    public void sample() {
+        long timestamp = System.currentTimeMillis();
+        byte[] summary = card.expectSuccess(Apdus.metrics(Apdus.METRICS_SUMMARY));
+        byte[] commands = card.expectSuccess(Apdus.metrics(Apdus.METRICS_COMMANDS));
+        byte[] writes = card.expectSuccess(Apdus.metrics(Apdus.METRICS_NVM_WRITES));
+        byte[] failures = card.expectSuccess(Apdus.metrics(Apdus.METRICS_FAILURES));
+
+        gauge("ssgs_free_persistent_bytes", unsigned(summary, 0, 4), timestamp);
+        gauge("ssgs_history_records", unsigned(summary, 4, 2), timestamp);
+        gauge("ssgs_history_capacity", unsigned(summary, 6, 2), timestamp);
+        gauge("ssgs_history_bytes", unsigned(summary, 8, 2), timestamp);
+        long stations = unsigned(summary, 10, 2);
+        long hashSize = unsigned(summary, 12, 2);
+        gauge("ssgs_stations", stations, timestamp);
+        out.printf(Locale.ROOT, "ssgs_station_index_fill_ratio %.4f %d%n", (double) stations / hashSize, timestamp);
+        gauge("ssgs_months", unsigned(summary, 14, 2), timestamp);
+
+        for (int slot = 0; slot < COMMAND_SLOTS; slot++) {
+            String labels = "{ins=\"" + commandLabel(slot) + "\"}";
+            series("ssgs_commands_total" + labels, unsigned(commands, slot * 4, 4), timestamp);
+            series("ssgs_nvm_written_bytes_total" + labels, unsigned(writes, slot * 4, 4), timestamp);
+        }
+        for (int slot = 0; slot < STATUS_SLOTS; slot++) {
+            series("ssgs_failures_total{sw=\"" + statusLabel(slot) + "\"}", unsigned(failures, slot * 4, 4), timestamp);
+        }
+        out.flush();
+    }
+
+    private void gauge(String name, long value, long timestamp) {
+        out.printf("%s %d %d%n", name, value, timestamp);
+    }
+
+    /**
+     * writes a counter sample, the counters never used are left out
+     */
+    private void series(String name, long value, long timestamp) {
+        if (value != 0) {
+            out.printf("%s %d %d%n", name, value, timestamp);
+        }
+    }
+
+    private static long unsigned(byte[] data, int offset, int length) {
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int interval = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int historyCapacity = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+        OutputStream stream = args.length > 3 ? new FileOutputStream(args[3]) : System.out;
+
+        try (PrintStream out = new PrintStream(stream, false, StandardCharsets.UTF_8)) {
+            CardSession card = new CardSession(Apdus.installParameters(PIN, historyCapacity));
+            MetricsExporter exporter = new MetricsExporter(card, out);
+            byte[] verify = Apdus.verify(PIN);
+            byte[] wrongPin = Apdus.verify(WRONG_PIN);
+
+            for (int i = 0; i < sessions; i++) {
+                String time = String.format("14%02d%02d%02d%02d", 1 + i / 1440 % 12, 1 + i / 1440 / 12 % 28,
+                        i / 60 % 24, i % 60);
+                card.reset();
+                card.select();
+                if (i % 10 == 9) {
+                    card.exchange(wrongPin);
+                }
+                card.exchange(verify);
+                card.exchange(Apdus.update(STATIONS[i % STATIONS.length], time, 1 + i % 40, 160));
+                card.exchange(Apdus.getBalance());
+                card.exchange(Apdus.last(1));
+
+                if ((i + 1) % interval == 0) {
+                    exporter.sample();
+                }
+            }
+        }
+    }
+}
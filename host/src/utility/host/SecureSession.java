@@ -0,0 +1,260 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package utility.host;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Terminal side of the secure channel of the applet (see SecureChannel): the
+ * mutual authentication derives the session keys, then every command is sent
+ * with a C-MAC and every response is checked with its R-MAC. The MACs are
+ * AES-CMAC truncated to 8 bytes.
+ */
+public class SecureSession {
+
+    private static final int CHALLENGE_LENGTH = 8;
+
+    private static final int MAC_LENGTH = 8;
+
+    private static final int BLOCK = 16;
+
+    /**
+     * Derivation labels, as on the card
+     */
+    private static final byte LABEL_CARD_CRYPTOGRAM = 0x00;
+    private static final byte LABEL_HOST_CRYPTOGRAM = 0x01;
+    private static final byte LABEL_COMMAND_KEY = 0x04;
+    private static final byte LABEL_RESPONSE_KEY = 0x06;
+
+    private static final int SW1_BYTES_REMAINING = 0x61;
+
+    /**
+     * Last counter accepted by the card, a new mutual authentication is
+     * needed after it
+     */
+    public static final int MAX_COUNTER = Short.MAX_VALUE;
+
+    private final CardSession card;
+
+    private final Cmac staticMac;
+
+    private final SecureRandom random = new SecureRandom();
+
+    private Cmac commandMac;
+
+    private Cmac responseMac;
+
+    /**
+     * Counter of the last command or GET RESPONSE
+     */
+    private int counter;
+
+    /**
+     * @param card: card with the applet selected
+     * @param key: static AES-128 key of the channel
+     */
+    public SecureSession(CardSession card, byte[] key) {
+        this.card = card;
+        this.staticMac = new Cmac(key);
+    }
+
+    /**
+     * Opens the channel by the mutual authentication, the applet must be
+     * selected
+     *
+     * @throws SecurityException if the card cryptogram is wrong
+     */
+    public void open() {
+        byte[] derivation = new byte[1 + 2 * CHALLENGE_LENGTH];
+        byte[] hostChallenge = new byte[CHALLENGE_LENGTH];
+        random.nextBytes(hostChallenge);
+        byte[] response = card.expectSuccess(Apdus.mutualAuthenticate(Apdus.CHANNEL_INITIALIZE, hostChallenge));
+        System.arraycopy(hostChallenge, 0, derivation, 1, CHALLENGE_LENGTH);
+        System.arraycopy(response, 0, derivation, 1 + CHALLENGE_LENGTH, CHALLENGE_LENGTH);
+
+        derivation[0] = LABEL_COMMAND_KEY;
+        commandMac = new Cmac(staticMac.mac(derivation));
+        derivation[0] = LABEL_RESPONSE_KEY;
+        responseMac = new Cmac(staticMac.mac(derivation));
+
+        derivation[0] = LABEL_CARD_CRYPTOGRAM;
+        byte[] cardCryptogram = Arrays.copyOf(commandMac.mac(derivation), MAC_LENGTH);
+        if (!MessageDigest.isEqual(cardCryptogram, Arrays.copyOfRange(response, CHALLENGE_LENGTH, CHALLENGE_LENGTH + MAC_LENGTH))) {
+            throw new SecurityException("wrong card cryptogram");
+        }
+        derivation[0] = LABEL_HOST_CRYPTOGRAM;
+        card.expectSuccess(Apdus.mutualAuthenticate(Apdus.CHANNEL_AUTHENTICATE,
+                Arrays.copyOf(commandMac.mac(derivation), MAC_LENGTH)));
+        counter = 0;
+    }
+
+    /**
+     * @return counter of the last command, the card closes the channel when
+     * it reaches MAX_COUNTER
+     */
+    public int counter() {
+        return counter;
+    }
+
+    /**
+     * Sends a short command with its C-MAC, and its GET RESPONSE commands
+     * while the card has bytes remaining
+     *
+     * @param command: short command APDU, without C-MAC
+     * @return the whole response data, R-MACs removed, followed by the last
+     * SW
+     * @throws SecurityException if an R-MAC is wrong
+     */
+    public byte[] exchange(byte[] command) {
+        byte[] response = card.transmit(wrap(command));
+        byte[] whole = new byte[0];
+        while (true) {
+            int sw = CardSession.sw(response);
+            if (sw != CardSession.SW_NO_ERROR && (sw >> 8) != SW1_BYTES_REMAINING) {
+                // the errors have no R-MAC
+                return response;
+            }
+            whole = append(whole, unwrap(response));
+            if ((sw >> 8) != SW1_BYTES_REMAINING) {
+                break;
+            }
+            counter++;
+            response = card.transmit(Apdus.getResponse((byte) sw));
+        }
+        byte[] result = Arrays.copyOf(whole, whole.length + 2);
+        result[whole.length] = response[response.length - 2];
+        result[whole.length + 1] = response[response.length - 1];
+        return result;
+    }
+
+    /**
+     * @return the command with the secure messaging CLA bit, its C-MAC and
+     * the Lc including it
+     */
+    public byte[] wrap(byte[] command) {
+        int dataLength = command.length > 5 ? command[4] & 0xFF : 0;
+        boolean hasLe = command.length == 5 || command.length > 5 + dataLength;
+        if (dataLength + MAC_LENGTH > 0xFF) {
+            throw new IllegalArgumentException("data longer than a short APDU with C-MAC");
+        }
+        counter++;
+        byte[] header = Arrays.copyOf(command, 4);
+        header[0] |= Apdus.CLA_SECURE_MESSAGING;
+        byte[] input = new byte[2 + 4 + dataLength];
+        input[0] = (byte) (counter >> 8);
+        input[1] = (byte) counter;
+        System.arraycopy(header, 0, input, 2, 4);
+        System.arraycopy(command, 5, input, 6, dataLength);
+        byte[] mac = commandMac.mac(input);
+
+        byte[] wrapped = new byte[5 + dataLength + MAC_LENGTH + (hasLe ? 1 : 0)];
+        System.arraycopy(header, 0, wrapped, 0, 4);
+        wrapped[4] = (byte) (dataLength + MAC_LENGTH);
+        System.arraycopy(command, 5, wrapped, 5, dataLength);
+        System.arraycopy(mac, 0, wrapped, 5 + dataLength, MAC_LENGTH);
+        if (hasLe) {
+            wrapped[wrapped.length - 1] = command[command.length - 1];
+        }
+        return wrapped;
+    }
+
+    /**
+     * @return response data without its R-MAC
+     */
+    private byte[] unwrap(byte[] response) {
+        int dataLength = response.length - 2 - MAC_LENGTH;
+        if (dataLength < 0) {
+            throw new SecurityException("response without R-MAC");
+        }
+        byte[] input = new byte[2 + dataLength];
+        input[0] = (byte) (counter >> 8);
+        input[1] = (byte) counter;
+        System.arraycopy(response, 0, input, 2, dataLength);
+        byte[] mac = Arrays.copyOf(responseMac.mac(input), MAC_LENGTH);
+        if (!MessageDigest.isEqual(mac, Arrays.copyOfRange(response, dataLength, dataLength + MAC_LENGTH))) {
+            throw new SecurityException("wrong R-MAC");
+        }
+        return Arrays.copyOf(response, dataLength);
+    }
+
+    private static byte[] append(byte[] whole, byte[] part) {
+        byte[] result = Arrays.copyOf(whole, whole.length + part.length);
+        System.arraycopy(part, 0, result, whole.length, part.length);
+        return result;
+    }
+
+    /**
+     * AES-CMAC (NIST SP 800-38B) with a 128 bit key
+     */
+    static final class Cmac {
+
+        private final Cipher cipher;
+
+        private final byte[] k1;
+
+        private final byte[] k2;
+
+        Cmac(byte[] key) {
+            try {
+                cipher = Cipher.getInstance("AES/ECB/NoPadding");
+                cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, 0, BLOCK, "AES"));
+                k1 = shift(cipher.doFinal(new byte[BLOCK]));
+                k2 = shift(k1);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * @return the 16 bytes MAC of a message
+         */
+        byte[] mac(byte[] message) {
+            int blocks = Math.max(1, (message.length + BLOCK - 1) / BLOCK);
+            boolean complete = message.length > 0 && message.length % BLOCK == 0;
+            byte[] x = new byte[BLOCK];
+            try {
+                for (int b = 0; b < blocks; b++) {
+                    for (int i = 0; i < BLOCK; i++) {
+                        int index = b * BLOCK + i;
+                        byte value;
+                        if (index < message.length) {
+                            value = message[index];
+                        } else {
+                            value = index == message.length ? (byte) 0x80 : 0;
+                        }
+                        if (b == blocks - 1) {
+                            value ^= complete ? k1[i] : k2[i];
+                        }
+                        x[i] ^= value;
+                    }
+                    x = cipher.doFinal(x);
+                }
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+            return x;
+        }
+
+        /**
+         * @return the subkey following a subkey (doubling in GF(2^128))
+         */
+        private static byte[] shift(byte[] block) {
+            byte[] result = new byte[BLOCK];
+            for (int i = 0; i < BLOCK; i++) {
+                result[i] = (byte) ((block[i] << 1) | (i + 1 < BLOCK ? (block[i + 1] & 0xFF) >>> 7 : 0));
+            }
+            if ((block[0] & 0x80) != 0) {
+                result[BLOCK - 1] ^= (byte) 0x87;
+            }
+            return result;
+        }
+    }
+}
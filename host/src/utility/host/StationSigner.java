@@ -0,0 +1,144 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package utility.host;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+
+/**
+ * Station side of the station signature of the update messages (see
+ * StationSignature): signs the bytes of a message value before its
+ * signature TLV with the key of the station. The card is installed with the
+ * algorithm (D3) and the verification key (D4) of the signer, see
+ * Apdus.installParametersWithSignature.
+ */
+public final class StationSigner {
+
+    /**
+     * Algorithms of the station signature, with their code in D3
+     */
+    public enum Algorithm {
+        DUMMY(0x00), AES_CMAC(0x01), ECDSA_P256(0x02);
+
+        private final byte code;
+
+        Algorithm(int code) {
+            this.code = (byte) code;
+        }
+
+        public byte code() {
+            return code;
+        }
+    }
+
+    private static final int AES_KEY_LENGTH = 16;
+
+    private static final int EC_COORDINATE_LENGTH = 32;
+
+    private final Algorithm algorithm;
+
+    /**
+     * Key the card verifies with: the AES key or the uncompressed public
+     * point, null for DUMMY
+     */
+    private final byte[] verificationKey;
+
+    private final SecureSession.Cmac cmac;
+
+    private final Signature ecdsa;
+
+    private StationSigner(Algorithm algorithm, byte[] verificationKey, SecureSession.Cmac cmac, Signature ecdsa) {
+        this.algorithm = algorithm;
+        this.verificationKey = verificationKey;
+        this.cmac = cmac;
+        this.ecdsa = ecdsa;
+    }
+
+    /**
+     * @param algorithm: algorithm of the signatures
+     * @return a signer with a new random key
+     */
+    public static StationSigner generate(Algorithm algorithm) {
+        SecureRandom random = new SecureRandom();
+        try {
+            switch (algorithm) {
+                case AES_CMAC:
+                    byte[] key = new byte[AES_KEY_LENGTH];
+                    random.nextBytes(key);
+                    return new StationSigner(algorithm, key, new SecureSession.Cmac(key), null);
+                case ECDSA_P256:
+                    KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+                    generator.initialize(new ECGenParameterSpec("secp256r1"), random);
+                    KeyPair pair = generator.generateKeyPair();
+                    Signature ecdsa = Signature.getInstance("SHA256withECDSA");
+                    ecdsa.initSign(pair.getPrivate(), random);
+                    return new StationSigner(algorithm, uncompressedPoint((ECPublicKey) pair.getPublic()), null, ecdsa);
+                default:
+                    return new StationSigner(algorithm, null, null, null);
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public Algorithm algorithm() {
+        return algorithm;
+    }
+
+    /**
+     * @return key of the card (D4), null for DUMMY
+     */
+    public byte[] verificationKey() {
+        return verificationKey == null ? null : verificationKey.clone();
+    }
+
+    /**
+     * @param data: signed bytes, the message value before the signature TLV
+     * @return the signature: 8 bytes dummy signature, 16 bytes AES-CMAC or
+     * DER encoded ECDSA signature
+     */
+    public byte[] sign(byte[] data) {
+        switch (algorithm) {
+            case AES_CMAC:
+                return cmac.mac(data);
+            case ECDSA_P256:
+                try {
+                    ecdsa.update(data);
+                    return ecdsa.sign();
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException(e);
+                }
+            default:
+                return Apdus.DUMMY_SIGNATURE.clone();
+        }
+    }
+
+    /**
+     * @return the point of a public key, uncompressed (04, x, y)
+     */
+    private static byte[] uncompressedPoint(ECPublicKey key) {
+        byte[] point = new byte[1 + 2 * EC_COORDINATE_LENGTH];
+        point[0] = 0x04;
+        coordinate(key.getW().getAffineX(), point, 1);
+        coordinate(key.getW().getAffineY(), point, 1 + EC_COORDINATE_LENGTH);
+        return point;
+    }
+
+    /**
+     * write a coordinate on EC_COORDINATE_LENGTH bytes, big-endian
+     */
+    private static void coordinate(BigInteger value, byte[] out, int offset) {
+        byte[] bytes = value.toByteArray();
+        int length = Math.min(bytes.length, EC_COORDINATE_LENGTH);
+        System.arraycopy(bytes, bytes.length - length, out, offset + EC_COORDINATE_LENGTH - length, length);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package utility.host;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Check of the applet allocations, run by the test target: every command is
+ * sent many times and the free persistent memory of the card must be the
+ * same at the end, a command must not allocate memory after install.
+ * jCardSim reports a constant free memory, so the objects the applet reaches
+ * must be the same objects too.
+ */
+public class AllocationTest {
+
+    private static final byte[] PIN = {0x01, 0x02, 0x03};
+
+    private static final byte[] RECEIPT_KEY = new byte[16];
+
+    private static final int HISTORY_CAPACITY = 30;
+
+    /**
+     * Number of rounds, each round sends every command once
+     */
+    private static final int ROUNDS = 250;
+
+    public static void main(String[] args) throws Exception {
+        CardSession card = new CardSession(Apdus.installParameters(PIN, HISTORY_CAPACITY, RECEIPT_KEY));
+        card.select();
+        card.expectSuccess(Apdus.verify(PIN));
+
+        long free = card.freePersistentMemory();
+        card.markMemory();
+        Set<Object> objects = reachable(card.applet());
+        for (int round = 0; round < ROUNDS; round++) {
+            sendRound(card, round);
+        }
+        // a new selection saves the session metrics and expires the holds
+        card.reset();
+        card.select();
+        card.expectSuccess(Apdus.verify(PIN));
+
+        expect(card.memoryChanged(), false);
+        expect(card.freePersistentMemory(), free);
+        Set<Object> after = reachable(card.applet());
+        after.removeAll(objects);
+        expect(after.size(), 0);
+        System.out.println("AllocationTest: OK");
+    }
+
+    /**
+     * send every command once, with values moving from round to round
+     */
+    private static void sendRound(CardSession card, int round) {
+        String station = String.format("S%04d", round % 40);
+        String time = String.format("14%02d%02d%02d%02d", 1 + round / 24 % 12, 1 + round % 28, round % 24, round % 60);
+        String month = time.substring(0, 4);
+
+        card.expectSuccess(Apdus.update(station, time, 1, 1));
+        card.expectSuccess(Apdus.purchaseWithReceipt(station, time, 1, 1,
+                round % 2 == 0 ? Apdus.RECEIPT_PLAIN : Apdus.RECEIPT_MAC));
+        byte[] hold = card.expectSuccess(Apdus.preAuthorize(2));
+        int handle = ((hold[0] & 0xFF) << 8) | (hold[1] & 0xFF);
+        if (round % 3 == 0) {
+            card.expectSuccess(Apdus.release(handle));
+        } else {
+            card.expectSuccess(Apdus.capture(handle, station, time, 1, 1, Apdus.RECEIPT_PLAIN));
+        }
+
+        card.expectSuccess(Apdus.getBalance());
+        card.expectSuccess(Apdus.histories(round % HISTORY_CAPACITY, 5));
+        card.expectSuccess(Apdus.historiesByTime(month));
+        card.expectSuccess(Apdus.historiesByStation(station));
+        card.expectSuccess(Apdus.last(1 + round % 5));
+        card.expectSuccess(Apdus.historiesSince(round));
+        card.expectSuccess(Apdus.aggregates(Apdus.AGGREGATES_ALL, null));
+        card.expectSuccess(Apdus.aggregates(Apdus.AGGREGATES_STATION, station));
+        card.expectSuccess(Apdus.aggregates(Apdus.AGGREGATES_MONTH, month));
+        card.expectSuccess(Apdus.checkPurchases(station, null));
+        card.expectSuccess(Apdus.checkPurchases(null, month));
+        card.expectSuccess(Apdus.checkPurchases(station, month));
+        card.expectSuccess(Apdus.query(Apdus.queryCriterion(Apdus.QUERY_STATION_TAG,
+                station.getBytes(StandardCharsets.US_ASCII))));
+        card.expectSuccess(Apdus.changeCounter());
+        card.expectSuccess(Apdus.metrics((byte) (round % 4)));
+        card.expectSuccess(Apdus.memoryStatus(Apdus.MEMORY_GET));
+
+        // a wrong PIN is counted, the right one resets the counter
+        if (round % 10 == 0) {
+            card.exchange(Apdus.verify(new byte[]{0x09, 0x09, 0x09}));
+            card.expectSuccess(Apdus.verify(PIN));
+        }
+    }
+
+    /**
+     * @return the objects reachable from the applet, by identity: the fields
+     * of the applet classes and the elements of arrays are followed, the
+     * objects of the framework (keys, signatures) are taken but not entered
+     */
+    private static Set<Object> reachable(Object applet) throws IllegalAccessException {
+        Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        ArrayDeque<Object> pending = new ArrayDeque<>();
+        pending.add(applet);
+        while (!pending.isEmpty()) {
+            Object object = pending.poll();
+            if (!seen.add(object)) {
+                continue;
+            }
+            Class<?> type = object.getClass();
+            if (type.isArray()) {
+                if (!type.getComponentType().isPrimitive()) {
+                    for (Object element : (Object[]) object) {
+                        if (element != null) {
+                            pending.add(element);
+                        }
+                    }
+                }
+                continue;
+            }
+            for (; type != null && type.getPackageName().startsWith("utility"); type = type.getSuperclass()) {
+                for (Field field : type.getDeclaredFields()) {
+                    if (Modifier.isStatic(field.getModifiers()) || field.getType().isPrimitive()) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    Object value = field.get(object);
+                    if (value != null) {
+                        pending.add(value);
+                    }
+                }
+            }
+        }
+        return seen;
+    }
+
+    private static void expect(Object actual, Object expected) {
+        if (!expected.equals(actual)) {
+            throw new AssertionError(String.format("expected %s, got %s", expected, actual));
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package utility.host;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Checks of ColumnarExporter, run by the test target: the longest CSV lines,
+ * amounts and prices of 0x80000000 and above written unsigned.
+ */
+public class ColumnarExporterTest {
+
+    public static void main(String[] args) throws Exception {
+        longestLine();
+        unsignedFromDump();
+        System.out.println("ColumnarExporterTest: OK");
+    }
+
+    /**
+     * the widest values of every column fit in the line buffer
+     */
+    static void longestLine() throws Exception {
+        HistoryBatch batch = new HistoryBatch(1);
+        batch.add(Integer.MAX_VALUE, HistoryBatch.packStation("S0001".getBytes(StandardCharsets.US_ASCII)),
+                9912312359L, 0xFFFFFFFF, 0x80000000);
+        List<String> lines = writeCsv(batch);
+        expect(lines.get(1), "2147483647,S0001,9912312359,4294967295,2147483648");
+        expect(lines.get(1).length() + 1 <= ColumnarExporter.CSV_LINE_LENGTH, true);
+    }
+
+    /**
+     * a record of the card with the high bit of the amount and the price set
+     */
+    static void unsignedFromDump() throws Exception {
+        ByteArrayOutputStream value = new ByteArrayOutputStream();
+        Apdus.tlv(value, HistoryParser.PURCHASE_INFO_TAG, Apdus.purchaseInfo("S0002", "1404031200", 0xFFFFFFFF, 0x80000001));
+        ByteArrayOutputStream dump = new ByteArrayOutputStream();
+        Apdus.tlv(dump, HistoryParser.PURCHASE_HISTORIES_TAG, value.toByteArray());
+
+        ByteBuffer buffer = ByteBuffer.wrap(dump.toByteArray());
+        HistoryBatch batch = new HistoryBatch(1);
+        HistoryParser.parse(buffer, HistoryParser.index(buffer)[0], 0, batch);
+        expect(writeCsv(batch).get(1), "0,S0002,1404031200,4294967295,2147483649");
+    }
+
+    private static List<String> writeCsv(HistoryBatch batch) throws Exception {
+        Path file = Files.createTempFile("columnar", ".csv");
+        try {
+            ColumnarExporter.writeCsv(batch, file);
+            return Files.readAllLines(file, StandardCharsets.US_ASCII);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static void expect(Object actual, Object expected) {
+        if (!expected.equals(actual)) {
+            throw new AssertionError(String.format("expected %s, got %s", expected, actual));
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package utility;
+
+import javacard.framework.Util;
+import javacardx.framework.util.intx.JCint;
+
+/**
+ * Balance and cost arithmetic on 32 bit values, stored big-endian (two's
+ * complement) in byte arrays.
+ *
+ * The engine is chosen at build time with SHORT_ARITHMETIC: false uses int
+ * (JCint), true uses only short arithmetic, for cards without the optional
+ * int support or with a slow one. The branch which is not chosen is removed
+ * by the compiler, so a short-only build has no int bytecode (convert it
+ * without int support). Both engines give the same results. The card build
+ * compiles this source as it is, edit the constant to change its engine; the
+ * host build sets it from the short.arithmetic property (see host/build.xml).
+ *
+ * Sums of many values are kept wide: the 4 bytes of a value preceded by 2
+ * bytes counting its carries, an unsigned 48 bit value.
+ */
+class Arithmetic {
+
+    /**
+     * true to build the short-only engine, false to build the int engine
+     */
+    final static boolean SHORT_ARITHMETIC = false;
+
+    /**
+     * Length of a value
+     */
+    final static short INT_LENGTH = 4;
+
+    /**
+     * Length of a wide value
+     */
+    final static short WIDE_LENGTH = 2 + INT_LENGTH;
+
+    /**
+     * Number of bytes (digits) of a value
+     */
+    final static short DIGITS = INT_LENGTH;
+
+    /**
+     * multiply two non-negative values, the result must be less than 2^31
+     *
+     * @param a: buffer containing the first value
+     * @param aOffset: offset of the first value
+     * @param b: buffer containing the second value
+     * @param bOffset: offset of the second value
+     * @param result: output buffer
+     * @param resultOffset: output offset
+     * @return false if a value is negative or the result overflows, the
+     * output is then undefined
+     */
+    static boolean multiply(byte[] a, short aOffset, byte[] b, short bOffset, byte[] result, short resultOffset) {
+        if (SHORT_ARITHMETIC) {
+            if (a[aOffset] < 0 || b[bOffset] < 0) {
+                return false;
+            }
+
+            // schoolbook multiplication on bytes (digits): the product of the
+            // digits i and j is added to the result (high:low) shifted by
+            // i + j bytes, the digits 0 are skipped
+            short high = 0;
+            short low = 0;
+            for (short i = 0; i < DIGITS; i++) {
+                short x = digit(a, aOffset, i);
+                for (short j = 0; x != 0 && j < DIGITS; j++) {
+                    short y = digit(b, bOffset, j);
+                    if (y == 0) {
+                        continue;
+                    }
+                    // the product is unsigned, on the 16 bits of the short
+                    short product = (short) (x * y);
+                    short addLow = 0;
+                    short addHigh = 0;
+                    switch ((short) (i + j)) {
+                        case 0:
+                            addLow = product;
+                            break;
+                        case 1:
+                            addLow = (short) (product << 8);
+                            addHigh = (short) ((short) (product >> 8) & 0xFF);
+                            break;
+                        case 2:
+                            addHigh = product;
+                            break;
+                        case 3:
+                            if ((short) (product & (short) 0xFF00) != 0) {
+                                return false;
+                            }
+                            addHigh = (short) (product << 8);
+                            break;
+                        default:
+                            return false;
+                    }
+
+                    short sum = (short) (low + addLow);
+                    if (lessUnsigned(sum, low)) {
+                        addHigh++;
+                    }
+                    low = sum;
+                    sum = (short) (high + addHigh);
+                    if (lessUnsigned(sum, high)) {
+                        return false;
+                    }
+                    high = sum;
+                }
+            }
+            if (high < 0) {
+                return false;
+            }
+            Util.setShort(result, resultOffset, high);
+            Util.setShort(result, (short) (resultOffset + 2), low);
+            return true;
+        } else {
+            int x = JCint.getInt(a, aOffset);
+            int y = JCint.getInt(b, bOffset);
+            if (x < 0 || y < 0 || (y != 0 && x > 0x7FFFFFFF / y)) {
+                return false;
+            }
+            JCint.setInt(result, resultOffset, x * y);
+            return true;
+        }
+    }
+
+    /**
+     * @return digit i of a value (unsigned), the digit 0 is the least
+     * significant byte
+     */
+    private static short digit(byte[] value, short offset, short i) {
+        return (short) (value[(short) (offset + DIGITS - 1 - i)] & 0xFF);
+    }
+
+    /**
+     * @return true if x is less than y, both read as unsigned 16 bit values
+     */
+    private static boolean lessUnsigned(short x, short y) {
+        return (short) (x ^ (short) 0x8000) < (short) (y ^ (short) 0x8000);
+    }
+
+    /**
+     * compare two values
+     *
+     * @return negative, zero or positive if the first value is less than,
+     * equal to or greater than the second one
+     */
+    static short compare(byte[] a, short aOffset, byte[] b, short bOffset) {
+        if (SHORT_ARITHMETIC) {
+            short high = Util.getShort(a, aOffset);
+            short otherHigh = Util.getShort(b, bOffset);
+            if (high != otherHigh) {
+                return high < otherHigh ? (short) -1 : (short) 1;
+            }
+
+            // the low halves are compared unsigned
+            short low = Util.getShort(a, (short) (aOffset + 2));
+            short otherLow = Util.getShort(b, (short) (bOffset + 2));
+            if (low == otherLow) {
+                return 0;
+            }
+            return lessUnsigned(low, otherLow) ? (short) -1 : (short) 1;
+        } else {
+            int x = JCint.getInt(a, aOffset);
+            int y = JCint.getInt(b, bOffset);
+            return x < y ? (short) -1 : (x == y ? (short) 0 : (short) 1);
+        }
+    }
+
+    /**
+     * add two values, modulo 2^32
+     *
+     * @param result: output buffer, may be the buffer of a value at the same
+     * offset
+     * @param resultOffset: output offset
+     */
+    static void add(byte[] a, short aOffset, byte[] b, short bOffset, byte[] result, short resultOffset) {
+        if (SHORT_ARITHMETIC) {
+            short low = Util.getShort(a, (short) (aOffset + 2));
+            short sum = (short) (low + Util.getShort(b, (short) (bOffset + 2)));
+
+            // carry when the unsigned sum of the low halves wraps
+            short carry = (short) (lessUnsigned(sum, low) ? 1 : 0);
+            Util.setShort(result, resultOffset, (short) (Util.getShort(a, aOffset) + Util.getShort(b, bOffset) + carry));
+            Util.setShort(result, (short) (resultOffset + 2), sum);
+        } else {
+            JCint.setInt(result, resultOffset, JCint.getInt(a, aOffset) + JCint.getInt(b, bOffset));
+        }
+    }
+
+    /**
+     * subtract a value from an other one, modulo 2^32
+     *
+     * @param result: output buffer, may be the buffer of a value at the same
+     * offset
+     * @param resultOffset: output offset
+     */
+    static void subtract(byte[] a, short aOffset, byte[] b, short bOffset, byte[] result, short resultOffset) {
+        if (SHORT_ARITHMETIC) {
+            short low = Util.getShort(a, (short) (aOffset + 2));
+            short otherLow = Util.getShort(b, (short) (bOffset + 2));
+
+            // borrow when the low half is less than the other one (unsigned)
+            short borrow = (short) (lessUnsigned(low, otherLow) ? 1 : 0);
+            Util.setShort(result, resultOffset, (short) (Util.getShort(a, aOffset) - Util.getShort(b, bOffset) - borrow));
+            Util.setShort(result, (short) (resultOffset + 2), (short) (low - otherLow));
+        } else {
+            JCint.setInt(result, resultOffset, JCint.getInt(a, aOffset) - JCint.getInt(b, bOffset));
+        }
+    }
+
+    /**
+     * add a non-negative value to a wide value
+     *
+     * @param wide: buffer containing the wide value, updated in place
+     * @param wideOffset: offset of the wide value
+     * @param b: buffer containing the value
+     * @param bOffset: offset of the value
+     * @return number of bytes written
+     */
+    static short addWide(byte[] wide, short wideOffset, byte[] b, short bOffset) {
+        short lowOffset = (short) (wideOffset + 2);
+        add(wide, lowOffset, b, bOffset, wide, lowOffset);
+
+        // the low part wrapped if it is now less than the value added
+        if (!lessUnsigned(wide, lowOffset, b, bOffset)) {
+            return INT_LENGTH;
+        }
+        Util.setShort(wide, wideOffset, (short) (Util.getShort(wide, wideOffset) + 1));
+        return WIDE_LENGTH;
+    }
+
+    /**
+     * subtract a non-negative value from a wide value, not less than it
+     *
+     * @param wide: buffer containing the wide value, updated in place
+     * @param wideOffset: offset of the wide value
+     * @param b: buffer containing the value
+     * @param bOffset: offset of the value
+     * @return number of bytes written
+     */
+    static short subtractWide(byte[] wide, short wideOffset, byte[] b, short bOffset) {
+        short lowOffset = (short) (wideOffset + 2);
+        boolean borrow = lessUnsigned(wide, lowOffset, b, bOffset);
+        subtract(wide, lowOffset, b, bOffset, wide, lowOffset);
+        if (!borrow) {
+            return INT_LENGTH;
+        }
+        Util.setShort(wide, wideOffset, (short) (Util.getShort(wide, wideOffset) - 1));
+        return WIDE_LENGTH;
+    }
+
+    /**
+     * @return true if the first value is less than the second one, both read
+     * as unsigned 32 bit values
+     */
+    private static boolean lessUnsigned(byte[] a, short aOffset, byte[] b, short bOffset) {
+        short high = Util.getShort(a, aOffset);
+        short otherHigh = Util.getShort(b, bOffset);
+        if (high != otherHigh) {
+            return lessUnsigned(high, otherHigh);
+        }
+        return lessUnsigned(Util.getShort(a, (short) (aOffset + 2)), Util.getShort(b, (short) (bOffset + 2)));
+    }
+}
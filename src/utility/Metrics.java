@@ -0,0 +1,296 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package utility;
+
+import javacard.framework.ISO7816;
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+/**
+ * Health counters of the applet: commands per INS, persistent bytes written
+ * per INS and failures per SW, 4 bytes each, since install.
+ *
+ * Counting a command must not slow it down, so all the counters are counted
+ * first in transient (CLEAR_ON_RESET) session counters: a command, even one
+ * which wrote persistent memory, adds no write and no transaction of its
+ * own. They are added to the persistent counters, in one transaction, when
+ * a session counter is full or when the applet is deselected. The counts of
+ * a session torn before are lost. The counters do not count their own
+ * writes.
+ *
+ * The counters are sent as pages of 4 bytes big-endian values: commands and
+ * bytes written have one value for each command slot (see commandSlot),
+ * failures one value for each status slot (see statusSlot). The values sent
+ * include the session counters.
+ */
+class Metrics {
+
+    /**
+     * Length of a counter
+     */
+    final static short COUNTER_LENGTH = 4;
+
+    /**
+     * Number of command slots: GET RESPONSE, INS 0x01 to 0x16, other INS
+     */
+    final static short COMMAND_SLOTS = 24;
+
+    /**
+     * Command slot of GET RESPONSE
+     */
+    final static short RESPONSE_SLOT = 0;
+
+    /**
+     * Command slot of the INS without a slot of their own
+     */
+    final static short OTHER_COMMAND_SLOT = COMMAND_SLOTS - 1;
+
+    /**
+     * First SW of the applet (SW_VERIFICATION_FAILED), the SW from it get
+     * the status slots from 1
+     */
+    final static short APPLICATION_STATUS_FIRST = 0x6300;
+
+    /**
+     * Number of SW of the applet with a status slot (63 00 to 63 0F)
+     */
+    final static short APPLICATION_STATUSES = 16;
+
+    /**
+     * SW of the JCRE and ISO 7816 with a status slot, after the ones of the
+     * applet
+     */
+    private final static short[] ISO_STATUSES = {ISO7816.SW_WRONG_LENGTH, ISO7816.SW_COMMAND_CHAINING_NOT_SUPPORTED,
+        ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED, ISO7816.SW_CONDITIONS_NOT_SATISFIED, ISO7816.SW_WRONG_DATA,
+        ISO7816.SW_INCORRECT_P1P2, ISO7816.SW_WRONG_P1P2, ISO7816.SW_INS_NOT_SUPPORTED, ISO7816.SW_CLA_NOT_SUPPORTED,
+        ISO7816.SW_UNKNOWN};
+
+    /**
+     * Value at which a session counter is added to the persistent one
+     */
+    final static short SESSION_LIMIT = 0x7FFF;
+
+    /**
+     * Commands since install, COMMAND_SLOTS counters
+     */
+    private byte[] commands;
+
+    /**
+     * Bytes written to persistent memory since install, COMMAND_SLOTS
+     * counters
+     */
+    private byte[] writes;
+
+    /**
+     * Failures since install, statusSlots() counters
+     */
+    private byte[] failures;
+
+    /**
+     * Commands, bytes written and failures not yet added to the persistent
+     * counters
+     */
+    private short[] sessionCommands;
+    private short[] sessionWrites;
+    private short[] sessionFailures;
+
+    /**
+     * Creates the counters, all 0
+     */
+    Metrics() {
+        commands = new byte[(short) (COMMAND_SLOTS * COUNTER_LENGTH)];
+        writes = new byte[(short) (COMMAND_SLOTS * COUNTER_LENGTH)];
+        failures = new byte[(short) (statusSlots() * COUNTER_LENGTH)];
+        sessionCommands = JCSystem.makeTransientShortArray(COMMAND_SLOTS, JCSystem.CLEAR_ON_RESET);
+        sessionWrites = JCSystem.makeTransientShortArray(COMMAND_SLOTS, JCSystem.CLEAR_ON_RESET);
+        sessionFailures = JCSystem.makeTransientShortArray(statusSlots(), JCSystem.CLEAR_ON_RESET);
+    }
+
+    /**
+     * @return number of status slots: other SW, SW of the applet,
+     * ISO_STATUSES (not a constant, a static field of a card cannot be
+     * initialized from an array)
+     */
+    static short statusSlots() {
+        return (short) (1 + APPLICATION_STATUSES + ISO_STATUSES.length);
+    }
+
+    /**
+     * @return command slot of an INS: RESPONSE_SLOT for GET RESPONSE, the INS
+     * for INS 0x01 to 0x16, OTHER_COMMAND_SLOT for the others
+     */
+    static short commandSlot(byte ins) {
+        if (ins == SelfServiceGasStation.GET_RESPONSE) {
+            return RESPONSE_SLOT;
+        }
+        return ins > 0 && ins < OTHER_COMMAND_SLOT ? ins : OTHER_COMMAND_SLOT;
+    }
+
+    /**
+     * @return status slot of a failure SW: 1 to APPLICATION_STATUSES for the
+     * SW of the applet from APPLICATION_STATUS_FIRST, then the ISO_STATUSES
+     * in their order, 0 for the others
+     */
+    static short statusSlot(short sw) {
+        short slot = (short) (sw - APPLICATION_STATUS_FIRST);
+        if (slot >= 0 && slot < APPLICATION_STATUSES) {
+            return (short) (slot + 1);
+        }
+        for (slot = 0; slot < (short) ISO_STATUSES.length; slot++) {
+            if (ISO_STATUSES[slot] == sw) {
+                return (short) (slot + 1 + APPLICATION_STATUSES);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * count a command once it is done. The persistent counters are updated
+     * in a transaction of their own, the command's transaction must be over.
+     *
+     * @param ins: INS of the command
+     * @param sw: SW of the command, a SW 90 00 or 61 XX is not a failure
+     * @param written: number of bytes the command wrote to persistent memory
+     * (unsigned)
+     */
+    void count(byte ins, short sw, short written) {
+        short slot = commandSlot(ins);
+        boolean full = ++sessionCommands[slot] == SESSION_LIMIT;
+        if (sw != ISO7816.SW_NO_ERROR && (short) (sw & (short) 0xFF00) != ISO7816.SW_BYTES_REMAINING_00) {
+            full |= ++sessionFailures[statusSlot(sw)] == SESSION_LIMIT;
+        }
+        if (written < 0 || written > (short) (SESSION_LIMIT - sessionWrites[slot])) {
+            // more than the session counter can take: the bytes are added
+            // to the persistent counter with the session counters
+            save(slot, written);
+            return;
+        }
+        sessionWrites[slot] += written;
+        if (full || sessionWrites[slot] == SESSION_LIMIT) {
+            save(slot, (short) 0);
+        }
+    }
+
+    /**
+     * add the session counters to the persistent ones in a transaction of
+     * its own, nothing is written when the session counted no command. It
+     * must not be called within another transaction.
+     */
+    void save() {
+        save(OTHER_COMMAND_SLOT, (short) 0);
+    }
+
+    /**
+     * add the session counters and the bytes written by a command to the
+     * persistent counters, in one transaction. Nothing is written, and no
+     * transaction is opened, when there is nothing to add.
+     *
+     * @param slot: command slot of the command
+     * @param written: number of bytes written by the command (unsigned)
+     */
+    private void save(short slot, short written) {
+        if (written == 0 && sessionEmpty()) {
+            return;
+        }
+        JCSystem.beginTransaction();
+        if (written != 0) {
+            add(writes, (short) (slot * COUNTER_LENGTH), written);
+        }
+        for (short i = 0; i < COMMAND_SLOTS; i++) {
+            if (sessionCommands[i] != 0) {
+                add(commands, (short) (i * COUNTER_LENGTH), sessionCommands[i]);
+                sessionCommands[i] = 0;
+            }
+            if (sessionWrites[i] != 0) {
+                add(writes, (short) (i * COUNTER_LENGTH), sessionWrites[i]);
+                sessionWrites[i] = 0;
+            }
+        }
+        for (short i = 0; i < (short) sessionFailures.length; i++) {
+            if (sessionFailures[i] != 0) {
+                add(failures, (short) (i * COUNTER_LENGTH), sessionFailures[i]);
+                sessionFailures[i] = 0;
+            }
+        }
+        JCSystem.commitTransaction();
+    }
+
+    /**
+     * @return true if all the session counters are 0
+     */
+    private boolean sessionEmpty() {
+        for (short i = 0; i < COMMAND_SLOTS; i++) {
+            if (sessionCommands[i] != 0 || sessionWrites[i] != 0) {
+                return false;
+            }
+        }
+        for (short i = 0; i < (short) sessionFailures.length; i++) {
+            if (sessionFailures[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * write the command counters
+     *
+     * @param buffer: output buffer
+     * @param offset: output offset
+     * @return offset following the counters
+     */
+    short encodeCommands(byte[] buffer, short offset) {
+        return encodeCounters(commands, sessionCommands, buffer, offset);
+    }
+
+    /**
+     * write the counters of bytes written to persistent memory
+     *
+     * @param buffer: output buffer
+     * @param offset: output offset
+     * @return offset following the counters
+     */
+    short encodeWrites(byte[] buffer, short offset) {
+        return encodeCounters(writes, sessionWrites, buffer, offset);
+    }
+
+    /**
+     * write the failure counters
+     *
+     * @param buffer: output buffer
+     * @param offset: output offset
+     * @return offset following the counters
+     */
+    short encodeFailures(byte[] buffer, short offset) {
+        return encodeCounters(failures, sessionFailures, buffer, offset);
+    }
+
+    /**
+     * write persistent counters plus their session counters
+     *
+     * @param session: session counters
+     */
+    private short encodeCounters(byte[] counters, short[] session, byte[] buffer, short offset) {
+        short length = (short) counters.length;
+        Util.arrayCopyNonAtomic(counters, (short) 0, buffer, offset, length);
+        for (short i = 0; i < (short) session.length; i++) {
+            add(buffer, (short) (offset + i * COUNTER_LENGTH), session[i]);
+        }
+        return (short) (offset + length);
+    }
+
+    /**
+     * add an unsigned 16 bit value to a counter, modulo 2^32
+     */
+    private static void add(byte[] counters, short offset, short value) {
+        short low = Util.getShort(counters, (short) (offset + 2));
+        short sum = (short) (low + value);
+        if ((short) (sum ^ (short) 0x8000) < (short) (low ^ (short) 0x8000)) {
+            Util.setShort(counters, offset, (short) (Util.getShort(counters, offset) + 1));
+        }
+        Util.setShort(counters, (short) (offset + 2), sum);
+    }
+}
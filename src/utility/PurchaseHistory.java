@@ -0,0 +1,1476 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package utility;
+
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+/**
+ * Fixed-capacity circular store of purchase records. The store is allocated
+ * once at install time, every append is O(1) and overwrites the oldest record
+ * when the store is full.
+ *
+ * Records are fixed-size and compact: a 1-byte station code, the buy time as
+ * 5 BCD bytes, which compare in time order, and the amount and the price. The
+ * sequence number of a record is not stored, it follows from the position of
+ * the record. Records are turned back into purchase info TLVs only when they
+ * are sent.
+ *
+ * Station codes index a station dictionary, which holds the station ID once
+ * for all its records. Each entry points to the oldest and the most recent
+ * record of the station and every record links to the next record of the
+ * same station, so a station query only touches the matching records. An
+ * open-addressed hash table gives the code of a station ID, an entry is freed
+ * when the last record of its station is overwritten.
+ *
+ * A time index keeps the slots sorted by buy time for range queries.
+ *
+ * Queries open a cursor (a short array, usually transient) which gives the
+ * matching slots one at a time, so the records are encoded only when they are
+ * sent.
+ *
+ * The store keeps the number of records, the total amount and the total cost
+ * (amount * price) of the records it holds: for all of them, for each station
+ * (in its station table entry) and for each month (in a month table). They
+ * are added when a record is appended and subtracted when it is overwritten.
+ *
+ * Every write to the persistent fields adds the number of bytes written to a
+ * counter (a transient short array given at creation), queries write none.
+ */
+class PurchaseHistory {
+
+    /**
+     * Length of the station ID value
+     */
+    final static short STATION_ID_LENGTH = 5;
+
+    /**
+     * Length of the buy time value (10 ASCII digits: YYMMDDhhmm)
+     */
+    final static short BUY_TIME_LENGTH = 10;
+
+    /**
+     * Length of the stored buy time (BCD, 2 digits per byte)
+     */
+    final static short PACKED_TIME_LENGTH = BUY_TIME_LENGTH / 2;
+
+    /**
+     * Length of the amount and price values
+     */
+    final static short INT_LENGTH = 4;
+
+    /**
+     * Length of the record sequence number
+     */
+    final static short SEQUENCE_LENGTH = 4;
+
+    /**
+     * Offsets of the fields inside a record
+     */
+    final static short STATION_CODE_OFFSET = 0;
+    final static short BUY_TIME_OFFSET = STATION_CODE_OFFSET + 1;
+    final static short AMOUNT_OFFSET = BUY_TIME_OFFSET + PACKED_TIME_LENGTH;
+    final static short PRICE_OFFSET = AMOUNT_OFFSET + INT_LENGTH;
+
+    /**
+     * Size in bytes of one stored record
+     */
+    final static short RECORD_SIZE = PRICE_OFFSET + INT_LENGTH;
+
+    /**
+     * Tags of the purchase info TLV written in responses
+     */
+    final static byte PURCHASE_HISTORIES_TAG = (byte) 0xE1;
+    final static byte PURCHASE_INFO_TAG = (byte) 0xE2;
+    final static byte STATION_ID_TAG = (byte) 0xC4;
+    final static byte BUY_TIME_TAG = (byte) 0xC5;
+    final static byte AMOUNT_TAG = (byte) 0xC6;
+    final static byte PRICE_TAG = (byte) 0xC7;
+    final static byte SEQUENCE_TAG = (byte) 0xC9;
+
+    /**
+     * Length of the value of an encoded purchase info TLV
+     */
+    final static short PURCHASE_INFO_VALUE_LENGTH = (2 + STATION_ID_LENGTH) + (2 + BUY_TIME_LENGTH) + (2 + INT_LENGTH) + (2 + INT_LENGTH);
+
+    /**
+     * Size in bytes of one encoded purchase info TLV
+     */
+    final static short PURCHASE_INFO_TLV_SIZE = 2 + PURCHASE_INFO_VALUE_LENGTH;
+
+    /**
+     * Value of an empty station hash table entry, the other entries hold the
+     * station code plus one
+     */
+    final static byte STATION_HASH_EMPTY = 0;
+
+    /**
+     * Offsets of the fields inside a station dictionary entry. The oldest
+     * record field of a free entry holds the code of the next free entry.
+     */
+    final static short STATION_KEY_OFFSET = 0;
+    final static short STATION_OLDEST_OFFSET = STATION_KEY_OFFSET + STATION_ID_LENGTH;
+    final static short STATION_NEWEST_OFFSET = STATION_OLDEST_OFFSET + 2;
+    final static short STATION_COUNT_OFFSET = STATION_NEWEST_OFFSET + 2;
+    final static short STATION_TOTALS_OFFSET = STATION_COUNT_OFFSET + 2;
+
+    /**
+     * Size in bytes of totals: amount and cost, wide values of 6 bytes each
+     * (see Arithmetic), which the sums of capacity records cannot overflow
+     */
+    final static short TOTALS_SIZE = 2 * Arithmetic.WIDE_LENGTH;
+
+    /**
+     * Size in bytes of one station dictionary entry
+     */
+    final static short STATION_ENTRY_SIZE = STATION_TOTALS_OFFSET + TOTALS_SIZE;
+
+    /**
+     * Offsets of the fields inside a month table entry: month (the 2 first
+     * bytes of the packed buy time, YYMM), number of records and totals
+     */
+    final static short MONTH_KEY_OFFSET = 0;
+    final static short MONTH_KEY_LENGTH = 2;
+    final static short MONTH_COUNT_OFFSET = MONTH_KEY_OFFSET + MONTH_KEY_LENGTH;
+    final static short MONTH_TOTALS_OFFSET = MONTH_COUNT_OFFSET + 2;
+
+    /**
+     * Size in bytes of one month table entry
+     */
+    final static short MONTH_ENTRY_SIZE = MONTH_TOTALS_OFFSET + TOTALS_SIZE;
+
+    /**
+     * Size in bytes of the aggregates of a query: number of records (2
+     * bytes) and totals
+     */
+    final static short AGGREGATES_SIZE = 2 + TOTALS_SIZE;
+
+    /**
+     * Bytes the transaction buffer takes for a logged write besides the data
+     * written (address and length of the write). It depends on the card,
+     * this is an estimate on the safe side.
+     */
+    final static short LOG_ENTRY_OVERHEAD = 6;
+
+    /**
+     * Most writes and bytes written by an append apart from the shifts of
+     * the time index and of the station hash table: removal of the oldest
+     * record from its station (8, 16 bytes), its month (7, 18) and the
+     * totals (6, 12), the time start (2, 4), a new station (4, 10), the
+     * record (4, 14), its station (10, 20), its month (7, 18), the totals (6,
+     * 12), the time index slot, the sequence number, the head and the count
+     * (7, 10)
+     */
+    final static short APPEND_WRITES = 61;
+    final static short APPEND_WRITE_BYTES = 134;
+
+    /**
+     * Value of a record link when there is no next record
+     */
+    final static short NO_SLOT = -1;
+
+    /**
+     * Indexes of the cursor fields
+     */
+    final static short CURSOR_KIND = 0;
+    final static short CURSOR_POSITION = 1;
+    final static short CURSOR_REMAINING = 2;
+
+    /**
+     * Number of cursor fields
+     */
+    final static short CURSOR_SIZE = 3;
+
+    /**
+     * Cursor kinds: records in storage order from a slot, records in reverse
+     * storage order from a slot, positions of the time index, station chain
+     * from a slot, positions of the query matches list forward and backward
+     */
+    final static short CURSOR_FORWARD = 1;
+    final static short CURSOR_BACKWARD = 2;
+    final static short CURSOR_TIME = 3;
+    final static short CURSOR_STATION = 4;
+    final static short CURSOR_MATCHES = 5;
+    final static short CURSOR_MATCHES_BACKWARD = 6;
+
+    /**
+     * Layout of a query filter, see openQuery: criteria flags, order, limit
+     * (2 bytes), packed time bounds, amount bounds, price bounds, number of
+     * station codes and the station codes (1 byte each). The bounds are
+     * inclusive.
+     */
+    final static short FILTER_FLAGS = 0;
+    final static short FILTER_ORDER = 1;
+    final static short FILTER_LIMIT = 2;
+    final static short FILTER_TIME_LOW = 4;
+    final static short FILTER_TIME_HIGH = FILTER_TIME_LOW + PACKED_TIME_LENGTH;
+    final static short FILTER_AMOUNT_LOW = FILTER_TIME_HIGH + PACKED_TIME_LENGTH;
+    final static short FILTER_AMOUNT_HIGH = FILTER_AMOUNT_LOW + INT_LENGTH;
+    final static short FILTER_PRICE_LOW = FILTER_AMOUNT_HIGH + INT_LENGTH;
+    final static short FILTER_PRICE_HIGH = FILTER_PRICE_LOW + INT_LENGTH;
+    final static short FILTER_STATION_COUNT = FILTER_PRICE_HIGH + INT_LENGTH;
+    final static short FILTER_STATIONS = FILTER_STATION_COUNT + 1;
+
+    /**
+     * Maximum number of stations of a query filter
+     */
+    final static short MAX_FILTER_STATIONS = 8;
+
+    /**
+     * Size of a query filter
+     */
+    final static short FILTER_SIZE = FILTER_STATIONS + MAX_FILTER_STATIONS;
+
+    /**
+     * Criteria flags of a query filter: the station is one of the station
+     * codes, the buy time, the amount, the price is within its bounds
+     */
+    final static byte FILTER_STATION = (byte) 0x01;
+    final static byte FILTER_TIME = (byte) 0x02;
+    final static byte FILTER_AMOUNT = (byte) 0x04;
+    final static byte FILTER_PRICE = (byte) 0x08;
+
+    /**
+     * Orders of a query: storage order oldest or newest first, buy time order
+     * earliest or latest first
+     */
+    final static byte ORDER_OLDEST = (byte) 0x00;
+    final static byte ORDER_NEWEST = (byte) 0x01;
+    final static byte ORDER_TIME = (byte) 0x02;
+    final static byte ORDER_TIME_REVERSE = (byte) 0x03;
+
+    /**
+     * Record storage, capacity * RECORD_SIZE bytes
+     */
+    private byte[] records;
+
+    /**
+     * Maximum number of records kept
+     */
+    private short capacity;
+
+    /**
+     * Slot the next record is written to, the most recent record is in the
+     * slot before
+     */
+    private short head;
+
+    /**
+     * Number of records currently stored
+     */
+    private short count;
+
+    /**
+     * Sequence number given to the next record (big-endian)
+     */
+    private byte[] nextSequence;
+
+    /**
+     * Station dictionary: capacity entries, indexed by station code
+     */
+    private byte[] stationTable;
+
+    /**
+     * Code of the first free station dictionary entry, NO_SLOT if none
+     */
+    private short freeStation;
+
+    /**
+     * Station hash table: open-addressed table of stationHashSize entries
+     * giving the station code of a station ID, with linear probing
+     */
+    private byte[] stationHash;
+
+    /**
+     * Number of entries of the station hash table (power of 2)
+     */
+    private short stationHashSize;
+
+    /**
+     * For each slot, slot of the next record of the same station
+     */
+    private short[] stationLinks;
+
+    /**
+     * Time index: slots sorted by buy time, stored as a circular array
+     * starting at timeStart
+     */
+    private short[] timeIndex;
+
+    /**
+     * Position of the earliest record in the time index
+     */
+    private short timeStart;
+
+    /**
+     * Totals of all the records
+     */
+    private byte[] totals;
+
+    /**
+     * Month table: one entry for each month of the stored records, the first
+     * monthCount entries are used
+     */
+    private byte[] monthTable;
+
+    /**
+     * Number of used entries of the month table
+     */
+    private short monthCount;
+
+    /**
+     * Number of bytes written to persistent memory, at index 0
+     */
+    private short[] writeCounter;
+
+    /**
+     * Cost of the record being added to or subtracted from totals
+     */
+    private byte[] costSpace;
+
+    /**
+     * Slots of the records matching the last query (1 byte each), in the
+     * order of the index walked
+     */
+    private byte[] matchSlots;
+
+    /**
+     * Creates an empty store
+     *
+     * @param capacity: maximum number of records kept
+     * @param writeCounter: counter of the bytes written to persistent memory
+     */
+    PurchaseHistory(short capacity, short[] writeCounter) {
+        this.capacity = capacity;
+        this.writeCounter = writeCounter;
+        records = new byte[(short) (capacity * RECORD_SIZE)];
+        nextSequence = new byte[SEQUENCE_LENGTH];
+
+        // there are at most as many stations as records, keep the load factor
+        // of the station hash table under 1/2
+        stationTable = new byte[(short) (capacity * STATION_ENTRY_SIZE)];
+        stationHashSize = 4;
+        while (stationHashSize < (short) (capacity * 2)) {
+            stationHashSize <<= 1;
+        }
+        stationHash = new byte[stationHashSize];
+        freeStations();
+        stationLinks = new short[capacity];
+        timeIndex = new short[capacity];
+
+        // there are at most as many months as records
+        totals = new byte[TOTALS_SIZE];
+        monthTable = new byte[(short) (capacity * MONTH_ENTRY_SIZE)];
+        costSpace = JCSystem.makeTransientByteArray(INT_LENGTH, JCSystem.CLEAR_ON_DESELECT);
+        matchSlots = JCSystem.makeTransientByteArray(capacity, JCSystem.CLEAR_ON_DESELECT);
+    }
+
+    /**
+     * @return number of records currently stored
+     */
+    short size() {
+        return count;
+    }
+
+    /**
+     * get the slot of a record
+     *
+     * @param index: 0 is the oldest record, size() - 1 the most recent one
+     * @return slot of the record
+     */
+    private short slotAt(short index) {
+        short slot = (short) (head - count + index);
+        if (slot < 0) {
+            slot += capacity;
+        }
+        return slot;
+    }
+
+    /**
+     * append a record, overwriting the oldest one when the store is full.
+     * The record, the indexes, the aggregates and the head pointer are
+     * written in place: it must be called within the transaction of the
+     * caller, which publishes all of them or none.
+     *
+     * @param buffer: buffer containing the values
+     * @param stationIDOffset: offset of the station ID value
+     * @param buyTimeOffset: offset of the packed buy time
+     * @param amountOffset: offset of the amount value
+     * @param priceOffset: offset of the price value
+     */
+    void append(byte[] buffer, short stationIDOffset, short buyTimeOffset, short amountOffset, short priceOffset) {
+        short recordOffset = (short) (head * RECORD_SIZE);
+
+        // the oldest record is overwritten: it is the last one of its station
+        short indexed = count;
+        if (count == capacity) {
+            removeFromStationIndex(head);
+            removeFromTimeIndex(head, indexed);
+            removeFromMonths(head);
+            accumulate(totals, (short) 0, head, (short) -1);
+            indexed--;
+        }
+
+        // a new station gets a code, there is a free one since at most
+        // capacity - 1 records are left
+        short code = findStation(buffer, stationIDOffset);
+        if (code < 0) {
+            code = insertStation(buffer, stationIDOffset);
+        }
+
+        // the overwritten record often shares bytes with the new one (station,
+        // month, price), only the bytes which change are written
+        if (records[(short) (recordOffset + STATION_CODE_OFFSET)] != (byte) code) {
+            records[(short) (recordOffset + STATION_CODE_OFFSET)] = (byte) code;
+            countWrite((short) 1);
+        }
+        countWrite(copyChanged(buffer, buyTimeOffset, records, (short) (recordOffset + BUY_TIME_OFFSET), PACKED_TIME_LENGTH));
+        countWrite(copyChanged(buffer, amountOffset, records, (short) (recordOffset + AMOUNT_OFFSET), INT_LENGTH));
+        countWrite(copyChanged(buffer, priceOffset, records, (short) (recordOffset + PRICE_OFFSET), INT_LENGTH));
+        addToStationIndex(head);
+        addToTimeIndex(head, indexed);
+        addToMonths(head);
+        accumulate(totals, (short) 0, head, (short) 1);
+
+        // publish the record: the sequence number, the head pointer and the
+        // count, in the transaction of the caller
+
+        // increment the sequence number
+        for (short i = (short) (SEQUENCE_LENGTH - 1); i >= 0; i--) {
+            countWrite((short) 1);
+            if (++nextSequence[i] != 0) {
+                break;
+            }
+        }
+
+        head++;
+        if (head == capacity) {
+            head = 0;
+        }
+        if (count < capacity) {
+            count++;
+            countWrite((short) 2);
+        }
+        countWrite((short) 2);
+    }
+
+    /**
+     * bound the bytes of the transaction buffer an append of a record takes,
+     * the overhead of the logged writes included. The shifts of the time
+     * index are counted from the positions of the oldest record and of the
+     * buy time, so a record bought in order costs little even when the
+     * capacity is large.
+     *
+     * @param buffer: buffer containing the packed buy time
+     * @param buyTimeOffset: offset of the packed buy time
+     * @return number of bytes
+     */
+    short appendCommitBound(byte[] buffer, short buyTimeOffset) {
+        short shifts = 0;
+        short moves = 0;
+        if (count == capacity) {
+            short position = timePosition(head, count);
+            if (position < (short) (count >> 1)) {
+                shifts = position;
+            } else if (position < count) {
+                shifts = (short) (count - 1 - position);
+            }
+            short code = stationCode(head);
+            if (Util.getShort(stationTable, (short) (code * STATION_ENTRY_SIZE + STATION_COUNT_OFFSET)) <= 1) {
+                moves = clusterLength(code);
+            }
+        }
+
+        // searched with the oldest record still indexed: one position more
+        // at most
+        short position = searchTime(buffer, buyTimeOffset, count, true);
+        shifts += (short) ((position < (short) (count >> 1) ? position : (short) (count - position)) + 1);
+
+        return (short) (APPEND_WRITE_BYTES + APPEND_WRITES * LOG_ENTRY_OVERHEAD
+                + shifts * (short) (2 + LOG_ENTRY_OVERHEAD) + moves * (short) (1 + LOG_ENTRY_OVERHEAD));
+    }
+
+    /**
+     * @return slot of the most recent record, in O(1)
+     */
+    short newestSlot() {
+        return previousSlot(head);
+    }
+
+    /**
+     * @return slot of the record stored before the record of a slot
+     */
+    private short previousSlot(short slot) {
+        return (short) (slot == 0 ? capacity - 1 : slot - 1);
+    }
+
+    /**
+     * @return slot of the record stored after the record of a slot
+     */
+    private short nextSlot(short slot) {
+        slot++;
+        return slot == capacity ? 0 : slot;
+    }
+
+    /**
+     * open a cursor on records in storage order
+     *
+     * @param cursor: cursor to open
+     * @param first: index of the first record, 0 is the oldest record
+     * @param number: maximum number of records
+     * @return number of records of the cursor
+     */
+    short openRange(short[] cursor, short first, short number) {
+        if (first >= count) {
+            number = 0;
+        } else if (number > (short) (count - first)) {
+            number = (short) (count - first);
+        }
+        return openCursor(cursor, CURSOR_FORWARD, slotAt(first), number);
+    }
+
+    /**
+     * open a cursor on the records stored since a sequence number, oldest
+     * first. The sequence numbers of the records follow each other, the last
+     * one is the next sequence number minus one.
+     *
+     * @param cursor: cursor to open
+     * @param buffer: buffer containing the sequence number (4 bytes)
+     * @param offset: offset of the sequence number
+     * @return number of records of the cursor, all the records when the
+     * oldest ones since the sequence number were overwritten, -1 if the
+     * sequence number is after the next sequence number
+     */
+    short openSince(short[] cursor, byte[] buffer, short offset) {
+        // next sequence - requested sequence, on two words with borrow
+        short nextLow = Util.getShort(nextSequence, (short) 2);
+        short low = Util.getShort(buffer, (short) (offset + 2));
+        short high = (short) (Util.getShort(nextSequence, (short) 0) - Util.getShort(buffer, offset));
+        if ((short) (nextLow ^ (short) 0x8000) < (short) (low ^ (short) 0x8000)) {
+            high--;
+        }
+        short number = (short) (nextLow - low);
+
+        if (high < 0) {
+            return -1;
+        }
+        if (high != 0 || number < 0 || number > count) {
+            number = count;
+        }
+        return openCursor(cursor, CURSOR_FORWARD, slotAt((short) (count - number)), number);
+    }
+
+    /**
+     * open a cursor on the most recent records, most recent first
+     *
+     * @param cursor: cursor to open
+     * @param number: maximum number of records
+     * @return number of records of the cursor
+     */
+    short openLast(short[] cursor, short number) {
+        if (number > count) {
+            number = count;
+        }
+        return openCursor(cursor, CURSOR_BACKWARD, newestSlot(), number);
+    }
+
+    /**
+     * open a cursor on the records bought between two times, in time order
+     *
+     * @param cursor: cursor to open
+     * @param times: buffer containing the packed bounds
+     * @param lowOffset: offset of the earliest buy time (inclusive)
+     * @param highOffset: offset of the latest buy time (inclusive)
+     * @return number of records of the cursor
+     */
+    short openTimeRange(short[] cursor, byte[] times, short lowOffset, short highOffset) {
+        short first = searchTime(times, lowOffset, count, false);
+        short end = searchTime(times, highOffset, count, true);
+        return openCursor(cursor, CURSOR_TIME, first, end > first ? (short) (end - first) : 0);
+    }
+
+    /**
+     * open a cursor on the records of a station, oldest first
+     *
+     * @param cursor: cursor to open
+     * @param station: buffer containing the station ID
+     * @param stationOffset: offset of the station ID
+     * @return number of records of the cursor
+     */
+    short openStation(short[] cursor, byte[] station, short stationOffset) {
+        short code = queryStation(station, stationOffset);
+        if (code < 0) {
+            return openCursor(cursor, CURSOR_STATION, NO_SLOT, (short) 0);
+        }
+        short entry = (short) (code * STATION_ENTRY_SIZE);
+        return openCursor(cursor, CURSOR_STATION, Util.getShort(stationTable, (short) (entry + STATION_OLDEST_OFFSET)),
+                Util.getShort(stationTable, (short) (entry + STATION_COUNT_OFFSET)));
+    }
+
+    /**
+     * get the code of a station from the station index. The index is only
+     * written by append, in the transaction of the record, so it always
+     * matches the records and a query writes nothing.
+     *
+     * @param station: buffer containing the station ID
+     * @param stationOffset: offset of the station ID
+     * @return code of the station, -1 if it has no records
+     */
+    short queryStation(byte[] station, short stationOffset) {
+        return findStation(station, stationOffset);
+    }
+
+    /**
+     * open a cursor on the records matching a query filter (see FILTER_*),
+     * in the order of the filter, at most the limit of the filter.
+     *
+     * The records are read in one pass over the smallest index fitting the
+     * order: the time index (only the time range of the filter) for a time
+     * order, the station chain for a filter on one station, else the storage
+     * order. The criteria not given by the index are checked on each record,
+     * the slots matching are listed in matchSlots, the cursor walks the list.
+     *
+     * @param cursor: cursor to open
+     * @param filter: buffer containing the filter
+     * @param offset: offset of the filter
+     * @return number of records of the cursor
+     */
+    short openQuery(short[] cursor, byte[] filter, short offset) {
+        byte flags = filter[(short) (offset + FILTER_FLAGS)];
+        byte order = filter[(short) (offset + FILTER_ORDER)];
+        short limit = Util.getShort(filter, (short) (offset + FILTER_LIMIT));
+        short stations = filter[(short) (offset + FILTER_STATION_COUNT)];
+        if ((flags & FILTER_STATION) != 0 && stations == 0) {
+            // none of the stations has records
+            return openCursor(cursor, CURSOR_MATCHES, (short) 0, (short) 0);
+        }
+
+        // the index walked, the walk stops at the limit when the list is in
+        // the query order
+        boolean listBackward = order == ORDER_NEWEST || order == ORDER_TIME_REVERSE;
+        if (order == ORDER_TIME || order == ORDER_TIME_REVERSE) {
+            if ((flags & FILTER_TIME) != 0) {
+                openTimeRange(cursor, filter, (short) (offset + FILTER_TIME_LOW), (short) (offset + FILTER_TIME_HIGH));
+                flags &= ~FILTER_TIME;
+            } else {
+                openCursor(cursor, CURSOR_TIME, (short) 0, count);
+            }
+        } else if ((flags & FILTER_STATION) != 0 && stations == 1) {
+            short entry = (short) ((filter[(short) (offset + FILTER_STATIONS)] & 0xFF) * STATION_ENTRY_SIZE);
+            openCursor(cursor, CURSOR_STATION, Util.getShort(stationTable, (short) (entry + STATION_OLDEST_OFFSET)),
+                    Util.getShort(stationTable, (short) (entry + STATION_COUNT_OFFSET)));
+            flags &= ~FILTER_STATION;
+        } else if (order == ORDER_NEWEST) {
+            openLast(cursor, count);
+            listBackward = false;
+        } else {
+            openRange(cursor, (short) 0, count);
+        }
+
+        short number = 0;
+        while (cursor[CURSOR_REMAINING] > 0 && (listBackward || number < limit)) {
+            short slot = cursorSlot(cursor);
+            if (matches(slot, filter, offset, flags)) {
+                matchSlots[number++] = (byte) slot;
+            }
+            cursorNext(cursor);
+        }
+
+        if (listBackward) {
+            return openCursor(cursor, CURSOR_MATCHES_BACKWARD, (short) (number - 1), number > limit ? limit : number);
+        }
+        return openCursor(cursor, CURSOR_MATCHES, (short) 0, number);
+    }
+
+    /**
+     * @return true if a record matches the criteria of a filter
+     *
+     * @param flags: criteria to check
+     */
+    private boolean matches(short slot, byte[] filter, short offset, byte flags) {
+        short recordOffset = (short) (slot * RECORD_SIZE);
+        if ((flags & FILTER_STATION) != 0) {
+            byte code = records[(short) (recordOffset + STATION_CODE_OFFSET)];
+            short i = (short) (offset + FILTER_STATIONS);
+            short end = (short) (i + filter[(short) (offset + FILTER_STATION_COUNT)]);
+            while (i < end && filter[i] != code) {
+                i++;
+            }
+            if (i == end) {
+                return false;
+            }
+        }
+        if ((flags & FILTER_TIME) != 0
+                && (Util.arrayCompare(records, (short) (recordOffset + BUY_TIME_OFFSET), filter, (short) (offset + FILTER_TIME_LOW), PACKED_TIME_LENGTH) < 0
+                || Util.arrayCompare(records, (short) (recordOffset + BUY_TIME_OFFSET), filter, (short) (offset + FILTER_TIME_HIGH), PACKED_TIME_LENGTH) > 0)) {
+            return false;
+        }
+        if ((flags & FILTER_AMOUNT) != 0
+                && (Arithmetic.compare(records, (short) (recordOffset + AMOUNT_OFFSET), filter, (short) (offset + FILTER_AMOUNT_LOW)) < 0
+                || Arithmetic.compare(records, (short) (recordOffset + AMOUNT_OFFSET), filter, (short) (offset + FILTER_AMOUNT_HIGH)) > 0)) {
+            return false;
+        }
+        return (flags & FILTER_PRICE) == 0
+                || (Arithmetic.compare(records, (short) (recordOffset + PRICE_OFFSET), filter, (short) (offset + FILTER_PRICE_LOW)) >= 0
+                && Arithmetic.compare(records, (short) (recordOffset + PRICE_OFFSET), filter, (short) (offset + FILTER_PRICE_HIGH)) <= 0);
+    }
+
+    /**
+     * set the fields of a cursor
+     *
+     * @return number of records of the cursor
+     */
+    private short openCursor(short[] cursor, short kind, short position, short number) {
+        cursor[CURSOR_KIND] = kind;
+        cursor[CURSOR_POSITION] = position;
+        cursor[CURSOR_REMAINING] = number;
+        return number;
+    }
+
+    /**
+     * @return slot of the current record of a cursor
+     */
+    short cursorSlot(short[] cursor) {
+        short position = cursor[CURSOR_POSITION];
+        switch (cursor[CURSOR_KIND]) {
+            case CURSOR_TIME:
+                return timeIndexSlot(position);
+            case CURSOR_MATCHES:
+            case CURSOR_MATCHES_BACKWARD:
+                return (short) (matchSlots[position] & 0xFF);
+            default:
+                return position;
+        }
+    }
+
+    /**
+     * move a cursor to its next record
+     */
+    void cursorNext(short[] cursor) {
+        short position = cursor[CURSOR_POSITION];
+        switch (cursor[CURSOR_KIND]) {
+            case CURSOR_FORWARD:
+                position = nextSlot(position);
+                break;
+            case CURSOR_BACKWARD:
+                position = previousSlot(position);
+                break;
+            case CURSOR_TIME:
+            case CURSOR_MATCHES:
+                position++;
+                break;
+            case CURSOR_MATCHES_BACKWARD:
+                position--;
+                break;
+            default:
+                position = stationLinks[position];
+        }
+        cursor[CURSOR_POSITION] = position;
+        cursor[CURSOR_REMAINING]--;
+    }
+
+    /**
+     * @return position of a slot from the oldest record (0), or count if the
+     * slot does not hold a record
+     */
+    private short ageOf(short slot) {
+        short age = (short) (slot - head + count);
+        if (age >= capacity) {
+            age -= capacity;
+        } else if (age < 0) {
+            age += capacity;
+        }
+        return age < count ? age : count;
+    }
+
+    /**
+     * @return station code of the record of a slot
+     */
+    private short stationCode(short slot) {
+        return (short) (records[(short) (slot * RECORD_SIZE + STATION_CODE_OFFSET)] & 0xFF);
+    }
+
+    /**
+     * hash a station ID
+     *
+     * @return index of the first station hash table entry to probe
+     */
+    private short hashStation(byte[] buffer, short offset) {
+        short hash = 0;
+        for (short i = 0; i < STATION_ID_LENGTH; i++) {
+            hash = (short) (hash * 31 + buffer[(short) (offset + i)]);
+        }
+        return (short) (hash & (short) (stationHashSize - 1));
+    }
+
+    /**
+     * find the code of a station
+     *
+     * @return station code, or -1 if the station has no record
+     */
+    private short findStation(byte[] buffer, short offset) {
+        short index = hashStation(buffer, offset);
+        for (short probes = 0; probes < stationHashSize; probes++) {
+            byte value = stationHash[index];
+            if (value == STATION_HASH_EMPTY) {
+                return -1;
+            }
+            short code = (short) ((short) (value & 0xFF) - 1);
+            if (Util.arrayCompare(stationTable, (short) (code * STATION_ENTRY_SIZE + STATION_KEY_OFFSET), buffer, offset, STATION_ID_LENGTH) == 0) {
+                return code;
+            }
+            index = (short) ((short) (index + 1) & (short) (stationHashSize - 1));
+        }
+        return -1;
+    }
+
+    /**
+     * link a newly written record to the station index
+     *
+     * @param slot: slot of the record
+     */
+    private void addToStationIndex(short slot) {
+        short entry = (short) (stationCode(slot) * STATION_ENTRY_SIZE);
+
+        short chainCount = Util.getShort(stationTable, (short) (entry + STATION_COUNT_OFFSET));
+        stationLinks[slot] = NO_SLOT;
+        if (chainCount == 0) {
+            Util.setShort(stationTable, (short) (entry + STATION_OLDEST_OFFSET), slot);
+        } else {
+            stationLinks[Util.getShort(stationTable, (short) (entry + STATION_NEWEST_OFFSET))] = slot;
+        }
+        Util.setShort(stationTable, (short) (entry + STATION_NEWEST_OFFSET), slot);
+        Util.setShort(stationTable, (short) (entry + STATION_COUNT_OFFSET), (short) (chainCount + 1));
+        countWrite((short) 8);
+        accumulate(stationTable, (short) (entry + STATION_TOTALS_OFFSET), slot, chainCount == 0 ? 0 : (short) 1);
+    }
+
+    /**
+     * give a code to a station which has no record: take the first free
+     * dictionary entry and add it to the hash table
+     *
+     * @param buffer: buffer containing the station ID
+     * @param offset: offset of the station ID
+     * @return station code
+     */
+    private short insertStation(byte[] buffer, short offset) {
+        short code = freeStation;
+        short entry = (short) (code * STATION_ENTRY_SIZE);
+        freeStation = Util.getShort(stationTable, (short) (entry + STATION_OLDEST_OFFSET));
+        Util.arrayCopy(buffer, offset, stationTable, (short) (entry + STATION_KEY_OFFSET), STATION_ID_LENGTH);
+        Util.setShort(stationTable, (short) (entry + STATION_COUNT_OFFSET), (short) 0);
+        countWrite((short) (STATION_ID_LENGTH + 4));
+        hashStationCode(code);
+        return code;
+    }
+
+    /**
+     * add a station code to the hash table
+     */
+    private void hashStationCode(short code) {
+        short index = hashStation(stationTable, (short) (code * STATION_ENTRY_SIZE + STATION_KEY_OFFSET));
+        while (stationHash[index] != STATION_HASH_EMPTY) {
+            index = (short) ((short) (index + 1) & (short) (stationHashSize - 1));
+        }
+        stationHash[index] = (byte) (code + 1);
+        countWrite((short) 1);
+    }
+
+    /**
+     * unlink the oldest record from the station index before it is
+     * overwritten
+     *
+     * @param slot: slot of the oldest record
+     */
+    private void removeFromStationIndex(short slot) {
+        short code = stationCode(slot);
+        short entry = (short) (code * STATION_ENTRY_SIZE);
+
+        // the oldest record is the start of the chain
+        short chainCount = (short) (Util.getShort(stationTable, (short) (entry + STATION_COUNT_OFFSET)) - 1);
+        Util.setShort(stationTable, (short) (entry + STATION_COUNT_OFFSET), chainCount);
+        if (chainCount <= 0) {
+            // last record of the station: free its code
+            unhashStationCode(code);
+            Util.setShort(stationTable, (short) (entry + STATION_OLDEST_OFFSET), freeStation);
+            freeStation = code;
+            countWrite((short) 6);
+        } else {
+            Util.setShort(stationTable, (short) (entry + STATION_OLDEST_OFFSET), stationLinks[slot]);
+            countWrite((short) 4);
+            accumulate(stationTable, (short) (entry + STATION_TOTALS_OFFSET), slot, (short) -1);
+        }
+    }
+
+    /**
+     * @return number of entries of the station hash table from the first one
+     * probed for a station to the next empty entry, the entries its removal
+     * may move
+     */
+    private short clusterLength(short code) {
+        short mask = (short) (stationHashSize - 1);
+        short index = hashStation(stationTable, (short) (code * STATION_ENTRY_SIZE + STATION_KEY_OFFSET));
+        short length = 0;
+        while (length < stationHashSize && stationHash[index] != STATION_HASH_EMPTY) {
+            length++;
+            index = (short) ((short) (index + 1) & mask);
+        }
+        return length;
+    }
+
+    /**
+     * remove a station code from the hash table. The following entries of
+     * the probe sequence are moved back, so no deleted marker is needed.
+     */
+    private void unhashStationCode(short code) {
+        short mask = (short) (stationHashSize - 1);
+        short index = hashStation(stationTable, (short) (code * STATION_ENTRY_SIZE + STATION_KEY_OFFSET));
+        for (short probes = 0; probes < stationHashSize; probes++) {
+            byte value = stationHash[index];
+            if (value == STATION_HASH_EMPTY) {
+                return;
+            }
+            if ((short) ((short) (value & 0xFF) - 1) == code) {
+                break;
+            }
+            index = (short) ((short) (index + 1) & mask);
+        }
+
+        short hole = index;
+        index = (short) ((short) (index + 1) & mask);
+        byte value = stationHash[index];
+        while (value != STATION_HASH_EMPTY) {
+            // an entry can fill the hole if its home is not between the hole
+            // and the entry (cyclically)
+            short home = hashStation(stationTable, (short) ((short) ((short) (value & 0xFF) - 1) * STATION_ENTRY_SIZE + STATION_KEY_OFFSET));
+            if ((short) ((short) (index - home) & mask) >= (short) ((short) (index - hole) & mask)) {
+                stationHash[hole] = value;
+                countWrite((short) 1);
+                hole = index;
+            }
+            index = (short) ((short) (index + 1) & mask);
+            value = stationHash[index];
+        }
+        stationHash[hole] = STATION_HASH_EMPTY;
+        countWrite((short) 1);
+    }
+
+    /**
+     * find the month table entry of the month of a record
+     *
+     * @param buffer: buffer containing the packed month
+     * @param offset: offset of the packed month
+     * @return offset of the entry in monthTable, or -1 if not found
+     */
+    private short findMonth(byte[] buffer, short offset) {
+        short entry = 0;
+        for (short i = 0; i < monthCount; i++) {
+            if (Util.arrayCompare(monthTable, entry, buffer, offset, MONTH_KEY_LENGTH) == 0) {
+                return entry;
+            }
+            entry += MONTH_ENTRY_SIZE;
+        }
+        return -1;
+    }
+
+    /**
+     * add a newly written record to the totals of its month
+     *
+     * @param slot: slot of the record
+     */
+    private void addToMonths(short slot) {
+        short monthOffset = (short) (slot * RECORD_SIZE + BUY_TIME_OFFSET);
+        short entry = findMonth(records, monthOffset);
+        if (entry >= 0) {
+            Util.setShort(monthTable, (short) (entry + MONTH_COUNT_OFFSET),
+                    (short) (Util.getShort(monthTable, (short) (entry + MONTH_COUNT_OFFSET)) + 1));
+            countWrite((short) 2);
+            accumulate(monthTable, (short) (entry + MONTH_TOTALS_OFFSET), slot, (short) 1);
+            return;
+        }
+
+        // first record of the month: append an entry
+        entry = (short) (monthCount * MONTH_ENTRY_SIZE);
+        Util.arrayCopy(records, monthOffset, monthTable, (short) (entry + MONTH_KEY_OFFSET), MONTH_KEY_LENGTH);
+        Util.setShort(monthTable, (short) (entry + MONTH_COUNT_OFFSET), (short) 1);
+        monthCount++;
+        countWrite((short) (MONTH_KEY_LENGTH + 4));
+        accumulate(monthTable, (short) (entry + MONTH_TOTALS_OFFSET), slot, (short) 0);
+    }
+
+    /**
+     * remove the oldest record from the totals of its month before it is
+     * overwritten
+     *
+     * @param slot: slot of the oldest record
+     */
+    private void removeFromMonths(short slot) {
+        short entry = findMonth(records, (short) (slot * RECORD_SIZE + BUY_TIME_OFFSET));
+        if (entry < 0) {
+            return;
+        }
+
+        short monthRecords = (short) (Util.getShort(monthTable, (short) (entry + MONTH_COUNT_OFFSET)) - 1);
+        if (monthRecords > 0) {
+            Util.setShort(monthTable, (short) (entry + MONTH_COUNT_OFFSET), monthRecords);
+            countWrite((short) 2);
+            accumulate(monthTable, (short) (entry + MONTH_TOTALS_OFFSET), slot, (short) -1);
+            return;
+        }
+
+        // last record of the month: the last entry takes its place
+        monthCount--;
+        short last = (short) (monthCount * MONTH_ENTRY_SIZE);
+        if (entry != last) {
+            Util.arrayCopy(monthTable, last, monthTable, entry, MONTH_ENTRY_SIZE);
+            countWrite(MONTH_ENTRY_SIZE);
+        }
+        countWrite((short) 2);
+    }
+
+    /**
+     * add the amount and the cost of a record to totals
+     *
+     * @param table: array containing the totals
+     * @param offset: offset of the totals
+     * @param slot: slot of the record
+     * @param sign: 1 to add, -1 to subtract, 0 to set the totals to the
+     * record
+     */
+    private void accumulate(byte[] table, short offset, short slot, short sign) {
+        short amountOffset = (short) (slot * RECORD_SIZE + AMOUNT_OFFSET);
+        short costOffset = (short) (offset + Arithmetic.WIDE_LENGTH);
+
+        // the amount and the cost of a stored record were checked
+        // non-negative when it was added
+        Arithmetic.multiply(records, amountOffset, records, (short) (slot * RECORD_SIZE + PRICE_OFFSET), costSpace, (short) 0);
+        if (sign == 0) {
+            Util.setShort(table, offset, (short) 0);
+            Util.arrayCopy(records, amountOffset, table, (short) (offset + 2), INT_LENGTH);
+            Util.setShort(table, costOffset, (short) 0);
+            Util.arrayCopy(costSpace, (short) 0, table, (short) (costOffset + 2), INT_LENGTH);
+            countWrite(TOTALS_SIZE);
+        } else if (sign > 0) {
+            countWrite(Arithmetic.addWide(table, offset, records, amountOffset));
+            countWrite(Arithmetic.addWide(table, costOffset, costSpace, (short) 0));
+        } else {
+            countWrite(Arithmetic.subtractWide(table, offset, records, amountOffset));
+            countWrite(Arithmetic.subtractWide(table, costOffset, costSpace, (short) 0));
+        }
+    }
+
+    /**
+     * write the aggregates of all the records: number of records (2 bytes),
+     * total amount and total cost (6 bytes each, unsigned)
+     *
+     * @param buffer: output buffer
+     * @param offset: output offset
+     * @return offset following the aggregates
+     */
+    short encodeTotals(byte[] buffer, short offset) {
+        return encodeAggregates(count, totals, (short) 0, buffer, offset);
+    }
+
+    /**
+     * get the number of records of a station from its station index entry,
+     * one hash lookup without walking the chain of the station
+     *
+     * @param station: buffer containing the station ID
+     * @param stationOffset: offset of the station ID
+     * @return number of records of the station, 0 if it has none
+     */
+    short stationCount(byte[] station, short stationOffset) {
+        short code = findStation(station, stationOffset);
+        if (code < 0) {
+            return 0;
+        }
+        return Util.getShort(stationTable, (short) (code * STATION_ENTRY_SIZE + STATION_COUNT_OFFSET));
+    }
+
+    /**
+     * write the aggregates of the records of a station, 0 if it has none
+     *
+     * @param station: buffer containing the station ID
+     * @param stationOffset: offset of the station ID
+     * @param buffer: output buffer, may be the station buffer
+     * @param offset: output offset
+     * @return offset following the aggregates
+     */
+    short encodeStationTotals(byte[] station, short stationOffset, byte[] buffer, short offset) {
+        short code = findStation(station, stationOffset);
+        if (code < 0) {
+            return encodeAggregates((short) 0, null, (short) 0, buffer, offset);
+        }
+        short entry = (short) (code * STATION_ENTRY_SIZE);
+        return encodeAggregates(Util.getShort(stationTable, (short) (entry + STATION_COUNT_OFFSET)),
+                stationTable, (short) (entry + STATION_TOTALS_OFFSET), buffer, offset);
+    }
+
+    /**
+     * write the aggregates of the records of a month, 0 if it has none
+     *
+     * @param month: buffer containing the packed month (YYMM)
+     * @param monthOffset: offset of the packed month
+     * @param buffer: output buffer, may be the month buffer
+     * @param offset: output offset
+     * @return offset following the aggregates
+     */
+    short encodeMonthTotals(byte[] month, short monthOffset, byte[] buffer, short offset) {
+        short entry = findMonth(month, monthOffset);
+        if (entry < 0) {
+            return encodeAggregates((short) 0, null, (short) 0, buffer, offset);
+        }
+        return encodeAggregates(Util.getShort(monthTable, (short) (entry + MONTH_COUNT_OFFSET)),
+                monthTable, (short) (entry + MONTH_TOTALS_OFFSET), buffer, offset);
+    }
+
+    /**
+     * write the usage of the store: number of records, capacity, bytes of the
+     * records used, number of stations, size of the station hash table and
+     * number of months (2 bytes each). The stations are counted on the free
+     * list, not on the hot path.
+     *
+     * @param buffer: output buffer
+     * @param offset: output offset
+     * @return offset following the usage
+     */
+    short encodeUsage(byte[] buffer, short offset) {
+        short stations = capacity;
+        for (short code = freeStation; code != NO_SLOT;
+                code = Util.getShort(stationTable, (short) (code * STATION_ENTRY_SIZE + STATION_OLDEST_OFFSET))) {
+            stations--;
+        }
+        offset = Util.setShort(buffer, offset, count);
+        offset = Util.setShort(buffer, offset, capacity);
+        offset = Util.setShort(buffer, offset, (short) (count * RECORD_SIZE));
+        offset = Util.setShort(buffer, offset, stations);
+        offset = Util.setShort(buffer, offset, stationHashSize);
+        return Util.setShort(buffer, offset, monthCount);
+    }
+
+    /**
+     * write a number of records and totals
+     *
+     * @param table: array containing the totals, null for no records
+     */
+    private short encodeAggregates(short number, byte[] table, short tableOffset, byte[] buffer, short offset) {
+        offset = Util.setShort(buffer, offset, number);
+        if (table == null) {
+            return Util.arrayFillNonAtomic(buffer, offset, TOTALS_SIZE, (byte) 0);
+        }
+        return Util.arrayCopyNonAtomic(table, tableOffset, buffer, offset, TOTALS_SIZE);
+    }
+
+    /**
+     * make all the station dictionary entries free and empty the hash table
+     */
+    private void freeStations() {
+        short entry = 0;
+        for (short code = 0; code < capacity; code++) {
+            Util.setShort(stationTable, (short) (entry + STATION_OLDEST_OFFSET), (short) (code + 1) < capacity ? (short) (code + 1) : NO_SLOT);
+            Util.setShort(stationTable, (short) (entry + STATION_COUNT_OFFSET), (short) 0);
+            entry += STATION_ENTRY_SIZE;
+        }
+        freeStation = 0;
+        Util.arrayFillNonAtomic(stationHash, (short) 0, stationHashSize, STATION_HASH_EMPTY);
+    }
+
+    /**
+     * binary search in the time index
+     *
+     * @param key: buffer containing the packed time
+     * @param keyOffset: offset of the packed time
+     * @param size: number of slots in the time index
+     * @param after: false to find the first record bought at or after the
+     * time, true to find the first record bought after the time
+     * @return position in the time index
+     */
+    private short searchTime(byte[] key, short keyOffset, short size, boolean after) {
+        short low = 0;
+        short high = size;
+        while (low < high) {
+            short middle = (short) ((short) (low + high) >>> 1);
+            short result = compareTime(timeIndexSlot(middle), key, keyOffset);
+            if (result < 0 || (after && result == 0)) {
+                low = (short) (middle + 1);
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * compare the buy time of a record with a packed time
+     *
+     * @return negative, zero or positive if the record was bought before, at
+     * or after the time
+     */
+    private short compareTime(short slot, byte[] key, short keyOffset) {
+        short timeOffset = (short) (slot * RECORD_SIZE + BUY_TIME_OFFSET);
+        for (short i = 0; i < PACKED_TIME_LENGTH; i++) {
+            // BCD bytes are compared unsigned
+            short result = (short) ((short) (records[(short) (timeOffset + i)] & 0xFF) - (short) (key[(short) (keyOffset + i)] & 0xFF));
+            if (result != 0) {
+                return result;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return slot at a position of the time index
+     */
+    private short timeIndexSlot(short position) {
+        short i = (short) (timeStart + position);
+        if (i >= capacity) {
+            i -= capacity;
+        }
+        return timeIndex[i];
+    }
+
+    /**
+     * set the slot at a position of the time index
+     */
+    private void setTimeIndexSlot(short position, short slot) {
+        short i = (short) (timeStart + position);
+        if (i >= capacity) {
+            i -= capacity;
+        }
+        timeIndex[i] = slot;
+        countWrite((short) 2);
+    }
+
+    /**
+     * insert a newly written record in the time index, after the records
+     * bought at the same time. The shorter side of the index is shifted, so
+     * records bought in order are added in O(1).
+     *
+     * @param slot: slot of the record
+     * @param size: number of slots in the time index
+     */
+    private void addToTimeIndex(short slot, short size) {
+        short position = searchTime(records, (short) (slot * RECORD_SIZE + BUY_TIME_OFFSET), size, true);
+
+        if (position >= (short) (size >> 1)) {
+            // shift the later records toward the end
+            for (short i = size; i > position; i--) {
+                setTimeIndexSlot(i, timeIndexSlot((short) (i - 1)));
+            }
+        } else {
+            // shift the earlier records toward the start
+            timeStart = (short) (timeStart == 0 ? capacity - 1 : timeStart - 1);
+            countWrite((short) 2);
+            for (short i = 0; i < position; i++) {
+                setTimeIndexSlot(i, timeIndexSlot((short) (i + 1)));
+            }
+        }
+        setTimeIndexSlot(position, slot);
+    }
+
+    /**
+     * find a record in the time index
+     *
+     * @param slot: slot of the record
+     * @param size: number of slots in the time index
+     * @return position in the time index, size if the record is not found
+     */
+    private short timePosition(short slot, short size) {
+        short position = searchTime(records, (short) (slot * RECORD_SIZE + BUY_TIME_OFFSET), size, false);
+        while (position < size && timeIndexSlot(position) != slot) {
+            position++;
+        }
+        return position;
+    }
+
+    /**
+     * remove the oldest record from the time index before it is overwritten
+     *
+     * @param slot: slot of the oldest record
+     * @param size: number of slots in the time index
+     */
+    private void removeFromTimeIndex(short slot, short size) {
+        short position = timePosition(slot, size);
+        if (position == size) {
+            return;
+        }
+
+        if (position < (short) (size >> 1)) {
+            // shift the earlier records toward the end
+            for (short i = position; i > 0; i--) {
+                setTimeIndexSlot(i, timeIndexSlot((short) (i - 1)));
+            }
+            timeStart++;
+            if (timeStart == capacity) {
+                timeStart = 0;
+            }
+            countWrite((short) 2);
+        } else {
+            // shift the later records toward the start
+            for (short i = position; i < (short) (size - 1); i++) {
+                setTimeIndexSlot(i, timeIndexSlot((short) (i + 1)));
+            }
+        }
+    }
+
+    /**
+     * copy bytes into persistent memory, only the bytes from the first to the
+     * last one which differ are written, with one Util.arrayCopy (one entry
+     * of the transaction buffer)
+     *
+     * @param src: source array
+     * @param srcOffset: offset of the bytes to copy
+     * @param dest: persistent array
+     * @param destOffset: offset of the bytes to replace
+     * @param length: number of bytes
+     * @return number of bytes written
+     */
+    static short copyChanged(byte[] src, short srcOffset, byte[] dest, short destOffset, short length) {
+        short first = 0;
+        while (first < length && src[(short) (srcOffset + first)] == dest[(short) (destOffset + first)]) {
+            first++;
+        }
+        if (first == length) {
+            return 0;
+        }
+        short last = (short) (length - 1);
+        while (src[(short) (srcOffset + last)] == dest[(short) (destOffset + last)]) {
+            last--;
+        }
+        length = (short) (last - first + 1);
+        Util.arrayCopy(src, (short) (srcOffset + first), dest, (short) (destOffset + first), length);
+        return length;
+    }
+
+    /**
+     * add to the counter of the bytes written to persistent memory
+     *
+     * @param length: number of bytes written
+     */
+    private void countWrite(short length) {
+        writeCounter[0] += length;
+    }
+
+    /**
+     * pack a buy time given as ASCII digits into BCD
+     *
+     * @param src: buffer containing the digits
+     * @param srcOffset: offset of the digits
+     * @param digits: number of digits, the missing trailing digits are
+     * replaced by fill (used to turn a prefix into a range bound)
+     * @param fill: value of the missing digits (0 to 9)
+     * @param dst: output buffer, may be src when dstOffset <= srcOffset
+     * @param dstOffset: output offset
+     * @return false if a character is not a digit
+     */
+    static boolean packTime(byte[] src, short srcOffset, short digits, byte fill, byte[] dst, short dstOffset) {
+        for (short i = 0; i < BUY_TIME_LENGTH; i += 2) {
+            byte high = i < digits ? (byte) (src[(short) (srcOffset + i)] - '0') : fill;
+            byte low = (short) (i + 1) < digits ? (byte) (src[(short) (srcOffset + i + 1)] - '0') : fill;
+            if (high < 0 || high > 9 || low < 0 || low > 9) {
+                return false;
+            }
+            dst[(short) (dstOffset + (i >> 1))] = (byte) ((high << 4) | low);
+        }
+        return true;
+    }
+
+    /**
+     * write a record as a purchase info TLV
+     *
+     * @param slot: slot of the record
+     * @param buffer: output buffer
+     * @param offset: output offset
+     * @return offset following the written TLV
+     */
+    short encode(short slot, byte[] buffer, short offset) {
+        short recordOffset = (short) (slot * RECORD_SIZE);
+
+        buffer[offset++] = PURCHASE_INFO_TAG;
+        buffer[offset++] = (byte) PURCHASE_INFO_VALUE_LENGTH;
+        offset = encodeField(STATION_ID_TAG, stationTable, (short) (stationCode(slot) * STATION_ENTRY_SIZE + STATION_KEY_OFFSET),
+                STATION_ID_LENGTH, buffer, offset);
+
+        // unpack the buy time to ASCII digits
+        buffer[offset++] = BUY_TIME_TAG;
+        buffer[offset++] = (byte) BUY_TIME_LENGTH;
+        for (short i = 0; i < PACKED_TIME_LENGTH; i++) {
+            byte bcd = records[(short) (recordOffset + BUY_TIME_OFFSET + i)];
+            buffer[offset++] = (byte) ('0' + ((bcd >> 4) & 0x0F));
+            buffer[offset++] = (byte) ('0' + (bcd & 0x0F));
+        }
+
+        offset = encodeField(AMOUNT_TAG, records, (short) (recordOffset + AMOUNT_OFFSET), INT_LENGTH, buffer, offset);
+        return encodeField(PRICE_TAG, records, (short) (recordOffset + PRICE_OFFSET), INT_LENGTH, buffer, offset);
+    }
+
+    /**
+     * write the sequence number of a record as a TLV: the next sequence
+     * number minus the number of records stored since the record
+     *
+     * @param slot: slot of the record
+     * @param buffer: output buffer
+     * @param offset: output offset
+     * @return offset following the written TLV
+     */
+    short encodeSequence(short slot, byte[] buffer, short offset) {
+        short end = encodeNextSequence(buffer, offset);
+        short borrow = (short) (count - ageOf(slot));
+        for (short i = (short) (end - 1); borrow != 0 && i >= (short) (end - SEQUENCE_LENGTH); i--) {
+            short digit = (short) ((short) (buffer[i] & 0xFF) - borrow);
+            buffer[i] = (byte) digit;
+            // less than 256 records: borrow at most 1 from the next byte
+            borrow = (short) (digit < 0 ? 1 : 0);
+        }
+        return end;
+    }
+
+    /**
+     * write the sequence number the next record will get as a TLV
+     *
+     * @param buffer: output buffer
+     * @param offset: output offset
+     * @return offset following the written TLV
+     */
+    short encodeNextSequence(byte[] buffer, short offset) {
+        buffer[offset++] = SEQUENCE_TAG;
+        buffer[offset++] = (byte) SEQUENCE_LENGTH;
+        return Util.arrayCopyNonAtomic(nextSequence, (short) 0, buffer, offset, SEQUENCE_LENGTH);
+    }
+
+    /**
+     * write one primitive TLV of a record
+     *
+     * @param source: records or stationTable
+     */
+    private short encodeField(byte tag, byte[] source, short fieldOffset, short length, byte[] buffer, short offset) {
+        buffer[offset++] = tag;
+        buffer[offset++] = (byte) length;
+        return Util.arrayCopyNonAtomic(source, fieldOffset, buffer, offset, length);
+    }
+
+    /**
+     * write the tag and length of the purchase histories TLV
+     *
+     * @param buffer: output buffer
+     * @param offset: output offset
+     * @param valueLength: length of the encoded records
+     * @return offset following the header, where the records start
+     */
+    static short encodeHistoriesHeader(byte[] buffer, short offset, short valueLength) {
+        buffer[offset++] = PURCHASE_HISTORIES_TAG;
+        if (valueLength > 0xFF) {
+            buffer[offset++] = (byte) 0x82;
+            offset = Util.setShort(buffer, offset, valueLength);
+        } else if (valueLength > 0x7F) {
+            buffer[offset++] = (byte) 0x81;
+            buffer[offset++] = (byte) valueLength;
+        } else {
+            buffer[offset++] = (byte) valueLength;
+        }
+        return offset;
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package utility;
+
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+import javacard.security.AESKey;
+import javacard.security.KeyBuilder;
+import javacard.security.RandomData;
+import javacard.security.Signature;
+
+/**
+ * Secure channel between the terminal and the card, opened once per
+ * selection by a mutual authentication with a static AES-128 key. The
+ * session keys derived by the authentication protect the integrity of every
+ * command and response with an AES-CMAC truncated to MAC_LENGTH bytes, so
+ * the costly steps (key derivation, key setup) are paid once per session.
+ * The data is not encrypted.
+ *
+ * Mutual authentication:
+ * - INITIALIZE: the terminal sends its challenge, the card answers its
+ * challenge and the card cryptogram.
+ * - AUTHENTICATE: the terminal sends the host cryptogram, the channel is
+ * open if it is right.
+ *
+ * The session keys are CMAC(static key, label || host challenge || card
+ * challenge): S-MAC with LABEL_COMMAND_KEY for the commands, S-RMAC with
+ * LABEL_RESPONSE_KEY for the responses. The cryptograms are CMAC(S-MAC,
+ * label || host challenge || card challenge), truncated.
+ *
+ * Each secured command and each response to it is numbered by a counter,
+ * starting at 1 after the authentication:
+ * - the C-MAC, last MAC_LENGTH bytes of the command data, is CMAC(S-MAC,
+ * counter || CLA INS P1 P2 || data before the C-MAC)
+ * - the R-MAC, last MAC_LENGTH bytes of the response data, is CMAC(S-RMAC,
+ * counter || response data before the R-MAC)
+ * A wrong C-MAC closes the channel.
+ *
+ * All the keys and the Signature instances are created once at install
+ * time, the session keys are transient (CLEAR_ON_DESELECT).
+ */
+class SecureChannel {
+
+    /**
+     * Length of the static key
+     */
+    final static short KEY_LENGTH = 16;
+
+    /**
+     * Length of the host and of the card challenge
+     */
+    final static short CHALLENGE_LENGTH = 8;
+
+    /**
+     * Length of the card and of the host cryptogram
+     */
+    final static short CRYPTOGRAM_LENGTH = 8;
+
+    /**
+     * Length of the truncated C-MAC and R-MAC
+     */
+    final static short MAC_LENGTH = 8;
+
+    /**
+     * Length of an untruncated AES-CMAC
+     */
+    final static short CMAC_LENGTH = 16;
+
+    /**
+     * Derivation labels of the session keys and of the cryptograms
+     */
+    final static byte LABEL_CARD_CRYPTOGRAM = (byte) 0x00;
+    final static byte LABEL_HOST_CRYPTOGRAM = (byte) 0x01;
+    final static byte LABEL_COMMAND_KEY = (byte) 0x04;
+    final static byte LABEL_RESPONSE_KEY = (byte) 0x06;
+
+    /**
+     * Layout of space: derivation data (label, host challenge, card
+     * challenge) followed by the untruncated MAC
+     */
+    final static short LABEL_OFFSET = 0;
+    final static short HOST_CHALLENGE_OFFSET = LABEL_OFFSET + 1;
+    final static short CARD_CHALLENGE_OFFSET = HOST_CHALLENGE_OFFSET + CHALLENGE_LENGTH;
+    final static short DERIVATION_LENGTH = CARD_CHALLENGE_OFFSET + CHALLENGE_LENGTH;
+    final static short MAC_OFFSET = DERIVATION_LENGTH;
+    final static short SPACE_SIZE = MAC_OFFSET + CMAC_LENGTH;
+
+    /**
+     * Indexes of state
+     */
+    final static short STATE_STEP = 0;
+    final static short STATE_COUNTER = 1;
+    final static short STATE_SECURED = 2;
+    final static short STATE_DATA_LENGTH = 3;
+    final static short STATE_SIZE = 4;
+
+    /**
+     * Steps of the channel
+     */
+    final static short STEP_CLOSED = 0;
+    final static short STEP_INITIALIZED = 1;
+    final static short STEP_OPEN = 2;
+
+    /**
+     * CMAC with the static key, derives the session keys
+     */
+    private Signature derivation;
+
+    private AESKey commandKey;
+    private AESKey responseKey;
+
+    /**
+     * CMAC with S-MAC and with S-RMAC
+     */
+    private Signature commandMac;
+    private Signature responseMac;
+
+    private RandomData random;
+
+    /**
+     * Derivation data and MAC output
+     */
+    private byte[] space;
+
+    /**
+     * Step, counter, secured flag of the current command (1 if its C-MAC was
+     * verified) and length of its data without the C-MAC
+     */
+    private short[] state;
+
+    /**
+     * Creates a closed channel
+     *
+     * @param key: buffer containing the static key
+     * @param keyOffset: offset of the static key
+     */
+    SecureChannel(byte[] key, short keyOffset) {
+        AESKey staticKey = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_128, false);
+        staticKey.setKey(key, keyOffset);
+        derivation = Signature.getInstance(Signature.ALG_AES_CMAC_128, false);
+        derivation.init(staticKey, Signature.MODE_SIGN);
+
+        commandKey = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_DESELECT, KeyBuilder.LENGTH_AES_128, false);
+        responseKey = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_DESELECT, KeyBuilder.LENGTH_AES_128, false);
+        commandMac = Signature.getInstance(Signature.ALG_AES_CMAC_128, false);
+        responseMac = Signature.getInstance(Signature.ALG_AES_CMAC_128, false);
+        random = RandomData.getInstance(RandomData.ALG_KEYGENERATION);
+
+        space = JCSystem.makeTransientByteArray(SPACE_SIZE, JCSystem.CLEAR_ON_DESELECT);
+        state = JCSystem.makeTransientShortArray(STATE_SIZE, JCSystem.CLEAR_ON_DESELECT);
+    }
+
+    /**
+     * @return true if the mutual authentication is done
+     */
+    boolean isOpen() {
+        return state[STATE_STEP] == STEP_OPEN;
+    }
+
+    /**
+     * @return true if the C-MAC of the current command was verified, its
+     * response must then end with an R-MAC
+     */
+    boolean isSecured() {
+        return state[STATE_SECURED] != 0;
+    }
+
+    /**
+     * @return length of the data of the current secured command, without the
+     * C-MAC
+     */
+    short dataLength() {
+        return state[STATE_DATA_LENGTH];
+    }
+
+    /**
+     * forget the secured flag, a new command is received
+     */
+    void reset() {
+        state[STATE_SECURED] = 0;
+    }
+
+    /**
+     * close the channel, a new mutual authentication is needed
+     */
+    void close() {
+        state[STATE_STEP] = STEP_CLOSED;
+        state[STATE_SECURED] = 0;
+    }
+
+    /**
+     * first step of the mutual authentication: derive the session keys and
+     * write the card challenge and the card cryptogram
+     *
+     * @param buffer: buffer containing the host challenge, output buffer
+     * @param offset: offset of the host challenge
+     * @param length: length of the host challenge
+     * @param outOffset: output offset
+     * @return offset following the card cryptogram
+     */
+    short initialize(byte[] buffer, short offset, short length, short outOffset) {
+        close();
+        if (length != CHALLENGE_LENGTH) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        Util.arrayCopyNonAtomic(buffer, offset, space, HOST_CHALLENGE_OFFSET, CHALLENGE_LENGTH);
+        random.nextBytes(space, CARD_CHALLENGE_OFFSET, CHALLENGE_LENGTH);
+
+        deriveKey(LABEL_COMMAND_KEY, commandKey);
+        deriveKey(LABEL_RESPONSE_KEY, responseKey);
+        commandMac.init(commandKey, Signature.MODE_SIGN);
+        responseMac.init(responseKey, Signature.MODE_SIGN);
+
+        outOffset = Util.arrayCopyNonAtomic(space, CARD_CHALLENGE_OFFSET, buffer, outOffset, CHALLENGE_LENGTH);
+        cryptogram(LABEL_CARD_CRYPTOGRAM);
+        state[STATE_STEP] = STEP_INITIALIZED;
+        return Util.arrayCopyNonAtomic(space, MAC_OFFSET, buffer, outOffset, CRYPTOGRAM_LENGTH);
+    }
+
+    /**
+     * second step of the mutual authentication: check the host cryptogram
+     * and open the channel
+     *
+     * @param buffer: buffer containing the host cryptogram
+     * @param offset: offset of the host cryptogram
+     * @param length: length of the host cryptogram
+     */
+    void authenticate(byte[] buffer, short offset, short length) {
+        if (state[STATE_STEP] != STEP_INITIALIZED) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        state[STATE_STEP] = STEP_CLOSED;
+        if (length != CRYPTOGRAM_LENGTH) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        cryptogram(LABEL_HOST_CRYPTOGRAM);
+        if (Util.arrayCompare(space, MAC_OFFSET, buffer, offset, CRYPTOGRAM_LENGTH) != 0) {
+            ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+        state[STATE_COUNTER] = 0;
+        state[STATE_STEP] = STEP_OPEN;
+    }
+
+    /**
+     * check the C-MAC of a received command, the channel is closed if it is
+     * wrong
+     *
+     * @param buffer: APDU buffer, the header is at offset 0
+     * @param offset: offset of the command data
+     * @param length: length of the command data, C-MAC included
+     * @return length of the command data without the C-MAC
+     */
+    short unwrap(byte[] buffer, short offset, short length) {
+        length -= MAC_LENGTH;
+        if (!isOpen() || length < 0 || state[STATE_COUNTER] == Short.MAX_VALUE) {
+            close();
+            ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+        state[STATE_COUNTER]++;
+        beginMac(commandMac);
+        commandMac.update(buffer, ISO7816.OFFSET_CLA, (short) 4);
+        commandMac.sign(buffer, offset, length, space, MAC_OFFSET);
+        if (Util.arrayCompare(space, MAC_OFFSET, buffer, (short) (offset + length), MAC_LENGTH) != 0) {
+            close();
+            ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+        state[STATE_SECURED] = 1;
+        state[STATE_DATA_LENGTH] = length;
+        return length;
+    }
+
+    /**
+     * start the R-MAC of a response
+     *
+     * @param next: true for a response continued by GET RESPONSE, it takes
+     * the next counter
+     */
+    void beginResponse(boolean next) {
+        if (next) {
+            state[STATE_COUNTER]++;
+        }
+        beginMac(responseMac);
+    }
+
+    /**
+     * add response data to the R-MAC
+     */
+    void updateResponse(byte[] buffer, short offset, short length) {
+        responseMac.update(buffer, offset, length);
+    }
+
+    /**
+     * end the R-MAC of a response
+     *
+     * @param buffer: output buffer
+     * @param offset: output offset
+     * @return offset following the R-MAC
+     */
+    short finishResponse(byte[] buffer, short offset) {
+        responseMac.sign(buffer, offset, (short) 0, space, MAC_OFFSET);
+        return Util.arrayCopyNonAtomic(space, MAC_OFFSET, buffer, offset, MAC_LENGTH);
+    }
+
+    /**
+     * append the R-MAC to a whole response
+     *
+     * @param buffer: buffer containing the response data
+     * @param offset: offset of the response data
+     * @param length: length of the response data
+     * @return length of the response data with the R-MAC
+     */
+    short wrap(byte[] buffer, short offset, short length) {
+        beginMac(responseMac);
+        responseMac.sign(buffer, offset, length, space, MAC_OFFSET);
+        Util.arrayCopyNonAtomic(space, MAC_OFFSET, buffer, (short) (offset + length), MAC_LENGTH);
+        return (short) (length + MAC_LENGTH);
+    }
+
+    /**
+     * start a MAC with the counter
+     */
+    private void beginMac(Signature mac) {
+        Util.setShort(space, MAC_OFFSET, state[STATE_COUNTER]);
+        mac.update(space, MAC_OFFSET, (short) 2);
+    }
+
+    /**
+     * derive a session key from the static key and the challenges
+     */
+    private void deriveKey(byte label, AESKey key) {
+        space[LABEL_OFFSET] = label;
+        derivation.sign(space, LABEL_OFFSET, DERIVATION_LENGTH, space, MAC_OFFSET);
+        key.setKey(space, MAC_OFFSET);
+    }
+
+    /**
+     * compute a cryptogram in space at MAC_OFFSET
+     */
+    private void cryptogram(byte label) {
+        space[LABEL_OFFSET] = label;
+        commandMac.sign(space, LABEL_OFFSET, DERIVATION_LENGTH, space, MAC_OFFSET);
+    }
+}
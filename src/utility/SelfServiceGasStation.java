@@ -12,15 +12,9 @@ import javacard.framework.ISOException;
 import javacard.framework.JCSystem;
 import javacard.framework.OwnerPIN;
 import javacard.framework.Util;
-import javacardx.framework.math.BigNumber;
-import javacardx.framework.tlv.BERTLV;
-import javacardx.framework.tlv.BERTag;
-import javacardx.framework.tlv.ConstructedBERTLV;
-import javacardx.framework.tlv.ConstructedBERTag;
-import javacardx.framework.tlv.PrimitiveBERTLV;
-import javacardx.framework.tlv.PrimitiveBERTag;
-import javacardx.framework.tlv.TLVException;
-import javacardx.framework.util.intx.JCint;
+import javacard.security.AESKey;
+import javacard.security.KeyBuilder;
+import javacard.security.Signature;
 import javacardx.apdu.ExtendedLength;
 
 /**
@@ -34,11 +28,26 @@ public class SelfServiceGasStation extends Applet implements ExtendedLength {
      */
     final static byte SSGS_CLA = (byte) 0x80;
 
+    /**
+     * CLA bit set on every command of a chain but the last one
+     */
+    final static byte CLA_CHAINING = (byte) 0x10;
+
+    /**
+     * CLA bit set on the commands protected by the secure channel (C-MAC)
+     */
+    final static byte CLA_SECURE_MESSAGING = (byte) 0x04;
+
     /**
      * Temp PIN (need edit)
      */
     final static byte[] TEMP_PIN = {(byte) 0x01, (byte) 0x02, (byte) 0x03};
 
+    /**
+     * Account balance at install time (1000,000)
+     */
+    final static byte[] INITIAL_BALANCE = {(byte) 0x00, (byte) 0x0F, (byte) 0x42, (byte) 0x40};
+
     /**
      * INS value for VERIFY command
      */
@@ -80,9 +89,71 @@ public class SelfServiceGasStation extends Applet implements ExtendedLength {
     final static byte CHANGE_PIN = (byte) 0x08;
 
     /**
-     * dummy signature
+     * INS value for get memory status
+     */
+    final static byte GET_MEMORY_STATUS = (byte) 0x09;
+
+    /**
+     * INS value for purchase with receipt: update one purchase info and send
+     * the receipt (sequence number, balance and stored purchase info)
+     */
+    final static byte PURCHASE_WITH_RECEIPT = (byte) 0x0A;
+
+    /**
+     * INS value for get purchase histories since a sequence number
+     */
+    final static byte GET_PURCHASE_HISTORIES_SINCE = (byte) 0x0B;
+
+    /**
+     * INS value for get aggregates of the purchase histories
+     */
+    final static byte GET_AGGREGATES = (byte) 0x0C;
+
+    /**
+     * INS value for get metrics: health counters of the applet
+     */
+    final static byte GET_METRICS = (byte) 0x0D;
+
+    /**
+     * INS value for mutual authenticate: opens the secure channel
+     */
+    final static byte MUTUAL_AUTHENTICATE = (byte) 0x0E;
+
+    /**
+     * INS value for query purchase histories: the purchase histories matching
+     * several criteria
+     */
+    final static byte QUERY_PURCHASE_HISTORIES = (byte) 0x0F;
+
+    /**
+     * INS value for pre-authorize: holds the maximum cost of a purchase
+     * against the account balance before the fuel is dispensed
+     */
+    final static byte PRE_AUTHORIZE = (byte) 0x10;
+
+    /**
+     * INS value for capture: settles the purchase of a hold, or releases the
+     * hold
+     */
+    final static byte CAPTURE = (byte) 0x11;
+
+    /**
+     * INS value for check purchases: number of purchase histories of a
+     * station or a date, without sending them
+     */
+    final static byte CHECK_PURCHASES = (byte) 0x12;
+
+    /**
+     * INS value for get change counter: the counter which moves whenever the
+     * purchase histories change, for the caches of the terminals
+     */
+    final static byte GET_CHANGE_COUNTER = (byte) 0x13;
+
+    /**
+     * INS value for ISO 7816 GET RESPONSE, continues a response which did not
+     * fit in one R-APDU
      */
-    private static final byte[] dummySignature = {(byte) 0x88, (byte) 0x88, (byte) 0x88, (byte) 0x88, (byte) 0x88, (byte) 0x88, (byte) 0x88, (byte) 0x88};
+    final static byte GET_RESPONSE = (byte) 0xC0;
 
     /**
      * Maximum number of incorrect tries before the PIN is blocked
@@ -146,378 +217,1522 @@ public class SelfServiceGasStation extends Applet implements ExtendedLength {
     final static short SW_PIN_IS_BLOCKED = 0x6309;
 
     /**
-     * The user PIN
+     * SW bytes when the free persistent memory is not the one marked
      */
-    private OwnerPIN pin;
+    final static short SW_MEMORY_CHANGED = 0x630A;
 
     /**
-     * Amount of money in user's account
+     * SW bytes when there is no hold with the handle of a capture
      */
-    private int accountBalance;
+    final static short SW_HOLD_NOT_FOUND = 0x630B;
 
     /**
-     * This constructed BER TLV holds the purchase histories
+     * SW bytes when the cost of a capture is more than the amount held
      */
-    private ConstructedBERTLV purchaseHistories;
+    final static short SW_HOLD_EXCEEDED = 0x630C;
 
     /**
-     * Constructed BER TLV Tag for purchase histories
+     * SW bytes when the transaction buffer has no room left for a purchase
+     * info of a batch, it can be sent again in another batch
      */
-    ConstructedBERTag purchaseHistoriesTag;
+    final static short SW_COMMIT_CAPACITY_EXCEEDED = 0x630D;
 
     /**
-     * Constructed BER TLV Tag for purchase Info
+     * Bytes of the transaction buffer kept for the end of a batch: the
+     * account balance and the hold, with their overhead
      */
-    ConstructedBERTag purchaseInfoTag;
+    final static short BATCH_COMMIT_RESERVE = 2 * (Arithmetic.INT_LENGTH + PurchaseHistory.LOG_ENTRY_OVERHEAD);
 
     /**
-     * Primitive BER TLV Tag for station ID
+     * P1 of get purchase histories by time: the data is a prefix of the buy
+     * time (ex: 6 digit 140403)
      */
-    PrimitiveBERTag stationIDTag;
+    final static byte TIME_PREFIX = (byte) 0x00;
 
     /**
-     * Primitive BER TLV Tag for buy time
+     * P1 of get purchase histories by time: the data is the earliest and the
+     * latest buy time of the range, 10 digit each
      */
-    PrimitiveBERTag buyTimeTag;
+    final static byte TIME_RANGE = (byte) 0x01;
 
     /**
-     * Primitive BER TLV Tag for amount of gasoline
+     * P1 of get memory status: send the free persistent and transient
+     * (CLEAR_ON_DESELECT) memory, 4 bytes each
      */
-    PrimitiveBERTag amountTag;
+    final static byte MEMORY_GET = (byte) 0x00;
 
     /**
-     * Primitive BER TLV Tag for price of gasoline
+     * P1 of get memory status: mark the free persistent memory
      */
-    PrimitiveBERTag priceTag;
+    final static byte MEMORY_MARK = (byte) 0x01;
 
     /**
-     * Primitive BER TLV Tag for station signature
+     * P1 of get memory status: check the free persistent memory is still the
+     * one marked
      */
-    PrimitiveBERTag signatureTag;
+    final static byte MEMORY_CHECK = (byte) 0x02;
 
     /**
-     * Constructed BER TLV Tag for update purchase info message
+     * P1 of get memory status: send the number of bytes the previous command
+     * wrote to the persistent fields of the applet (2 bytes)
      */
-    ConstructedBERTag purchaseUpdateMes;
+    final static byte MEMORY_NVM_WRITES = (byte) 0x03;
 
     /**
-     * Temporary buffer used as scratch space
+     * P1 of get memory status: send the transaction buffer the previous
+     * command used, the bytes it wrote in its transaction and the commit
+     * capacity the JCRE reports as used (2 bytes each, 0 when the JCRE does
+     * not track it)
      */
-    byte[] scratchSpace;
+    final static byte MEMORY_COMMIT = (byte) 0x04;
 
     /**
-     * buffer for exchange data between card and host application, ex: purchase histories
+     * P1 of purchase with receipt: the receipt has no MAC
      */
-    byte[] exchangeData;
+    final static byte RECEIPT_PLAIN = (byte) 0x00;
 
     /**
-     * Installs this applet.
-     *
-     * @param bArray the array containing installation parameters
-     * @param bOffset the starting offset in bArray
-     * @param bLength the length in bytes of the parameter data in bArray
+     * P1 of purchase with receipt: the receipt ends with its MAC
      */
-    public static void install(byte[] bArray, short bOffset, byte bLength) {
-        new SelfServiceGasStation(bArray, bOffset, bLength);
-    }
+    final static byte RECEIPT_MAC = (byte) 0x01;
 
     /**
-     * Select method
+     * P1 of get aggregates: all the purchase histories
      */
-    public boolean select() {
-        // The applet declines to be selected if the pin is blocked
-        if (pin.getTriesRemaining() == 0) {
-            return false;
-        }
-        return true;
-    }
+    final static byte AGGREGATES_ALL = (byte) 0x00;
 
     /**
-     * Deselect method
+     * P1 of get aggregates: the purchase histories of a station, the data is
+     * the station ID
      */
-    public void deselect() {
-        // reset the pin value
-        pin.reset();
-    }
+    final static byte AGGREGATES_STATION = (byte) 0x01;
 
     /**
-     * Only this class's install method should create the applet object.
+     * P1 of get aggregates: the purchase histories of a month, the data is
+     * the month (4 digit YYMM)
      */
-    protected SelfServiceGasStation(byte[] bArray, short bOffset, byte bLength) {
-
-        // get the pin in parameter
-        byte iLen = bArray[bOffset]; // aid length
-        bOffset = (short) (bOffset + iLen + 1);
-        byte cLen = bArray[bOffset]; // control info
-        bOffset = (short) (bOffset + cLen + 1);
-        byte aLen = bArray[bOffset]; // data length: PIN length
+    final static byte AGGREGATES_MONTH = (byte) 0x02;
 
-        // Initialize PIN
-        pin = new OwnerPIN(MAX_PIN_TRIES, MAX_PIN_SIZE);
-        pin.update(bArray, (short) (bOffset + 1), aLen); // bOffset + 1: offset of the PIN
+    /**
+     * Number of digits of a month
+     */
+    final static short MONTH_LENGTH = 4;
 
-        // Initialize account balance to 1000,000
-        accountBalance = 1000000;
+    /**
+     * P1 of check purchases: the data is the station ID
+     */
+    final static byte CHECK_STATION = (byte) 0x00;
 
-        // Initialize the scatchSpace
-        scratchSpace = JCSystem.makeTransientByteArray((short) 10, JCSystem.CLEAR_ON_DESELECT);
+    /**
+     * P1 of check purchases: the data is a prefix of the buy time (ex: 6
+     * digit 140403 for a day)
+     */
+    final static byte CHECK_DATE = (byte) 0x01;
 
-        // Initialize the exchange data buffer
-        exchangeData = new byte[1024];
+    /**
+     * P1 of check purchases: the data is the station ID followed by a prefix
+     * of the buy time
+     */
+    final static byte CHECK_STATION_DATE = (byte) 0x02;
 
-        // Initialize primitive tags
-        initPrimitiveTags();
+    /**
+     * P1 of get metrics: usage summary, free persistent memory (4 bytes),
+     * then the usage of the purchase histories (see
+     * PurchaseHistory.encodeUsage)
+     */
+    final static byte METRICS_SUMMARY = (byte) 0x00;
 
-        // Initialize constructed tags
-        initConstructedTags();
+    /**
+     * P1 of get metrics: number of commands of each command slot
+     */
+    final static byte METRICS_COMMANDS = (byte) 0x01;
 
-        // create an empty purchase histories
-        purchaseHistoriesTag.toBytes(scratchSpace, (short) 0);
-        purchaseHistories = (ConstructedBERTLV) BERTLV.getInstance(scratchSpace, (short) 0, (short) 2);
+    /**
+     * P1 of get metrics: bytes written to persistent memory by the commands
+     * of each command slot
+     */
+    final static byte METRICS_NVM_WRITES = (byte) 0x02;
 
-        // register the apple to JCRE
-        register();
-    }
+    /**
+     * P1 of get metrics: number of failures of each status slot
+     */
+    final static byte METRICS_FAILURES = (byte) 0x03;
 
     /**
-     * Initialize the constructed tags
+     * P1 of mutual authenticate: the data is the host challenge, the
+     * response is the card challenge and the card cryptogram
      */
-    private void initConstructedTags() {
-        purchaseHistoriesTag = new ConstructedBERTag();
-        purchaseInfoTag = new ConstructedBERTag();
-        purchaseUpdateMes = new ConstructedBERTag();
-        
-        purchaseHistoriesTag.init((byte) 3, (short) 1);
-        purchaseInfoTag.init((byte) 3, (short) 2);
-        purchaseUpdateMes.init((byte) 3, (short) 3);
-    }
+    final static byte CHANNEL_INITIALIZE = (byte) 0x00;
 
     /**
-     * Initialize the primitive tags
+     * P1 of mutual authenticate: the data is the host cryptogram
      */
-    private void initPrimitiveTags() {
-        stationIDTag = new PrimitiveBERTag();
-        buyTimeTag = new PrimitiveBERTag();
-        amountTag = new PrimitiveBERTag();
-        priceTag = new PrimitiveBERTag();
-        signatureTag = new PrimitiveBERTag();
-        
-        stationIDTag.init((byte) 3, (short) 4);
-        buyTimeTag.init((byte) 3, (short) 5);
-        amountTag.init((byte) 3, (short) 6);
-        priceTag.init((byte) 3, (short) 7);
-        signatureTag.init((byte) 3, (short) 8);
-    }
+    final static byte CHANNEL_AUTHENTICATE = (byte) 0x01;
 
     /**
-     * Processes an incoming APDU.
-     *
-     * @see APDU
-     * @param apdu the incoming APDU
+     * Offsets of the values in arithmeticSpace
      */
-    public void process(APDU apdu) {
-        // get the APDU buffer
-        byte buffer[] = apdu.getBuffer();
+    final static short COST_OFFSET = 0;
+    final static short BALANCE_OFFSET = Arithmetic.INT_LENGTH;
 
-        // return if this APDU is for applet selection
-        if (selectingApplet()) {
-            return;
-        }
+    /**
+     * Indexes of commitUsage
+     */
+    final static short COMMIT_WRITES = 0;
+    final static short COMMIT_CAPACITY = 1;
 
-        // check if CLA is not correct
-        if (buffer[ISO7816.OFFSET_CLA] != SSGS_CLA) {
-            ISOException.throwIt(ISO7816.SW_CLA_NOT_SUPPORTED);
-        }
-        
-        switch (buffer[ISO7816.OFFSET_INS]) {
-            case VERIFY:
-                verify(apdu);
-                return;
-            case GET_BALANCE:
-                getBalance(apdu);
-                return;
-            case UPDATE_PURCHASE_INFO:
-                updatePurchaseInfo(apdu);
-                return;
-            case GET_PURCHASE_HISTORIES:
-                getPurchaseHistories(apdu);
-                return;
-            case GET_PURCHASE_HISTORIES_BY_TIME:
-                getPurchaseHistoriesByTime(apdu);
-                return;
-            case GET_PURCHASE_HISTORIES_BY_STATION:
-                getPurchaseHistoriesByStation(apdu);
-                return;
-            case CHANGE_PIN:
-                changePIN(apdu);
-                return;
-            case GET_LAST_PURCHASE_HISTORY:
-                getLastPurchaseHistory(apdu);
-                return;
-            default:
-                ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
-        }
-        
-    }
+    /**
+     * Layout of the hold: number of selections left (0 when there is no
+     * hold), handle (2 bytes), amount held (4 bytes)
+     */
+    final static short HOLD_LIFETIME_OFFSET = 0;
+    final static short HOLD_HANDLE_OFFSET = 1;
+    final static short HOLD_AMOUNT_OFFSET = 3;
+    final static short HOLD_SIZE = HOLD_AMOUNT_OFFSET + Arithmetic.INT_LENGTH;
 
     /**
-     * verifies the PIN
+     * Length of a hold handle
      */
-    private void verify(APDU apdu) {
-        byte[] buffer = apdu.getBuffer();
+    final static short HOLD_HANDLE_LENGTH = 2;
 
-        // retireve the PIN data for validation
-        byte byteRead = (byte) apdu.setIncomingAndReceive();
-        
-        // verify PIN
-        if (pin.check(buffer, ISO7816.OFFSET_CDATA, byteRead) == false) {
-            if (pin.getTriesRemaining() == 0) {
-                ISOException.throwIt(SW_PIN_IS_BLOCKED);
-            }
-            ISOException.throwIt(SW_VERIFICATION_FAILED);
-        }
-    }
+    /**
+     * Number of selections a hold lasts, the one it is made in included: the
+     * purchase can be captured after the card is reset once, the next
+     * selection clears the hold
+     */
+    final static byte HOLD_SELECTIONS = (byte) 2;
 
     /**
-     * update the purchase info
+     * Tag of the PIN in the installation parameters. The parameters are read
+     * as TLVs when they start with this tag, else as a raw PIN: a raw PIN
+     * whose first byte is D0 is not supported.
      */
-    private void updatePurchaseInfo(APDU apdu) {
-        byte buffer[] = apdu.getBuffer();
+    final static byte INSTALL_PIN_TAG = (byte) 0xD0;
 
-        // check the validation of PIN
-        if (!pin.isValidated()) {
-            ISOException.throwIt(SW_PIN_VERIFICATION_REQUIRED);
-        }
+    /**
+     * Tag of the history capacity (number of records, 2 bytes) in the
+     * installation parameters
+     */
+    final static byte INSTALL_HISTORY_CAPACITY_TAG = (byte) 0xD1;
 
-        // retrieve the data for update
-        apdu.setIncomingAndReceive();
-        
-        short offset = ISO7816.OFFSET_CDATA;
+    /**
+     * Tag of the size (2 bytes) of the buffer gathering a command-chained
+     * update message (in RAM) in the installation parameters
+     */
+    final static byte INSTALL_CHAINING_BUFFER_TAG = (byte) 0xD2;
 
-        // check the Tag is constructed and private
-        if (!BERTag.isConstructed(buffer, offset) || BERTag.tagClass(buffer, offset) != (byte) 3) {
-            ISOException.throwIt(INVALID_UPDATE_PURCHASE_INFO);
-        }
+    /**
+     * Tag of the station signature algorithm (1 byte, see StationSignature)
+     * in the installation parameters
+     */
+    final static byte INSTALL_SIGNATURE_ALGORITHM_TAG = (byte) 0xD3;
 
-        // check the Tag is purchaseUpdateMes
-        short purchaseUpdateMesNumber = BERTag.tagNumber(buffer, offset);
-        if (purchaseUpdateMesNumber != purchaseUpdateMes.tagNumber()) {
-            ISOException.throwIt(INVALID_UPDATE_PURCHASE_INFO);
-        }
+    /**
+     * Tag of the station key in the installation parameters
+     */
+    final static byte INSTALL_SIGNATURE_KEY_TAG = (byte) 0xD4;
 
-        // verify the station signature
-        verifyStationSignature(buffer, offset);
+    /**
+     * Tag of the receipt MAC key (AES-128) in the installation parameters
+     */
+    final static byte INSTALL_RECEIPT_KEY_TAG = (byte) 0xD5;
 
-        // if the signature is validated, update the account balance
-        // get the amount TLV and value offset
-        amountTag.toBytes(scratchSpace, (short) 0);
-        short amountTLVOffset = ConstructedBERTLV.find(buffer, offset, scratchSpace, (short) 0);
+    /**
+     * Tag of the secure channel key (AES-128) in the installation parameters,
+     * the protected commands need the secure channel when it is set
+     */
+    final static byte INSTALL_CHANNEL_KEY_TAG = (byte) 0xD6;
 
-        // get the price TLV and value offset
-        priceTag.toBytes(scratchSpace, (short) 0);
-        short priceTLVOffset = ConstructedBERTLV.find(buffer, offset, scratchSpace, (short) 0);
+    /**
+     * Maximum number of records kept, a record stores the code of its
+     * station on one byte
+     */
+    final static short MAX_HISTORY_CAPACITY = 255;
 
-        // get the stationID TLV offset
-        stationIDTag.toBytes(scratchSpace, (short) 0);
-        short stationIDTLVOffset = ConstructedBERTLV.find(buffer, offset, scratchSpace, (short) 0);
+    /**
+     * Number of records kept when the capacity is not given at install time
+     */
+    final static short DEFAULT_HISTORY_CAPACITY = 30;
 
-        // get the buyTime TLV offset
-        buyTimeTag.toBytes(scratchSpace, (short) 0);
-        short buyTimeTLVOffset = ConstructedBERTLV.find(buffer, offset, scratchSpace, (short) 0);
-        
-        ConstructedBERTLV newPurchaseInfo = createNewPurchaseInfoTLV(buffer, stationIDTLVOffset, buyTimeTLVOffset, amountTLVOffset, priceTLVOffset);
+    /**
+     * Size of the buffer gathering a command-chained update message when it
+     * is not given at install time
+     */
+    final static short DEFAULT_CHAINING_BUFFER_SIZE = 512;
 
-        // if no error, update purchase histories and account balance
-        purchaseHistories.append(newPurchaseInfo);
-        updateAccountBalance(buffer, amountTLVOffset, priceTLVOffset);
-        
-    }
+    /**
+     * Maximum number of purchase infos in a batch update message
+     */
+    final static short MAX_BATCH_RECORDS = 16;
 
     /**
-     * get balance function
+     * Tag of the update purchase info message
      */
-    private void getBalance(APDU apdu) {
-        byte[] buffer = apdu.getBuffer();
-        JCint.setInt(buffer, (short) 0, accountBalance);
-        // send the balance
-        apdu.setOutgoingAndSend((short) 0, (short) 4);
-        
-    }
+    final static byte UPDATE_MESSAGE_TAG = (byte) 0xE3;
 
     /**
-     * get purchase histories
+     * Tag of the batch update purchase info message
      */
-    private void getPurchaseHistories(APDU apdu) {
-        byte buffer[] = apdu.getBuffer();
+    final static byte BATCH_MESSAGE_TAG = (byte) 0xE4;
 
-        // check the validation of PIN
-        if (!pin.isValidated()) {
-            ISOException.throwIt(SW_PIN_VERIFICATION_REQUIRED);
-        }
-        
-        // if purchaseHistories is empty, throw SW_PURCHASE_INFO_NOT_FOUND
-        if (purchaseHistories.getLength() == 0) {
-            ISOException.throwIt(SW_PURCHASE_INFO_NOT_FOUND);
-            return;
-        }
-        
-        try {
-            // write purchase histories to exchangeData array
-            short numBytes = purchaseHistories.toBytes(exchangeData, (short) 0);
+    /**
+     * Tag of the station signature
+     */
+    final static byte SIGNATURE_TAG = (byte) 0xC8;
 
-            // send data to the host application
-            apdu.setOutgoing();
-            apdu.setOutgoingLength(numBytes);
-            apdu.sendBytesLong(exchangeData, (short) 0, numBytes);
-            
-        } catch (TLVException e) {
-            if (e.getReason() == TLVException.EMPTY_TLV) {
-                ISOException.throwIt(SW_PURCHASE_INFO_NOT_FOUND);
-            }
-        }
-        
-    }
+    /**
+     * Tag of the receipt
+     */
+    final static byte RECEIPT_TAG = (byte) 0xE5;
 
     /**
-     * get purchase histories by time
+     * Tag of the account balance in the receipt
      */
-    private void getPurchaseHistoriesByTime(APDU apdu) {
-        byte buffer[] = apdu.getBuffer();
+    final static byte BALANCE_TAG = (byte) 0xCA;
 
-        // check the validation of PIN
-        if (!pin.isValidated()) {
-            ISOException.throwIt(SW_PIN_VERIFICATION_REQUIRED);
-        }
-        
-        // if purchaseHistories is empty, throw SW_PURCHASE_INFO_NOT_FOUND
-        if (purchaseHistories.getLength() == 0) {
-            ISOException.throwIt(SW_PURCHASE_INFO_NOT_FOUND);
-            return;
-        }
-        
-        apdu.setIncomingAndReceive();
-        short offset = apdu.getOffsetCdata();
-        
-        ConstructedBERTLV historiesResult = findHistoriesbyTime(buffer, offset);
-        
-        if (historiesResult.getLength() == 0) {
-            ISOException.throwIt(SW_PURCHASE_INFO_NOT_FOUND);
-        } else {
-            // write purchase histories to exchangeData array
-            short numBytes = historiesResult.toBytes(exchangeData, (short) 0);
+    /**
+     * Tags of the criteria of a query: buy time (prefix or earliest and
+     * latest time), amount and price (minimum and maximum, 4 bytes each),
+     * maximum number of histories (1 byte), order (1 byte, see
+     * PurchaseHistory.ORDER_*). The stations are station ID TLVs.
+     */
+    final static byte QUERY_TIME_TAG = (byte) 0xCB;
+    final static byte QUERY_AMOUNT_TAG = (byte) 0xCC;
+    final static byte QUERY_PRICE_TAG = (byte) 0xCD;
+    final static byte QUERY_LIMIT_TAG = (byte) 0xCE;
+    final static byte QUERY_ORDER_TAG = (byte) 0xCF;
 
-            // send data to the host application
-            apdu.setOutgoing();
-            apdu.setOutgoingLength(numBytes);
-            apdu.sendBytesLong(exchangeData, (short) 0, numBytes);
-        }
-    }
+    /**
+     * Length of the receipt MAC (AES-CMAC)
+     */
+    final static short RECEIPT_MAC_LENGTH = 16;
 
     /**
-     * get purchase histories by station
+     * Length of the receipt key (AES-128)
      */
-    private void getPurchaseHistoriesByStation(APDU apdu) {
-        byte buffer[] = apdu.getBuffer();
+    final static short RECEIPT_KEY_LENGTH = 16;
+
+    /**
+     * Length of the receipt value without MAC: sequence number, balance and
+     * purchase info TLVs
+     */
+    final static short RECEIPT_VALUE_LENGTH = (2 + PurchaseHistory.SEQUENCE_LENGTH) + (2 + PurchaseHistory.INT_LENGTH)
+            + PurchaseHistory.PURCHASE_INFO_TLV_SIZE;
+
+    /**
+     * Index in purchaseFields of the station ID value offset, the index of a
+     * field is its tag minus STATION_ID_TAG
+     */
+    final static short FIELD_STATION_ID = 0;
+
+    /**
+     * Index in purchaseFields of the buy time value offset
+     */
+    final static short FIELD_BUY_TIME = 1;
+
+    /**
+     * Index in purchaseFields of the amount value offset
+     */
+    final static short FIELD_AMOUNT = 2;
+
+    /**
+     * Index in purchaseFields of the price value offset
+     */
+    final static short FIELD_PRICE = 3;
+
+    /**
+     * Index in purchaseFields of the signature TLV offset
+     */
+    final static short FIELD_SIGNATURE = 4;
+
+    /**
+     * Number of fields of a purchase info
+     */
+    final static short PURCHASE_INFO_FIELDS = 4;
+
+    /**
+     * Number of fields of an update message: a purchase info and its
+     * signature
+     */
+    final static short UPDATE_MESSAGE_FIELDS = 5;
+
+    /**
+     * Length of the value of each purchase info field, by index in
+     * purchaseFields
+     */
+    private static final byte[] FIELD_LENGTHS = {(byte) PurchaseHistory.STATION_ID_LENGTH, (byte) PurchaseHistory.BUY_TIME_LENGTH,
+        (byte) PurchaseHistory.INT_LENGTH, (byte) PurchaseHistory.INT_LENGTH};
+
+    /**
+     * Index in tlvHeader of the value offset of the last TLV read
+     */
+    final static short TLV_VALUE_OFFSET = 0;
+
+    /**
+     * Index in tlvHeader of the value length of the last TLV read
+     */
+    final static short TLV_LENGTH = 1;
+
+    /**
+     * Index in outputCursor of the number of record bytes left to send
+     */
+    final static short OUTPUT_REMAINING = PurchaseHistory.CURSOR_SIZE;
+
+    /**
+     * Index in outputCursor of the number of bytes of the current record
+     * already sent
+     */
+    final static short OUTPUT_RECORD_OFFSET = PurchaseHistory.CURSOR_SIZE + 1;
+
+    /**
+     * Number of fields of outputCursor
+     */
+    final static short OUTPUT_CURSOR_SIZE = PurchaseHistory.CURSOR_SIZE + 2;
+
+    /**
+     * The user PIN
+     */
+    private OwnerPIN pin;
+
+    /**
+     * Amount of money in user's account (4 bytes, see Arithmetic)
+     */
+    private byte[] accountBalance;
+
+    /**
+     * Pre-authorization hold on the account balance (see HOLD_*), at most one
+     */
+    private byte[] hold;
+
+    /**
+     * Fixed-capacity store of the purchase histories
+     */
+    private PurchaseHistory purchaseHistory;
+
+    /**
+     * Verifier of the station signature
+     */
+    private StationSignature stationSignature;
+
+    /**
+     * AES-CMAC of the receipts, initialized with the receipt key in
+     * MODE_SIGN, null when no receipt key is installed
+     */
+    private Signature receiptMac;
+
+    /**
+     * Secure channel, null when no channel key is installed
+     */
+    private SecureChannel secureChannel;
+
+    /**
+     * Temporary buffer used as scratch space
+     */
+    byte[] scratchSpace;
+
+    /**
+     * Cost of the purchase being updated (COST_OFFSET) and balance left by
+     * the purchases of a batch (BALANCE_OFFSET)
+     */
+    byte[] arithmeticSpace;
+
+    /**
+     * Cursor on the records of the response being sent, followed by the
+     * output state (OUTPUT_REMAINING, OUTPUT_RECORD_OFFSET)
+     */
+    short[] outputCursor;
+
+    /**
+     * Free memory read by get memory status (high and low word) followed by
+     * the free persistent memory marked
+     */
+    short[] memoryStatus;
+
+    /**
+     * Number of bytes written to persistent memory by the current command, at
+     * index 0
+     */
+    short[] nvmWrites;
+
+    /**
+     * Transaction buffer used by the current command: bytes written in the
+     * transaction (COMMIT_WRITES) and commit capacity used (COMMIT_CAPACITY)
+     */
+    short[] commitUsage;
+
+    /**
+     * Health counters: commands, persistent writes and failures
+     */
+    private Metrics metrics;
+
+    /**
+     * Update message received with command chaining
+     */
+    byte[] chainingBuffer;
+
+    /**
+     * Number of bytes of chainingBuffer already received
+     */
+    short[] chainingLength;
+
+    /**
+     * Value offsets of the fields of the purchase info being updated, -1 for
+     * a field not found
+     */
+    short[] purchaseFields;
+
+    /**
+     * Value offset and length of the last TLV read (TLV_VALUE_OFFSET,
+     * TLV_LENGTH)
+     */
+    short[] tlvHeader;
+
+    /**
+     * Filter of the query being read (see PurchaseHistory.FILTER_*)
+     */
+    byte[] queryFilter;
+
+    /**
+     * Value offset and length of each purchase info of a batch update message
+     */
+    short[] batchRecords;
+
+    /**
+     * Status of each purchase info of a batch update message
+     */
+    byte[] batchStatus;
+
+    /**
+     * Installs this applet.
+     *
+     * @param bArray the array containing installation parameters
+     * @param bOffset the starting offset in bArray
+     * @param bLength the length in bytes of the parameter data in bArray
+     */
+    public static void install(byte[] bArray, short bOffset, byte bLength) {
+        new SelfServiceGasStation(bArray, bOffset, bLength);
+    }
+
+    /**
+     * Select method
+     */
+    public boolean select() {
+        // a hold not captured in time expires, one byte is written only when
+        // there is a hold
+        if (hold[HOLD_LIFETIME_OFFSET] != 0) {
+            hold[HOLD_LIFETIME_OFFSET]--;
+        }
+
+        // The applet declines to be selected if the pin is blocked
+        if (pin.getTriesRemaining() == 0) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Deselect method
+     */
+    public void deselect() {
+        // reset the pin value
+        pin.reset();
+
+        // keep the counters of this session
+        metrics.save();
+    }
+
+    /**
+     * Only this class's install method should create the applet object.
+     */
+    protected SelfServiceGasStation(byte[] bArray, short bOffset, byte bLength) {
+
+        // get the pin in parameter
+        byte iLen = bArray[bOffset]; // aid length
+        bOffset = (short) (bOffset + iLen + 1);
+        byte cLen = bArray[bOffset]; // control info
+        bOffset = (short) (bOffset + cLen + 1);
+        byte aLen = bArray[bOffset]; // data length
+        bOffset++;
+
+        // Initialize PIN
+        pin = new OwnerPIN(MAX_PIN_TRIES, MAX_PIN_SIZE);
+        short historyCapacity = DEFAULT_HISTORY_CAPACITY;
+        short chainingBufferSize = DEFAULT_CHAINING_BUFFER_SIZE;
+        byte signatureAlgorithm = StationSignature.ALG_DUMMY;
+        short keyOffset = 0;
+        short keyLength = 0;
+
+        if (aLen > 0 && bArray[bOffset] == INSTALL_PIN_TAG) {
+            // the parameters are a list of TLVs: PIN and optional settings
+            short end = (short) (bOffset + aLen);
+            while (bOffset < end) {
+                // the tag, the length and the value must be within the
+                // parameters
+                short valueOffset = (short) (bOffset + 2);
+                if (valueOffset > end) {
+                    ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+                }
+                byte tag = bArray[bOffset];
+                byte len = bArray[(short) (bOffset + 1)];
+                if (len < 0 || len > (short) (end - valueOffset)) {
+                    ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+                }
+                switch (tag) {
+                    case INSTALL_PIN_TAG:
+                        pin.update(bArray, valueOffset, len);
+                        break;
+                    case INSTALL_HISTORY_CAPACITY_TAG:
+                        if (len != 2) {
+                            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+                        }
+                        historyCapacity = Util.getShort(bArray, valueOffset);
+                        break;
+                    case INSTALL_CHAINING_BUFFER_TAG:
+                        if (len != 2) {
+                            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+                        }
+                        chainingBufferSize = Util.getShort(bArray, valueOffset);
+                        break;
+                    case INSTALL_SIGNATURE_ALGORITHM_TAG:
+                        if (len != 1) {
+                            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+                        }
+                        signatureAlgorithm = bArray[valueOffset];
+                        break;
+                    case INSTALL_SIGNATURE_KEY_TAG:
+                        keyOffset = valueOffset;
+                        keyLength = len;
+                        break;
+                    case INSTALL_RECEIPT_KEY_TAG:
+                        if (len != RECEIPT_KEY_LENGTH) {
+                            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+                        }
+                        AESKey receiptKey = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_128, false);
+                        receiptKey.setKey(bArray, valueOffset);
+                        receiptMac = Signature.getInstance(Signature.ALG_AES_CMAC_128, false);
+                        receiptMac.init(receiptKey, Signature.MODE_SIGN);
+                        break;
+                    case INSTALL_CHANNEL_KEY_TAG:
+                        if (len != SecureChannel.KEY_LENGTH) {
+                            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+                        }
+                        secureChannel = new SecureChannel(bArray, valueOffset);
+                        break;
+                    default:
+                        ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+                }
+                bOffset = (short) (valueOffset + len);
+            }
+        } else {
+            // the parameter is the PIN only
+            pin.update(bArray, bOffset, aLen);
+        }
+
+        if (historyCapacity <= 0 || historyCapacity > MAX_HISTORY_CAPACITY || chainingBufferSize <= 0) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+
+        // Initialize account balance to 1000,000
+        accountBalance = new byte[Arithmetic.INT_LENGTH];
+        Util.arrayCopy(INITIAL_BALANCE, (short) 0, accountBalance, (short) 0, Arithmetic.INT_LENGTH);
+        arithmeticSpace = JCSystem.makeTransientByteArray((short) (2 * Arithmetic.INT_LENGTH), JCSystem.CLEAR_ON_DESELECT);
+        hold = new byte[HOLD_SIZE];
+
+        // Initialize the scatchSpace, large enough for one purchase info TLV
+        scratchSpace = JCSystem.makeTransientByteArray(PurchaseHistory.PURCHASE_INFO_TLV_SIZE, JCSystem.CLEAR_ON_DESELECT);
+
+        // Initialize the output cursor
+        outputCursor = JCSystem.makeTransientShortArray(OUTPUT_CURSOR_SIZE, JCSystem.CLEAR_ON_DESELECT);
+
+        // Initialize the memory status
+        memoryStatus = JCSystem.makeTransientShortArray((short) 4, JCSystem.CLEAR_ON_RESET);
+        nvmWrites = JCSystem.makeTransientShortArray((short) 1, JCSystem.CLEAR_ON_RESET);
+        commitUsage = JCSystem.makeTransientShortArray((short) 2, JCSystem.CLEAR_ON_RESET);
+        metrics = new Metrics();
+
+        // Initialize the buffers of the update messages
+        chainingBuffer = JCSystem.makeTransientByteArray(chainingBufferSize, JCSystem.CLEAR_ON_DESELECT);
+        chainingLength = JCSystem.makeTransientShortArray((short) 1, JCSystem.CLEAR_ON_DESELECT);
+        purchaseFields = JCSystem.makeTransientShortArray(UPDATE_MESSAGE_FIELDS, JCSystem.CLEAR_ON_DESELECT);
+        tlvHeader = JCSystem.makeTransientShortArray((short) 2, JCSystem.CLEAR_ON_DESELECT);
+        queryFilter = JCSystem.makeTransientByteArray(PurchaseHistory.FILTER_SIZE, JCSystem.CLEAR_ON_DESELECT);
+        batchRecords = JCSystem.makeTransientShortArray((short) (2 * MAX_BATCH_RECORDS), JCSystem.CLEAR_ON_DESELECT);
+        batchStatus = JCSystem.makeTransientByteArray(MAX_BATCH_RECORDS, JCSystem.CLEAR_ON_DESELECT);
+
+        // create the signature verifier, with its key
+        stationSignature = new StationSignature(signatureAlgorithm, bArray, keyOffset, keyLength);
+
+        // create an empty purchase histories
+        purchaseHistory = new PurchaseHistory(historyCapacity, nvmWrites);
+
+        // register the apple to JCRE
+        register();
+    }
+
+    /**
+     * Processes an incoming APDU.
+     *
+     * @see APDU
+     * @param apdu the incoming APDU
+     */
+    public void process(APDU apdu) {
+        // get the APDU buffer
+        byte buffer[] = apdu.getBuffer();
+
+        // the selection answers the change counter, a terminal knows whether
+        // its cached histories are still valid without another command
+        if (selectingApplet()) {
+            apdu.setOutgoingAndSend((short) 0, purchaseHistory.encodeNextSequence(buffer, (short) 0));
+            return;
+        }
+
+        // count the command with its SW, the transaction of a failed command
+        // is aborted first as the JCRE would do
+        byte ins = buffer[ISO7816.OFFSET_INS];
+        short sw = ISO7816.SW_NO_ERROR;
+        try {
+            dispatch(apdu);
+        } catch (ISOException e) {
+            sw = e.getReason();
+            throw e;
+        } catch (RuntimeException e) {
+            sw = ISO7816.SW_UNKNOWN;
+            throw e;
+        } finally {
+            if (JCSystem.getTransactionDepth() != 0) {
+                JCSystem.abortTransaction();
+            }
+            metrics.count(ins, sw, ins == GET_MEMORY_STATUS ? 0 : nvmWrites[0]);
+        }
+    }
+
+    /**
+     * processes a command APDU other than the selection
+     */
+    private void dispatch(APDU apdu) {
+        byte buffer[] = apdu.getBuffer();
+
+        // count the persistent writes of each command but get memory status
+        if (buffer[ISO7816.OFFSET_INS] != GET_MEMORY_STATUS) {
+            nvmWrites[0] = 0;
+            commitUsage[COMMIT_WRITES] = 0;
+            commitUsage[COMMIT_CAPACITY] = 0;
+        }
+
+        // GET RESPONSE continues the pending response, any other command
+        // cancels it
+        if (buffer[ISO7816.OFFSET_INS] == GET_RESPONSE
+                && (buffer[ISO7816.OFFSET_CLA] == ISO7816.CLA_ISO7816 || buffer[ISO7816.OFFSET_CLA] == SSGS_CLA)) {
+            getResponse(apdu);
+            return;
+        }
+        outputCursor[OUTPUT_REMAINING] = 0;
+        if (secureChannel != null) {
+            secureChannel.reset();
+        }
+
+        // only update purchase info accepts command chaining, any other
+        // command cancels the pending chain
+        if (buffer[ISO7816.OFFSET_INS] != UPDATE_PURCHASE_INFO) {
+            chainingLength[0] = 0;
+            if (apdu.isCommandChainingCLA()) {
+                ISOException.throwIt(ISO7816.SW_COMMAND_CHAINING_NOT_SUPPORTED);
+            }
+        }
+
+        // check if CLA is not correct
+        if ((byte) (buffer[ISO7816.OFFSET_CLA] & ~(CLA_CHAINING | CLA_SECURE_MESSAGING)) != SSGS_CLA) {
+            ISOException.throwIt(ISO7816.SW_CLA_NOT_SUPPORTED);
+        }
+
+        // with a channel key, check the C-MAC of the secured commands, the
+        // protected commands must be secured
+        if (secureChannel != null) {
+            if ((buffer[ISO7816.OFFSET_CLA] & CLA_SECURE_MESSAGING) != 0) {
+                short byteRead = apdu.setIncomingAndReceive();
+                if (byteRead != apdu.getIncomingLength()) {
+                    ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+                }
+                secureChannel.unwrap(buffer, apdu.getOffsetCdata(), byteRead);
+            } else if (isProtected(buffer[ISO7816.OFFSET_INS])) {
+                ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+            }
+        } else if ((buffer[ISO7816.OFFSET_CLA] & CLA_SECURE_MESSAGING) != 0) {
+            ISOException.throwIt(ISO7816.SW_CLA_NOT_SUPPORTED);
+        }
+
+        execute(apdu);
+
+        // a secured command without response data still answers its R-MAC
+        if (secureChannel != null && secureChannel.isSecured() && apdu.getCurrentState() < APDU.STATE_OUTGOING) {
+            send(apdu, (short) 0);
+        }
+    }
+
+    /**
+     * @return true if a command must be secured when a channel key is
+     * installed: all but the diagnostics and the mutual authentication
+     */
+    private static boolean isProtected(byte ins) {
+        return ins != GET_MEMORY_STATUS && ins != GET_METRICS && ins != MUTUAL_AUTHENTICATE;
+    }
+
+    /**
+     * executes a command once its CLA and C-MAC are checked
+     */
+    private void execute(APDU apdu) {
+        byte buffer[] = apdu.getBuffer();
+
+        switch (buffer[ISO7816.OFFSET_INS]) {
+            case VERIFY:
+                verify(apdu);
+                return;
+            case GET_BALANCE:
+                getBalance(apdu);
+                return;
+            case UPDATE_PURCHASE_INFO:
+                updatePurchaseInfo(apdu);
+                return;
+            case GET_PURCHASE_HISTORIES:
+                getPurchaseHistories(apdu);
+                return;
+            case GET_PURCHASE_HISTORIES_BY_TIME:
+                getPurchaseHistoriesByTime(apdu);
+                return;
+            case GET_PURCHASE_HISTORIES_BY_STATION:
+                getPurchaseHistoriesByStation(apdu);
+                return;
+            case CHANGE_PIN:
+                changePIN(apdu);
+                return;
+            case GET_LAST_PURCHASE_HISTORY:
+                getLastPurchaseHistory(apdu);
+                return;
+            case GET_MEMORY_STATUS:
+                getMemoryStatus(apdu);
+                return;
+            case PURCHASE_WITH_RECEIPT:
+                purchaseWithReceipt(apdu);
+                return;
+            case GET_PURCHASE_HISTORIES_SINCE:
+                getPurchaseHistoriesSince(apdu);
+                return;
+            case GET_AGGREGATES:
+                getAggregates(apdu);
+                return;
+            case GET_METRICS:
+                getMetrics(apdu);
+                return;
+            case MUTUAL_AUTHENTICATE:
+                mutualAuthenticate(apdu);
+                return;
+            case QUERY_PURCHASE_HISTORIES:
+                queryPurchaseHistories(apdu);
+                return;
+            case PRE_AUTHORIZE:
+                preAuthorize(apdu);
+                return;
+            case CAPTURE:
+                capture(apdu);
+                return;
+            case CHECK_PURCHASES:
+                checkPurchases(apdu);
+                return;
+            case GET_CHANGE_COUNTER:
+                getChangeCounter(apdu);
+                return;
+            default:
+                ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
+        }
+        
+    }
+
+    /**
+     * receive the data of the command
+     *
+     * @return length of the data, without the C-MAC of a secured command
+     */
+    private short receive(APDU apdu) {
+        if (secureChannel != null && secureChannel.isSecured()) {
+            return secureChannel.dataLength();
+        }
+        return apdu.setIncomingAndReceive();
+    }
+
+    /**
+     * @return length of the whole data of the command, without the C-MAC of
+     * a secured command
+     */
+    private short incomingLength(APDU apdu) {
+        if (secureChannel != null && secureChannel.isSecured()) {
+            return secureChannel.dataLength();
+        }
+        return apdu.getIncomingLength();
+    }
+
+    /**
+     * send the response data at the start of the APDU buffer, followed by
+     * its R-MAC when the command is secured
+     *
+     * @param length: length of the response data
+     */
+    private void send(APDU apdu, short length) {
+        if (secureChannel != null && secureChannel.isSecured()) {
+            length = secureChannel.wrap(apdu.getBuffer(), (short) 0, length);
+        }
+        apdu.setOutgoingAndSend((short) 0, length);
+    }
+
+    /**
+     * mutual authenticate, opens the secure channel of this selection. P1:
+     * CHANNEL_INITIALIZE (data: host challenge, response: card challenge and
+     * card cryptogram) or CHANNEL_AUTHENTICATE (data: host cryptogram).
+     */
+    private void mutualAuthenticate(APDU apdu) {
+        byte[] buffer = apdu.getBuffer();
+
+        if (secureChannel == null) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+
+        short byteRead = receive(apdu);
+        switch (buffer[ISO7816.OFFSET_P1]) {
+            case CHANNEL_INITIALIZE:
+                send(apdu, secureChannel.initialize(buffer, apdu.getOffsetCdata(), byteRead, (short) 0));
+                return;
+            case CHANNEL_AUTHENTICATE:
+                secureChannel.authenticate(buffer, apdu.getOffsetCdata(), byteRead);
+                return;
+            default:
+                ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
+    }
+
+    /**
+     * verifies the PIN
+     */
+    private void verify(APDU apdu) {
+        byte[] buffer = apdu.getBuffer();
+
+        // retireve the PIN data for validation
+        byte byteRead = (byte) receive(apdu);
+        
+        // verify PIN
+        if (pin.check(buffer, ISO7816.OFFSET_CDATA, byteRead) == false) {
+            if (pin.getTriesRemaining() == 0) {
+                ISOException.throwIt(SW_PIN_IS_BLOCKED);
+            }
+            ISOException.throwIt(SW_VERIFICATION_FAILED);
+        }
+    }
+
+    /**
+     * update the purchase info, the data is an update message (one purchase
+     * info) or a batch update message (many purchase infos). A message longer
+     * than one command is sent with command chaining or extended length.
+     */
+    private void updatePurchaseInfo(APDU apdu) {
+        byte buffer[] = apdu.getBuffer();
+
+        // check the validation of PIN
+        if (!pin.isValidated()) {
+            chainingLength[0] = 0;
+            ISOException.throwIt(SW_PIN_VERIFICATION_REQUIRED);
+        }
+
+        // retrieve the data for update
+        short byteRead = receive(apdu);
+        
+        byte[] data = buffer;
+        short offset = apdu.getOffsetCdata();
+        short length = byteRead;
+
+        // gather a chained or long message in chainingBuffer
+        if (apdu.isCommandChainingCLA() || chainingLength[0] != 0 || byteRead < incomingLength(apdu)) {
+            receiveChained(apdu, byteRead);
+            if (apdu.isCommandChainingCLA()) {
+                // wait for the last command of the chain
+                return;
+            }
+            data = chainingBuffer;
+            offset = 0;
+            length = chainingLength[0];
+            chainingLength[0] = 0;
+        }
+
+        // the data is exactly one message
+        byte tag = data[offset];
+        if (readTLV(data, offset, (short) (offset + length)) != (short) (offset + length)) {
+            ISOException.throwIt(INVALID_UPDATE_PURCHASE_INFO);
+        }
+        
+        short valueOffset = tlvHeader[TLV_VALUE_OFFSET];
+        short valueEnd = (short) (valueOffset + tlvHeader[TLV_LENGTH]);
+        if (tag == UPDATE_MESSAGE_TAG) {
+            updatePurchase(data, valueOffset, valueEnd, false);
+        } else if (tag == BATCH_MESSAGE_TAG) {
+            updatePurchaseBatch(apdu, data, valueOffset, valueEnd);
+        } else {
+            ISOException.throwIt(INVALID_UPDATE_PURCHASE_INFO);
+        }
+    }
+
+    /**
+     * update one purchase info and send its receipt, saves the get balance
+     * and get last purchase history round-trips. The data is an update
+     * message, P1: RECEIPT_PLAIN or RECEIPT_MAC.
+     *
+     * response: receipt TLV (E5) of the sequence number (C9), the account
+     * balance (CA) and the stored purchase info (E2). With RECEIPT_MAC it ends
+     * with the AES-CMAC (C8) of the receipt value before it.
+     */
+    private void purchaseWithReceipt(APDU apdu) {
+        byte buffer[] = apdu.getBuffer();
+
+        // check the validation of PIN
+        if (!pin.isValidated()) {
+            ISOException.throwIt(SW_PIN_VERIFICATION_REQUIRED);
+        }
+
+        byte mode = receiptMode(buffer);
+
+        // the update message fits in one command
+        short byteRead = receive(apdu);
+        if (byteRead != incomingLength(apdu)) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        short offset = apdu.getOffsetCdata();
+        short end = (short) (offset + byteRead);
+        if (buffer[offset] != UPDATE_MESSAGE_TAG || readTLV(buffer, offset, end) != end) {
+            ISOException.throwIt(INVALID_UPDATE_PURCHASE_INFO);
+        }
+        updatePurchase(buffer, tlvHeader[TLV_VALUE_OFFSET], end, false);
+        sendReceipt(apdu, mode);
+    }
+
+    /**
+     * hold the maximum cost of a purchase against the account balance, the
+     * terminal starts the pump on the response. The hold is captured or
+     * released by capture, it expires when it is not captured before
+     * HOLD_SELECTIONS selections. The purchase histories are not written,
+     * nor the balance. The data is the maximum cost (4 bytes).
+     *
+     * response: handle of the hold (2 bytes), account balance left for other
+     * purchases (4 bytes)
+     */
+    private void preAuthorize(APDU apdu) {
+        byte buffer[] = apdu.getBuffer();
+
+        // check the validation of PIN
+        if (!pin.isValidated()) {
+            ISOException.throwIt(SW_PIN_VERIFICATION_REQUIRED);
+        }
+
+        short byteRead = receive(apdu);
+        if (byteRead != Arithmetic.INT_LENGTH) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        short offset = apdu.getOffsetCdata();
+        if (buffer[offset] < 0) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+
+        // one hold at a time
+        if (hold[HOLD_LIFETIME_OFFSET] != 0) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        if (Arithmetic.compare(accountBalance, (short) 0, buffer, offset) < 0) {
+            ISOException.throwIt(SW_NOT_ENOUGH_ACCOUNT_BALANCE);
+        }
+
+        // the hold is valid once its lifetime is written, the last byte
+        // written, so it needs no transaction
+        nvmWrites[0] += PurchaseHistory.copyChanged(buffer, offset, hold, HOLD_AMOUNT_OFFSET, Arithmetic.INT_LENGTH);
+        Util.setShort(hold, HOLD_HANDLE_OFFSET, (short) (Util.getShort(hold, HOLD_HANDLE_OFFSET) + 1));
+        hold[HOLD_LIFETIME_OFFSET] = HOLD_SELECTIONS;
+        nvmWrites[0] += 3;
+
+        Util.arrayCopyNonAtomic(hold, HOLD_HANDLE_OFFSET, buffer, (short) 0, HOLD_HANDLE_LENGTH);
+        availableBalance(buffer, HOLD_HANDLE_LENGTH);
+        send(apdu, (short) (HOLD_HANDLE_LENGTH + Arithmetic.INT_LENGTH));
+    }
+
+    /**
+     * capture a hold: the purchase is updated as by purchase with receipt, at
+     * most the amount held, and the rest of the hold is released. The data is
+     * the handle of the hold followed by the update message, or the handle
+     * only to release the whole hold. P1: RECEIPT_PLAIN or RECEIPT_MAC.
+     *
+     * response: the receipt of the purchase (see purchase with receipt), none
+     * for a release
+     */
+    private void capture(APDU apdu) {
+        byte buffer[] = apdu.getBuffer();
+
+        // check the validation of PIN
+        if (!pin.isValidated()) {
+            ISOException.throwIt(SW_PIN_VERIFICATION_REQUIRED);
+        }
+
+        byte mode = receiptMode(buffer);
+
+        // the handle and the update message fit in one command
+        short byteRead = receive(apdu);
+        if (byteRead != incomingLength(apdu) || byteRead < HOLD_HANDLE_LENGTH) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        short offset = apdu.getOffsetCdata();
+        if (hold[HOLD_LIFETIME_OFFSET] == 0
+                || Util.arrayCompare(buffer, offset, hold, HOLD_HANDLE_OFFSET, HOLD_HANDLE_LENGTH) != 0) {
+            ISOException.throwIt(SW_HOLD_NOT_FOUND);
+        }
+        if (byteRead == HOLD_HANDLE_LENGTH) {
+            hold[HOLD_LIFETIME_OFFSET] = 0;
+            nvmWrites[0]++;
+            return;
+        }
+
+        offset += HOLD_HANDLE_LENGTH;
+        short end = (short) (offset + byteRead - HOLD_HANDLE_LENGTH);
+        if (buffer[offset] != UPDATE_MESSAGE_TAG || readTLV(buffer, offset, end) != end) {
+            ISOException.throwIt(INVALID_UPDATE_PURCHASE_INFO);
+        }
+        updatePurchase(buffer, tlvHeader[TLV_VALUE_OFFSET], end, true);
+        sendReceipt(apdu, mode);
+    }
+
+    /**
+     * @return P1 of a command sending a receipt, RECEIPT_PLAIN or RECEIPT_MAC
+     */
+    private byte receiptMode(byte[] buffer) {
+        byte mode = buffer[ISO7816.OFFSET_P1];
+        if (mode != RECEIPT_PLAIN && mode != RECEIPT_MAC) {
+            ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
+        if (mode == RECEIPT_MAC && receiptMac == null) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        return mode;
+    }
+
+    /**
+     * send the receipt of the purchase just updated
+     *
+     * @param mode: RECEIPT_PLAIN or RECEIPT_MAC
+     */
+    private void sendReceipt(APDU apdu, byte mode) {
+        byte buffer[] = apdu.getBuffer();
+
+        // the receipt overwrites the command in the APDU buffer
+        short slot = purchaseHistory.newestSlot();
+        short valueLength = RECEIPT_VALUE_LENGTH;
+        if (mode == RECEIPT_MAC) {
+            valueLength += 2 + RECEIPT_MAC_LENGTH;
+        }
+        buffer[0] = RECEIPT_TAG;
+        buffer[1] = (byte) valueLength;
+        short offset = purchaseHistory.encodeSequence(slot, buffer, (short) 2);
+        buffer[offset++] = BALANCE_TAG;
+        buffer[offset++] = (byte) PurchaseHistory.INT_LENGTH;
+        offset = Util.arrayCopyNonAtomic(accountBalance, (short) 0, buffer, offset, Arithmetic.INT_LENGTH);
+        offset = purchaseHistory.encode(slot, buffer, offset);
+
+        if (mode == RECEIPT_MAC) {
+            buffer[offset++] = SIGNATURE_TAG;
+            buffer[offset++] = (byte) RECEIPT_MAC_LENGTH;
+            offset += receiptMac.sign(buffer, (short) 2, RECEIPT_VALUE_LENGTH, buffer, offset);
+        }
+        send(apdu, offset);
+    }
+
+    /**
+     * append the data of the command to chainingBuffer
+     *
+     * @param apdu: the command
+     * @param byteRead: number of bytes already received in the APDU buffer
+     */
+    private void receiveChained(APDU apdu, short byteRead) {
+        byte[] buffer = apdu.getBuffer();
+        short offset = apdu.getOffsetCdata();
+        short length = chainingLength[0];
+        
+        while (byteRead > 0) {
+            if ((short) (chainingBuffer.length - length) < byteRead) {
+                chainingLength[0] = 0;
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+            }
+            Util.arrayCopyNonAtomic(buffer, offset, chainingBuffer, length, byteRead);
+            length += byteRead;
+            byteRead = apdu.receiveBytes(offset);
+        }
+        chainingLength[0] = length;
+    }
+
+    /**
+     * update one purchase info
+     *
+     * @param buffer: buffer contain the update message
+     * @param offset: offset of the value of the update message
+     * @param end: end of the value of the update message
+     * @param capture: true to pay the purchase with the hold and release it
+     */
+    private void updatePurchase(byte[] buffer, short offset, short end, boolean capture) {
+        // read the fields of the message
+        short status = parseFields(buffer, offset, end, UPDATE_MESSAGE_FIELDS);
+        if (status != ISO7816.SW_NO_ERROR) {
+            ISOException.throwIt(status);
+        }
+
+        // verify the station signature
+        verifyStationSignature(buffer, offset, purchaseFields[FIELD_SIGNATURE], end);
+
+        // pack the buy time in place, it is stored as BCD
+        if (!packBuyTime(buffer)) {
+            ISOException.throwIt(INVAILD_NUMBER_FORMAT);
+        }
+
+        // the new balance is staged in RAM, a refused purchase writes nothing
+        stageAccountBalance(buffer, purchaseFields[FIELD_AMOUNT], purchaseFields[FIELD_PRICE], capture);
+
+        // if no error, update purchase histories (and their aggregates) and
+        // account balance in one transaction
+        beginCommit();
+        purchaseHistory.append(buffer, purchaseFields[FIELD_STATION_ID], purchaseFields[FIELD_BUY_TIME],
+                purchaseFields[FIELD_AMOUNT], purchaseFields[FIELD_PRICE]);
+        nvmWrites[0] += PurchaseHistory.copyChanged(arithmeticSpace, BALANCE_OFFSET, accountBalance, (short) 0, Arithmetic.INT_LENGTH);
+        if (capture) {
+            hold[HOLD_LIFETIME_OFFSET] = 0;
+            nvmWrites[0]++;
+        }
+        commit();
+    }
+
+    /**
+     * begin the transaction of a command, see commit
+     */
+    private void beginCommit() {
+        commitUsage[COMMIT_WRITES] = nvmWrites[0];
+        commitUsage[COMMIT_CAPACITY] = JCSystem.getUnusedCommitCapacity();
+        JCSystem.beginTransaction();
+    }
+
+    /**
+     * commit the transaction of a command, the transaction buffer it used is
+     * kept in commitUsage for get memory status
+     */
+    private void commit() {
+        commitUsage[COMMIT_WRITES] = (short) (nvmWrites[0] - commitUsage[COMMIT_WRITES]);
+        commitUsage[COMMIT_CAPACITY] -= JCSystem.getUnusedCommitCapacity();
+        JCSystem.commitTransaction();
+    }
+
+    /**
+     * update a batch of purchase infos: the signature is verified once, the
+     * accepted purchase infos are committed in one transaction and the
+     * account balance is written once. A purchase info is rejected if its
+     * fields are invalid, its cost overflows, the balance left is not enough
+     * or the transaction buffer left cannot hold its append (see
+     * PurchaseHistory.appendCommitBound), which is checked before each one
+     * after the first so the transaction never overflows.
+     *
+     * response: number of purchase infos (1 byte), status of each purchase
+     * info (low byte of the SW it gets as a single update, 00 if accepted),
+     * account balance (4 bytes)
+     *
+     * @param apdu: the command
+     * @param buffer: buffer contain the batch update message
+     * @param offset: offset of the value of the batch update message
+     * @param end: end of the value of the batch update message
+     */
+    private void updatePurchaseBatch(APDU apdu, byte[] buffer, short offset, short end) {
+        // list the purchase infos and find the signature, the last TLV
+        short count = 0;
+        short signatureOffset = -1;
+        short next = offset;
+        while (next < end) {
+            short tlvOffset = next;
+            byte tag = buffer[tlvOffset];
+            next = readTLV(buffer, tlvOffset, end);
+            if (tag == PurchaseHistory.PURCHASE_INFO_TAG && count < MAX_BATCH_RECORDS) {
+                batchRecords[(short) (2 * count)] = tlvHeader[TLV_VALUE_OFFSET];
+                batchRecords[(short) (2 * count + 1)] = tlvHeader[TLV_LENGTH];
+                count++;
+            } else if (tag == SIGNATURE_TAG && next == end && stationSignature.isValidLength(tlvHeader[TLV_LENGTH])) {
+                signatureOffset = tlvOffset;
+            } else {
+                ISOException.throwIt(INVALID_UPDATE_PURCHASE_INFO);
+            }
+        }
+        if (count == 0 || signatureOffset < 0) {
+            ISOException.throwIt(INVALID_UPDATE_PURCHASE_INFO);
+        }
+
+        // verify the station signature
+        verifyStationSignature(buffer, offset, signatureOffset, end);
+
+        // the purchases can use the balance not held
+        availableBalance(arithmeticSpace, BALANCE_OFFSET);
+
+        // the first append is not checked, a single update needs as much
+        boolean appended = false;
+        beginCommit();
+        for (short i = 0; i < count; i++) {
+            short infoOffset = batchRecords[(short) (2 * i)];
+            short infoEnd = (short) (infoOffset + batchRecords[(short) (2 * i + 1)]);
+
+            short status = parseFields(buffer, infoOffset, infoEnd, PURCHASE_INFO_FIELDS);
+            if (status == ISO7816.SW_NO_ERROR && !packBuyTime(buffer)) {
+                status = INVAILD_NUMBER_FORMAT;
+            }
+            if (status == ISO7816.SW_NO_ERROR) {
+                if (!Arithmetic.multiply(buffer, purchaseFields[FIELD_AMOUNT], buffer, purchaseFields[FIELD_PRICE], arithmeticSpace, COST_OFFSET)) {
+                    status = ARITHMETIC_EXCEPTION;
+                } else if (Arithmetic.compare(arithmeticSpace, BALANCE_OFFSET, arithmeticSpace, COST_OFFSET) < 0) {
+                    status = SW_NOT_ENOUGH_ACCOUNT_BALANCE;
+                } else if (appended && JCSystem.getUnusedCommitCapacity() < (short) (BATCH_COMMIT_RESERVE
+                        + purchaseHistory.appendCommitBound(buffer, purchaseFields[FIELD_BUY_TIME]))) {
+                    status = SW_COMMIT_CAPACITY_EXCEEDED;
+                } else {
+                    purchaseHistory.append(buffer, purchaseFields[FIELD_STATION_ID], purchaseFields[FIELD_BUY_TIME],
+                            purchaseFields[FIELD_AMOUNT], purchaseFields[FIELD_PRICE]);
+                    Arithmetic.subtract(arithmeticSpace, BALANCE_OFFSET, arithmeticSpace, COST_OFFSET, arithmeticSpace, BALANCE_OFFSET);
+                    appended = true;
+                }
+            }
+            batchStatus[i] = (byte) status;
+        }
+        if (hold[HOLD_LIFETIME_OFFSET] != 0) {
+            Arithmetic.add(arithmeticSpace, BALANCE_OFFSET, hold, HOLD_AMOUNT_OFFSET, arithmeticSpace, BALANCE_OFFSET);
+        }
+        nvmWrites[0] += PurchaseHistory.copyChanged(arithmeticSpace, BALANCE_OFFSET, accountBalance, (short) 0, Arithmetic.INT_LENGTH);
+        commit();
+
+        // send the status of each purchase info and the balance
+        byte[] response = apdu.getBuffer();
+        response[0] = (byte) count;
+        Util.arrayCopyNonAtomic(batchStatus, (short) 0, response, (short) 1, count);
+        Util.arrayCopyNonAtomic(accountBalance, (short) 0, response, (short) (count + 1), Arithmetic.INT_LENGTH);
+        send(apdu, (short) (count + 5));
+    }
+
+    /**
+     * read the header of a TLV, its value offset and length are kept in
+     * tlvHeader. Only one byte tags and lengths up to 2 bytes (0x82) are
+     * used by the messages.
+     *
+     * @param buffer: buffer contain the TLV
+     * @param offset: offset of the TLV
+     * @param end: end of the data the TLV must fit in
+     * @return offset of the next TLV
+     */
+    private short readTLV(byte[] buffer, short offset, short end) {
+        if ((short) (end - offset) < 2 || (buffer[offset] & 0x1F) == 0x1F) {
+            ISOException.throwIt(INVALID_UPDATE_PURCHASE_INFO);
+        }
+        short length = (short) (buffer[(short) (offset + 1)] & 0xFF);
+        offset += 2;
+        
+        if (length == 0x81 && offset < end) {
+            length = (short) (buffer[offset] & 0xFF);
+            offset++;
+        } else if (length == 0x82 && (short) (end - offset) >= 2) {
+            length = Util.getShort(buffer, offset);
+            offset += 2;
+        } else if (length > 0x7F) {
+            ISOException.throwIt(INVALID_UPDATE_PURCHASE_INFO);
+        }
+        if (length < 0 || length > (short) (end - offset)) {
+            ISOException.throwIt(INVALID_UPDATE_PURCHASE_INFO);
+        }
+        
+        tlvHeader[TLV_VALUE_OFFSET] = offset;
+        tlvHeader[TLV_LENGTH] = length;
+        return (short) (offset + length);
+    }
+
+    /**
+     * read the fields of a purchase info (and of its signature) in one pass,
+     * the value offset of each field is kept in purchaseFields. The signature
+     * must be the last field, its TLV offset is kept.
+     *
+     * @param buffer: buffer contain the fields
+     * @param offset: offset of the first field
+     * @param end: end of the fields
+     * @param fieldCount: number of fields expected, PURCHASE_INFO_FIELDS or
+     * UPDATE_MESSAGE_FIELDS
+     * @return SW_NO_ERROR if every field is found once with its length, else
+     * INVALID_UPDATE_PURCHASE_INFO
+     */
+    private short parseFields(byte[] buffer, short offset, short end, short fieldCount) {
+        for (short i = 0; i < fieldCount; i++) {
+            purchaseFields[i] = -1;
+        }
+
+        while (offset < end) {
+            short tlvOffset = offset;
+            short field = (short) (buffer[offset] - PurchaseHistory.STATION_ID_TAG);
+            offset = readTLV(buffer, offset, end);
+
+            if (field == FIELD_SIGNATURE && field < fieldCount) {
+                // the signature signs the fields before it
+                if (offset != end || !stationSignature.isValidLength(tlvHeader[TLV_LENGTH])) {
+                    return INVALID_UPDATE_PURCHASE_INFO;
+                }
+                purchaseFields[FIELD_SIGNATURE] = tlvOffset;
+                break;
+            }
+            
+            // reject unknown, duplicated and wrong length fields
+            if (field < 0 || field >= PURCHASE_INFO_FIELDS || purchaseFields[field] >= 0
+                    || tlvHeader[TLV_LENGTH] != FIELD_LENGTHS[field]) {
+                return INVALID_UPDATE_PURCHASE_INFO;
+            }
+            purchaseFields[field] = tlvHeader[TLV_VALUE_OFFSET];
+        }
+
+        // reject missing fields
+        for (short i = 0; i < fieldCount; i++) {
+            if (purchaseFields[i] < 0) {
+                return INVALID_UPDATE_PURCHASE_INFO;
+            }
+        }
+        return ISO7816.SW_NO_ERROR;
+    }
+
+    /**
+     * pack the buy time of the parsed purchase info in place, it is stored as
+     * BCD
+     *
+     * @param buffer: buffer contain the purchase info
+     * @return false if the buy time is not 10 digits
+     */
+    private boolean packBuyTime(byte[] buffer) {
+        short buyTimeValueOffset = purchaseFields[FIELD_BUY_TIME];
+        return PurchaseHistory.packTime(buffer, buyTimeValueOffset, PurchaseHistory.BUY_TIME_LENGTH, (byte) 0, buffer, buyTimeValueOffset);
+    }
+
+    /**
+     * get balance function
+     */
+    private void getBalance(APDU apdu) {
+        byte[] buffer = apdu.getBuffer();
+        Util.arrayCopyNonAtomic(accountBalance, (short) 0, buffer, (short) 0, Arithmetic.INT_LENGTH);
+        // send the balance
+        send(apdu, (short) 4);
+        
+    }
+
+    /**
+     * get memory status, used to check that no command allocates memory
+     * after install and how much each command writes to persistent memory.
+     * P1: MEMORY_GET, MEMORY_MARK, MEMORY_CHECK, MEMORY_NVM_WRITES or
+     * MEMORY_COMMIT. The
+     * writes counted are those of the applet, not the ones made by the JCRE
+     * (PIN try counter, transaction log).
+     */
+    private void getMemoryStatus(APDU apdu) {
+        byte[] buffer = apdu.getBuffer();
+        
+        JCSystem.getAvailableMemory(memoryStatus, (short) 0, JCSystem.MEMORY_TYPE_PERSISTENT);
+        switch (buffer[ISO7816.OFFSET_P1]) {
+            case MEMORY_GET:
+                Util.setShort(buffer, (short) 0, memoryStatus[0]);
+                Util.setShort(buffer, (short) 2, memoryStatus[1]);
+                JCSystem.getAvailableMemory(memoryStatus, (short) 0, JCSystem.MEMORY_TYPE_TRANSIENT_DESELECT);
+                Util.setShort(buffer, (short) 4, memoryStatus[0]);
+                Util.setShort(buffer, (short) 6, memoryStatus[1]);
+                send(apdu, (short) 8);
+                return;
+            case MEMORY_MARK:
+                memoryStatus[2] = memoryStatus[0];
+                memoryStatus[3] = memoryStatus[1];
+                return;
+            case MEMORY_CHECK:
+                if (memoryStatus[2] != memoryStatus[0] || memoryStatus[3] != memoryStatus[1]) {
+                    ISOException.throwIt(SW_MEMORY_CHANGED);
+                }
+                return;
+            case MEMORY_NVM_WRITES:
+                Util.setShort(buffer, (short) 0, nvmWrites[0]);
+                send(apdu, (short) 2);
+                return;
+            case MEMORY_COMMIT:
+                Util.setShort(buffer, (short) 0, commitUsage[COMMIT_WRITES]);
+                Util.setShort(buffer, (short) 2, commitUsage[COMMIT_CAPACITY]);
+                send(apdu, (short) 4);
+                return;
+            default:
+                ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
+    }
+
+    /**
+     * get metrics, the health counters of the applet. P1: METRICS_SUMMARY,
+     * METRICS_COMMANDS, METRICS_NVM_WRITES or METRICS_FAILURES. The counters
+     * are 4 bytes each, in the order of the command slots or of the status
+     * slots of Metrics, and do not count this command.
+     */
+    private void getMetrics(APDU apdu) {
+        byte[] buffer = apdu.getBuffer();
+
+        short length;
+        switch (buffer[ISO7816.OFFSET_P1]) {
+            case METRICS_SUMMARY:
+                JCSystem.getAvailableMemory(memoryStatus, (short) 0, JCSystem.MEMORY_TYPE_PERSISTENT);
+                Util.setShort(buffer, (short) 0, memoryStatus[0]);
+                Util.setShort(buffer, (short) 2, memoryStatus[1]);
+                length = purchaseHistory.encodeUsage(buffer, (short) 4);
+                break;
+            case METRICS_COMMANDS:
+                length = metrics.encodeCommands(buffer, (short) 0);
+                break;
+            case METRICS_NVM_WRITES:
+                length = metrics.encodeWrites(buffer, (short) 0);
+                break;
+            case METRICS_FAILURES:
+                length = metrics.encodeFailures(buffer, (short) 0);
+                break;
+            default:
+                ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+                return;
+        }
+        send(apdu, length);
+    }
+
+    /**
+     * get purchase histories, P1: index of the first history (0 is the
+     * oldest), P2: maximum number of histories (0 for all)
+     */
+    private void getPurchaseHistories(APDU apdu) {
+        byte buffer[] = apdu.getBuffer();
+
+        // check the validation of PIN
+        if (!pin.isValidated()) {
+            ISOException.throwIt(SW_PIN_VERIFICATION_REQUIRED);
+        }
+        
+        // if purchaseHistories is empty, throw SW_PURCHASE_INFO_NOT_FOUND
+        if (purchaseHistory.size() == 0) {
+            ISOException.throwIt(SW_PURCHASE_INFO_NOT_FOUND);
+            return;
+        }
+
+        short first = (short) (buffer[ISO7816.OFFSET_P1] & 0xFF);
+        short number = (short) (buffer[ISO7816.OFFSET_P2] & 0xFF);
+        if (number == 0) {
+            number = purchaseHistory.size();
+        }
+
+        // send data to the host application
+        sendHistories(apdu, purchaseHistory.openRange(outputCursor, first, number), (short) 0);
+        
+    }
+
+    /**
+     * get purchase histories by time
+     */
+    private void getPurchaseHistoriesByTime(APDU apdu) {
+        byte buffer[] = apdu.getBuffer();
 
         // check the validation of PIN
         if (!pin.isValidated()) {
@@ -525,114 +1740,434 @@ public class SelfServiceGasStation extends Applet implements ExtendedLength {
         }
         
         // if purchaseHistories is empty, throw SW_PURCHASE_INFO_NOT_FOUND
-        if (purchaseHistories.getLength() == 0) {
+        if (purchaseHistory.size() == 0) {
             ISOException.throwIt(SW_PURCHASE_INFO_NOT_FOUND);
             return;
         }
         
-        apdu.setIncomingAndReceive();
+        short byteRead = receive(apdu);
         short offset = apdu.getOffsetCdata();
         
-        ConstructedBERTLV historiesResult = findHistoriesbyStation(buffer, offset);
+        // send data to the host application
+        sendHistories(apdu, findHistoriesbyTime(buffer, offset, byteRead), (short) 0);
+    }
+
+    /**
+     * get purchase histories by station
+     */
+    private void getPurchaseHistoriesByStation(APDU apdu) {
+        byte buffer[] = apdu.getBuffer();
+
+        // check the validation of PIN
+        if (!pin.isValidated()) {
+            ISOException.throwIt(SW_PIN_VERIFICATION_REQUIRED);
+        }
         
-        if (historiesResult.getLength() == 0) {
+        // if purchaseHistories is empty, throw SW_PURCHASE_INFO_NOT_FOUND
+        if (purchaseHistory.size() == 0) {
             ISOException.throwIt(SW_PURCHASE_INFO_NOT_FOUND);
-        } else {
-            // write purchase histories to exchangeData array
-            short numBytes = historiesResult.toBytes(exchangeData, (short) 0);
+            return;
+        }
+        
+        receive(apdu);
+        short offset = apdu.getOffsetCdata();
+        
+        // send data to the host application
+        sendHistories(apdu, findHistoriesbyStation(buffer, offset), (short) 0);
+    }
+
+    /**
+     * get the purchase histories stored since a sequence number, for an
+     * incremental download. The data is the sequence number (4 bytes), the
+     * high-water mark sent by the previous download.
+     *
+     * response: the next sequence number (C9), the high-water mark of the
+     * next download, then the purchase histories TLV (E1) of the records
+     * since the requested sequence number, oldest first, empty if there is
+     * none. The records have the sequence numbers before the high-water mark;
+     * when fewer records than expected are sent the oldest ones were
+     * overwritten.
+     */
+    private void getPurchaseHistoriesSince(APDU apdu) {
+        byte buffer[] = apdu.getBuffer();
+
+        // check the validation of PIN
+        if (!pin.isValidated()) {
+            ISOException.throwIt(SW_PIN_VERIFICATION_REQUIRED);
+        }
 
-            // send data to the host application
-            apdu.setOutgoing();
-            apdu.setOutgoingLength(numBytes);
-            apdu.sendBytesLong(exchangeData, (short) 0, numBytes);
+        short byteRead = receive(apdu);
+        if (byteRead != PurchaseHistory.SEQUENCE_LENGTH) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
         }
+        short number = purchaseHistory.openSince(outputCursor, buffer, apdu.getOffsetCdata());
+        if (number < 0) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+
+        // the high-water mark goes before the records
+        short offset = purchaseHistory.encodeNextSequence(buffer, (short) 0);
+        if (number == 0) {
+            offset = PurchaseHistory.encodeHistoriesHeader(buffer, offset, (short) 0);
+            send(apdu, offset);
+            return;
+        }
+        sendHistories(apdu, number, offset);
     }
 
     /**
-     * update account balance
+     * query purchase histories: the purchase histories matching all the
+     * criteria of the data, read in one pass (see PurchaseHistory.openQuery).
+     * The data is a list of criteria TLVs, a criterion given twice replaces
+     * the first one but the stations add up:
+     * - station ID (C4), up to MAX_FILTER_STATIONS, the histories of any of
+     * the stations
+     * - buy time (CB), a prefix (ex: 6 digit 140403) or the earliest and the
+     * latest time (10 digit each)
+     * - amount (CC) and price (CD), the minimum and the maximum
+     * - maximum number of histories (CE), 1 to 255, all if none
+     * - order (CF), storage order by default
+     * No criteria matches all the purchase histories.
+     *
+     * response: the purchase histories TLV (E1)
      */
-    void updateAccountBalance(byte[] buffer, short amountTLVOffset, short priceTLVOffset) {
-        
-        short amountValueOffset = PrimitiveBERTLV.getValueOffset(buffer, amountTLVOffset);
-        short priceValueOffset = PrimitiveBERTLV.getValueOffset(buffer, priceTLVOffset);
+    private void queryPurchaseHistories(APDU apdu) {
+        byte buffer[] = apdu.getBuffer();
 
-        int amount = JCint.getInt(buffer, amountValueOffset);
-        int price = JCint.getInt(buffer, priceValueOffset);
-        int cost = amount * price;
+        // check the validation of PIN
+        if (!pin.isValidated()) {
+            ISOException.throwIt(SW_PIN_VERIFICATION_REQUIRED);
+        }
 
-        // if account balance not enough, set account balance to 0 and throw exception
-        if (accountBalance < cost) {
-            accountBalance = 0;
-            ISOException.throwIt(SW_NOT_ENOUGH_ACCOUNT_BALANCE);
+        // if purchaseHistories is empty, throw SW_PURCHASE_INFO_NOT_FOUND
+        if (purchaseHistory.size() == 0) {
+            ISOException.throwIt(SW_PURCHASE_INFO_NOT_FOUND);
+            return;
         }
 
-        // update account balance
-        accountBalance -= cost;
-        
+        short byteRead = receive(apdu);
+        short offset = apdu.getOffsetCdata();
+        readQueryFilter(buffer, offset, (short) (offset + byteRead));
+
+        // send data to the host application
+        sendHistories(apdu, purchaseHistory.openQuery(outputCursor, queryFilter, (short) 0), (short) 0);
     }
 
     /**
-     * verify the station signature
+     * check purchases: the number of purchase histories of a station, of a
+     * date or of both, answers whether the card was used there (or then)
+     * without downloading the records. A station is answered by the count of
+     * its station index entry, one hash lookup; a date is answered by two
+     * binary searches in the time index and a station within a date reads
+     * the records of the station, both grow with the number of records.
+     * P1: CHECK_STATION, CHECK_DATE or CHECK_STATION_DATE.
      *
-     * @param buffer: buffer contain signature
-     * @param TVLOffset: offset to the Signature TLV
+     * response: number of purchase histories (2 bytes), 0 if none
      */
-    void verifyStationSignature(byte[] buffer, short TVLOffset) {
-        // write signatureTag to scratchSpace array
-        signatureTag.toBytes(scratchSpace, (short) 0);
+    private void checkPurchases(APDU apdu) {
+        byte buffer[] = apdu.getBuffer();
+
+        // check the validation of PIN
+        if (!pin.isValidated()) {
+            ISOException.throwIt(SW_PIN_VERIFICATION_REQUIRED);
+        }
 
-        // get the signature TLV Offset
-        short signatureTLVOffset = ConstructedBERTLV.find(buffer, TVLOffset, scratchSpace, (short) 0);
+        short byteRead = receive(apdu);
+        short offset = apdu.getOffsetCdata();
+        byte kind = buffer[ISO7816.OFFSET_P1];
+        if (kind != CHECK_STATION && kind != CHECK_DATE && kind != CHECK_STATION_DATE) {
+            ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
 
-        // get the value of signature TLV Offset
-        short signatureValueOffset = PrimitiveBERTLV.getValueOffset(buffer, signatureTLVOffset);
+        // the station ID goes first, the date follows
+        short dateLength = byteRead;
+        if (kind != CHECK_DATE) {
+            dateLength -= PurchaseHistory.STATION_ID_LENGTH;
+        }
+        if (kind == CHECK_STATION ? dateLength != 0 : (dateLength <= 0 || dateLength > PurchaseHistory.BUY_TIME_LENGTH)) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
 
-        // compare with dummySignature
-        if (Util.arrayCompare(buffer, signatureValueOffset, dummySignature, (short) 0, (byte) dummySignature.length) != 0) {
-            ISOException.throwIt(INVALID_STATION_SIGNATURE);
+        // the bounds of the date in queryFilter
+        short dateOffset = (short) (offset + byteRead - dateLength);
+        if (kind != CHECK_STATION
+                && !(PurchaseHistory.packTime(buffer, dateOffset, dateLength, (byte) 0, queryFilter, PurchaseHistory.FILTER_TIME_LOW)
+                && PurchaseHistory.packTime(buffer, dateOffset, dateLength, (byte) 9, queryFilter, PurchaseHistory.FILTER_TIME_HIGH))) {
+            ISOException.throwIt(INVAILD_NUMBER_FORMAT);
         }
-        
+
+        short number;
+        if (kind == CHECK_STATION) {
+            number = purchaseHistory.stationCount(buffer, offset);
+        } else if (kind == CHECK_DATE) {
+            number = purchaseHistory.openTimeRange(outputCursor, queryFilter, PurchaseHistory.FILTER_TIME_LOW, PurchaseHistory.FILTER_TIME_HIGH);
+        } else {
+            // the records of the station are read, within the date
+            short code = purchaseHistory.queryStation(buffer, offset);
+            queryFilter[PurchaseHistory.FILTER_FLAGS] = PurchaseHistory.FILTER_STATION | PurchaseHistory.FILTER_TIME;
+            queryFilter[PurchaseHistory.FILTER_ORDER] = PurchaseHistory.ORDER_OLDEST;
+            Util.setShort(queryFilter, PurchaseHistory.FILTER_LIMIT, Short.MAX_VALUE);
+            queryFilter[PurchaseHistory.FILTER_STATION_COUNT] = (byte) (code < 0 ? 0 : 1);
+            queryFilter[PurchaseHistory.FILTER_STATIONS] = (byte) code;
+            number = purchaseHistory.openQuery(outputCursor, queryFilter, (short) 0);
+        }
+
+        // only the number is sent, not the records of the cursor
+        Util.setShort(buffer, (short) 0, number);
+        send(apdu, (short) 2);
+    }
+
+    /**
+     * get change counter: the sequence number the next purchase history will
+     * get. Every purchase moves it and the purchase histories change only by
+     * purchases, so a terminal can serve the histories and the aggregates it
+     * cached while the counter is the same. The selection answers it too;
+     * this command reads it again after a purchase, without the PIN.
+     *
+     * response: the change counter as the next sequence number TLV (C9)
+     */
+    private void getChangeCounter(APDU apdu) {
+        byte buffer[] = apdu.getBuffer();
+        send(apdu, purchaseHistory.encodeNextSequence(buffer, (short) 0));
+    }
+
+    /**
+     * get the aggregates of the purchase histories the card holds, kept up to
+     * date by every update. P1: AGGREGATES_ALL, AGGREGATES_STATION (data:
+     * station ID) or AGGREGATES_MONTH (data: YYMM).
+     *
+     * response: number of purchase histories (2 bytes), total amount and
+     * total cost (6 bytes each, unsigned, they cannot overflow), 0 when no
+     * purchase history matches
+     */
+    private void getAggregates(APDU apdu) {
+        byte buffer[] = apdu.getBuffer();
+
+        // check the validation of PIN
+        if (!pin.isValidated()) {
+            ISOException.throwIt(SW_PIN_VERIFICATION_REQUIRED);
+        }
+
+        short byteRead = receive(apdu);
+        short offset = apdu.getOffsetCdata();
+        switch (buffer[ISO7816.OFFSET_P1]) {
+            case AGGREGATES_ALL:
+                purchaseHistory.encodeTotals(buffer, (short) 0);
+                break;
+            case AGGREGATES_STATION:
+                if (byteRead != PurchaseHistory.STATION_ID_LENGTH) {
+                    ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+                }
+                purchaseHistory.encodeStationTotals(buffer, offset, buffer, (short) 0);
+                break;
+            case AGGREGATES_MONTH:
+                if (byteRead != MONTH_LENGTH) {
+                    ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+                }
+                if (!PurchaseHistory.packTime(buffer, offset, MONTH_LENGTH, (byte) 0, scratchSpace, (short) 0)) {
+                    ISOException.throwIt(INVAILD_NUMBER_FORMAT);
+                }
+                purchaseHistory.encodeMonthTotals(scratchSpace, (short) 0, buffer, (short) 0);
+                break;
+            default:
+                ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
+        send(apdu, PurchaseHistory.AGGREGATES_SIZE);
+    }
+
+    /**
+     * start sending the purchase histories TLV of the records of outputCursor.
+     * The records are encoded in the APDU buffer while they are sent. Each
+     * response holds at most Ne bytes (the Le of the command, up to 256 for a
+     * short one), the rest is chained by 61xx and GET RESPONSE: an extended
+     * Le large enough gets the whole TLV in one response.
+     *
+     * @param apdu
+     * @param number: number of records of outputCursor
+     * @param offset: number of bytes already in the APDU buffer, sent before
+     * the purchase histories TLV
+     */
+    private void sendHistories(APDU apdu, short number, short offset) {
+        if (number == 0) {
+            ISOException.throwIt(SW_PURCHASE_INFO_NOT_FOUND);
+        }
+
+        byte[] buffer = apdu.getBuffer();
+        short valueLength = (short) (number * PurchaseHistory.PURCHASE_INFO_TLV_SIZE);
+        short le = apdu.setOutgoing();
+
+        // the header goes first in the buffer, the records follow
+        offset = PurchaseHistory.encodeHistoriesHeader(buffer, offset, valueLength);
+        outputCursor[OUTPUT_REMAINING] = valueLength;
+        outputCursor[OUTPUT_RECORD_OFFSET] = 0;
+        if (secureChannel != null && secureChannel.isSecured()) {
+            secureChannel.beginResponse(false);
+        }
+
+        sendOutput(apdu, offset, le);
+    }
+
+    /**
+     * continue the response of the previous command
+     */
+    private void getResponse(APDU apdu) {
+        if (outputCursor[OUTPUT_REMAINING] == 0) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        if (secureChannel != null && secureChannel.isSecured()) {
+            secureChannel.beginResponse(true);
+        }
+        sendOutput(apdu, (short) 0, apdu.setOutgoing());
     }
 
     /**
-     * create new purchase info TLV to update purchase histories
+     * send the next chunk of the response, then 61xx if bytes are left. A
+     * chunk of a secured command ends with its R-MAC, already begun, the 61xx
+     * count includes the R-MAC of the next chunk.
      *
-     * @param buffer
-     * @param stationIDOffset
-     * @param buyTimeOffset
-     * @param amountOffset
-     * @param priceOffset
+     * @param apdu
+     * @param offset: number of bytes already in the APDU buffer
+     * @param limit: maximum length of this chunk, Ne
      */
-    private ConstructedBERTLV createNewPurchaseInfoTLV(byte buffer[], short stationIDOffset, short buyTimeOffset, short amountOffset, short priceOffset) {
-        // create new empty purchaseInfo
-        Util.arrayFillNonAtomic(scratchSpace, (short) 0, (short) scratchSpace.length, (byte) 0);
-        purchaseInfoTag.toBytes(scratchSpace, (short) 0);
-        ConstructedBERTLV purchaseInfo = (ConstructedBERTLV) BERTLV.getInstance(scratchSpace, (short) 0, (short) 2);
+    private void sendOutput(APDU apdu, short offset, short limit) {
+        byte[] buffer = apdu.getBuffer();
+        boolean secured = secureChannel != null && secureChannel.isSecured();
+        short macLength = secured ? SecureChannel.MAC_LENGTH : 0;
+
+        // the bytes already in the buffer and the R-MAC must fit in the
+        // chunk, and a chunk must make progress
+        short room = (short) (limit - macLength);
+        if (room < offset || room <= 0) {
+            if (offset != 0) {
+                // the start of the response would be lost, nothing to continue
+                outputCursor[OUTPUT_REMAINING] = 0;
+            }
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+
+        short chunk = (short) (offset + outputCursor[OUTPUT_REMAINING]);
+        if (chunk > (short) (limit - macLength)) {
+            chunk = (short) (limit - macLength);
+        }
+        apdu.setOutgoingLength((short) (chunk + macLength));
+
+        // fill the APDU buffer and send it until the chunk is sent
+        while (chunk > 0) {
+            short end = chunk < (short) buffer.length ? chunk : (short) buffer.length;
+            offset = fillOutput(buffer, offset, end);
+            if (secured) {
+                secureChannel.updateResponse(buffer, (short) 0, offset);
+            }
+            apdu.sendBytes((short) 0, offset);
+            chunk -= offset;
+            offset = 0;
+        }
+        if (secured) {
+            apdu.sendBytes((short) 0, secureChannel.finishResponse(buffer, (short) 0));
+        }
 
-        // create the stationID TLV
-        PrimitiveBERTLV stationIDTLV = (PrimitiveBERTLV) BERTLV.getInstance(buffer, stationIDOffset, (short) 7);
+        short remaining = (short) (outputCursor[OUTPUT_REMAINING] + macLength);
+        if (outputCursor[OUTPUT_REMAINING] > 0) {
+            ISOException.throwIt((short) (ISO7816.SW_BYTES_REMAINING_00 | (remaining > 0xFF ? 0 : remaining)));
+        }
+    }
 
-        // append to the purchaseInfo
-        purchaseInfo.append(stationIDTLV);
+    /**
+     * encode the next bytes of the records of outputCursor
+     *
+     * @param buffer: output buffer
+     * @param offset: output offset
+     * @param end: offset to stop at
+     * @return offset following the written bytes
+     */
+    private short fillOutput(byte[] buffer, short offset, short end) {
+        while (offset < end && outputCursor[OUTPUT_REMAINING] > 0) {
+            short slot = purchaseHistory.cursorSlot(outputCursor);
+            short recordOffset = outputCursor[OUTPUT_RECORD_OFFSET];
+            short length = (short) (PurchaseHistory.PURCHASE_INFO_TLV_SIZE - recordOffset);
+
+            if (recordOffset == 0 && length <= (short) (end - offset)) {
+                // the whole record fits, encode it in place
+                purchaseHistory.encode(slot, buffer, offset);
+            } else {
+                // encode the record aside and copy the part which fits
+                purchaseHistory.encode(slot, scratchSpace, (short) 0);
+                if (length > (short) (end - offset)) {
+                    length = (short) (end - offset);
+                }
+                Util.arrayCopyNonAtomic(scratchSpace, recordOffset, buffer, offset, length);
+            }
 
-        // create the buyTime TLV
-        PrimitiveBERTLV buyTimeTLV = (PrimitiveBERTLV) BERTLV.getInstance(buffer, buyTimeOffset, (short) 12);
+            offset += length;
+            recordOffset += length;
+            outputCursor[OUTPUT_REMAINING] -= length;
+            if (recordOffset == PurchaseHistory.PURCHASE_INFO_TLV_SIZE) {
+                recordOffset = 0;
+                purchaseHistory.cursorNext(outputCursor);
+            }
+            outputCursor[OUTPUT_RECORD_OFFSET] = recordOffset;
+        }
+        return offset;
+    }
 
-        // append to the purchaseInfo
-        purchaseInfo.append(buyTimeTLV);
+    /**
+     * compute the account balance after a purchase into arithmeticSpace
+     * (BALANCE_OFFSET), the account balance itself is not written
+     *
+     * @param capture: true if the purchase is paid with the hold
+     */
+    void stageAccountBalance(byte[] buffer, short amountValueOffset, short priceValueOffset, boolean capture) {
+        
+        // cost = amount * price, a negative value or an overflow is refused
+        if (!Arithmetic.multiply(buffer, amountValueOffset, buffer, priceValueOffset, arithmeticSpace, COST_OFFSET)) {
+            ISOException.throwIt(ARITHMETIC_EXCEPTION);
+        }
 
-        // create the amount TLV
-        PrimitiveBERTLV amountTLV = (PrimitiveBERTLV) BERTLV.getInstance(buffer, amountOffset, (short) 6);
+        // a capture may spend the amount held, another purchase the balance
+        // not held. If it is not enough, throw exception, the balance is kept
+        if (capture) {
+            Util.arrayCopyNonAtomic(hold, HOLD_AMOUNT_OFFSET, arithmeticSpace, BALANCE_OFFSET, Arithmetic.INT_LENGTH);
+        } else {
+            availableBalance(arithmeticSpace, BALANCE_OFFSET);
+        }
+        if (Arithmetic.compare(arithmeticSpace, BALANCE_OFFSET, arithmeticSpace, COST_OFFSET) < 0) {
+            ISOException.throwIt(capture ? SW_HOLD_EXCEEDED : SW_NOT_ENOUGH_ACCOUNT_BALANCE);
+        }
 
-        // append to the purchaseInfo
-        purchaseInfo.append(amountTLV);
+        // new account balance
+        Arithmetic.subtract(accountBalance, (short) 0, arithmeticSpace, COST_OFFSET, arithmeticSpace, BALANCE_OFFSET);
+        
+    }
 
-        // create the price TLV
-        PrimitiveBERTLV priceTLV = (PrimitiveBERTLV) BERTLV.getInstance(buffer, priceOffset, (short) 6);
-        purchaseInfo.append(priceTLV);
+    /**
+     * write the account balance less the amount held
+     *
+     * @param buffer: destination buffer
+     * @param offset: offset of the balance (4 bytes)
+     */
+    private void availableBalance(byte[] buffer, short offset) {
+        if (hold[HOLD_LIFETIME_OFFSET] != 0) {
+            Arithmetic.subtract(accountBalance, (short) 0, hold, HOLD_AMOUNT_OFFSET, buffer, offset);
+        } else {
+            Util.arrayCopyNonAtomic(accountBalance, (short) 0, buffer, offset, Arithmetic.INT_LENGTH);
+        }
+    }
 
-        // return the purchaseInfo
-        return purchaseInfo;
+    /**
+     * verify the station signature, it signs the message value before the
+     * signature TLV
+     *
+     * @param buffer: buffer contain the message
+     * @param offset: offset of the message value
+     * @param signatureOffset: offset of the signature TLV
+     * @param end: end of the message value
+     */
+    void verifyStationSignature(byte[] buffer, short offset, short signatureOffset, short end) {
+        readTLV(buffer, signatureOffset, end);
+        if (!stationSignature.verify(buffer, offset, (short) (signatureOffset - offset),
+                tlvHeader[TLV_VALUE_OFFSET], tlvHeader[TLV_LENGTH])) {
+            ISOException.throwIt(INVALID_STATION_SIGNATURE);
+        }
         
     }
 
@@ -640,29 +2175,42 @@ public class SelfServiceGasStation extends Applet implements ExtendedLength {
      * find purchase histories by time
      *
      * @param buffer: buffer contain time
-     * @param offset: offset of time (time: 6 digit 140403)
-     * @return: histories by time
+     * @param offset: offset of time (P1 TIME_PREFIX: prefix of the time, ex:
+     * 6 digit 140403; P1 TIME_RANGE: earliest and latest time, 10 digit each)
+     * @param length: length of the data
+     * @return: number of matching histories, opened in outputCursor
      */
-    private ConstructedBERTLV findHistoriesbyTime(byte[] buffer, short offset) {
-
-        // create historiesResult to save search result
-        Util.arrayFillNonAtomic(scratchSpace, (short) 0, (short) scratchSpace.length, (byte) 0);
-        purchaseHistoriesTag.toBytes(scratchSpace, (short) 0);
-        ConstructedBERTLV historiesResult = (ConstructedBERTLV) BERTLV.getInstance(scratchSpace, (short) 0, (short) 2);
+    private short findHistoriesbyTime(byte[] buffer, short offset, short length) {
+        // turn the request into packed bounds in scratchSpace
+        short lowOffset = 0;
+        short highOffset = PurchaseHistory.PACKED_TIME_LENGTH;
+        boolean valid = false;
         
-        ConstructedBERTLV tempPurchaseInfo = (ConstructedBERTLV) purchaseHistories.find(purchaseInfoTag);
+        switch (buffer[ISO7816.OFFSET_P1]) {
+            case TIME_PREFIX:
+                if (length <= 0 || length > PurchaseHistory.BUY_TIME_LENGTH) {
+                    ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+                }
+                valid = PurchaseHistory.packTime(buffer, offset, length, (byte) 0, scratchSpace, lowOffset)
+                        && PurchaseHistory.packTime(buffer, offset, length, (byte) 9, scratchSpace, highOffset);
+                break;
+            case TIME_RANGE:
+                if (length != (short) (PurchaseHistory.BUY_TIME_LENGTH * 2)) {
+                    ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+                }
+                valid = PurchaseHistory.packTime(buffer, offset, PurchaseHistory.BUY_TIME_LENGTH, (byte) 0, scratchSpace, lowOffset)
+                        && PurchaseHistory.packTime(buffer, (short) (offset + PurchaseHistory.BUY_TIME_LENGTH), PurchaseHistory.BUY_TIME_LENGTH, (byte) 0, scratchSpace, highOffset);
+                break;
+            default:
+                ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
         
-        while (tempPurchaseInfo != null) {
-            PrimitiveBERTLV buyTimeTLV = (PrimitiveBERTLV) tempPurchaseInfo.find(buyTimeTag);
-            buyTimeTLV.getValue(scratchSpace, (short) 0);
-            if (Util.arrayCompare(buffer, offset, scratchSpace, (short) 0, (short) 6) == 0) {
-                historiesResult.append(tempPurchaseInfo);
-            }
-            
-            tempPurchaseInfo = (ConstructedBERTLV) purchaseHistories.findNext(purchaseInfoTag, tempPurchaseInfo, (short) 1);
+        if (!valid) {
+            ISOException.throwIt(INVAILD_NUMBER_FORMAT);
         }
         
-        return historiesResult;
+        // the time index gives the matching records in time order
+        return purchaseHistory.openTimeRange(outputCursor, scratchSpace, lowOffset, highOffset);
     }
 
     /**
@@ -670,31 +2218,93 @@ public class SelfServiceGasStation extends Applet implements ExtendedLength {
      *
      * @param buffer: buffer contain station id
      * @param offset: offset of station id (station id is 5 digit)
-     * @return: histories by station id
+     * @return: number of matching histories, opened in outputCursor
+     */
+    private short findHistoriesbyStation(byte[] buffer, short offset) {
+        // the station index gives the matching records directly
+        return purchaseHistory.openStation(outputCursor, buffer, offset);
+    }
+    
+    /**
+     * read the criteria TLVs of a query into queryFilter, the stations are
+     * turned into their codes, the stations without records are left out
+     *
+     * @param buffer: buffer contain the criteria
+     * @param offset: offset of the first criterion
+     * @param end: end of the criteria
      */
-    private ConstructedBERTLV findHistoriesbyStation(byte[] buffer, short offset) {
+    private void readQueryFilter(byte[] buffer, short offset, short end) {
+        Util.arrayFillNonAtomic(queryFilter, (short) 0, PurchaseHistory.FILTER_SIZE, (byte) 0);
+        Util.setShort(queryFilter, PurchaseHistory.FILTER_LIMIT, Short.MAX_VALUE);
+        short stations = 0;
+
+        while (offset < end) {
+            byte tag = buffer[offset];
+            offset = readTLV(buffer, offset, end);
+            short valueOffset = tlvHeader[TLV_VALUE_OFFSET];
+            short length = tlvHeader[TLV_LENGTH];
+            byte flag = 0;
+            boolean valid = true;
+
+            switch (tag) {
+                case PurchaseHistory.STATION_ID_TAG:
+                    if (length != PurchaseHistory.STATION_ID_LENGTH || stations == PurchaseHistory.MAX_FILTER_STATIONS) {
+                        ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+                    }
+                    stations++;
+                    short code = purchaseHistory.queryStation(buffer, valueOffset);
+                    if (code >= 0) {
+                        short countOffset = PurchaseHistory.FILTER_STATION_COUNT;
+                        queryFilter[(short) (PurchaseHistory.FILTER_STATIONS + queryFilter[countOffset])] = (byte) code;
+                        queryFilter[countOffset]++;
+                    }
+                    queryFilter[PurchaseHistory.FILTER_FLAGS] |= PurchaseHistory.FILTER_STATION;
+                    continue;
+                case QUERY_TIME_TAG:
+                    flag = PurchaseHistory.FILTER_TIME;
+                    if (length > 0 && length <= PurchaseHistory.BUY_TIME_LENGTH) {
+                        valid = PurchaseHistory.packTime(buffer, valueOffset, length, (byte) 0, queryFilter, PurchaseHistory.FILTER_TIME_LOW)
+                                && PurchaseHistory.packTime(buffer, valueOffset, length, (byte) 9, queryFilter, PurchaseHistory.FILTER_TIME_HIGH);
+                    } else if (length == (short) (PurchaseHistory.BUY_TIME_LENGTH * 2)) {
+                        valid = PurchaseHistory.packTime(buffer, valueOffset, PurchaseHistory.BUY_TIME_LENGTH, (byte) 0, queryFilter, PurchaseHistory.FILTER_TIME_LOW)
+                                && PurchaseHistory.packTime(buffer, (short) (valueOffset + PurchaseHistory.BUY_TIME_LENGTH), PurchaseHistory.BUY_TIME_LENGTH, (byte) 0, queryFilter, PurchaseHistory.FILTER_TIME_HIGH);
+                    } else {
+                        ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+                    }
+                    break;
+                case QUERY_AMOUNT_TAG:
+                case QUERY_PRICE_TAG:
+                    flag = tag == QUERY_AMOUNT_TAG ? PurchaseHistory.FILTER_AMOUNT : PurchaseHistory.FILTER_PRICE;
+                    if (length != (short) (2 * Arithmetic.INT_LENGTH)) {
+                        ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+                    }
+                    Util.arrayCopyNonAtomic(buffer, valueOffset, queryFilter,
+                            tag == QUERY_AMOUNT_TAG ? PurchaseHistory.FILTER_AMOUNT_LOW : PurchaseHistory.FILTER_PRICE_LOW, length);
+                    break;
+                case QUERY_LIMIT_TAG:
+                    if (length != 1 || buffer[valueOffset] == 0) {
+                        ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+                    }
+                    Util.setShort(queryFilter, PurchaseHistory.FILTER_LIMIT, (short) (buffer[valueOffset] & 0xFF));
+                    break;
+                case QUERY_ORDER_TAG:
+                    if (length != 1 || buffer[valueOffset] < PurchaseHistory.ORDER_OLDEST
+                            || buffer[valueOffset] > PurchaseHistory.ORDER_TIME_REVERSE) {
+                        ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+                    }
+                    queryFilter[PurchaseHistory.FILTER_ORDER] = buffer[valueOffset];
+                    break;
+                default:
+                    ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+            }
 
-        // create historiesResult to save search result
-        Util.arrayFillNonAtomic(scratchSpace, (short) 0, (short) scratchSpace.length, (byte) 0);
-        purchaseHistoriesTag.toBytes(scratchSpace, (short) 0);
-        ConstructedBERTLV historiesResult = (ConstructedBERTLV) BERTLV.getInstance(scratchSpace, (short) 0, (short) 2);
-        
-        ConstructedBERTLV tempPurchaseInfo = (ConstructedBERTLV) purchaseHistories.find(purchaseInfoTag);
-        
-        while (tempPurchaseInfo != null) {
-            PrimitiveBERTLV buyTimeTLV = (PrimitiveBERTLV) tempPurchaseInfo.find(stationIDTag);
-            buyTimeTLV.getValue(scratchSpace, (short) 0);
-            if (Util.arrayCompare(buffer, offset, scratchSpace, (short) 0, (short) 5) == 0) {
-                historiesResult.append(tempPurchaseInfo);
+            if (!valid) {
+                ISOException.throwIt(INVAILD_NUMBER_FORMAT);
             }
-            
-            tempPurchaseInfo = (ConstructedBERTLV) purchaseHistories.findNext(purchaseInfoTag, tempPurchaseInfo, (short) 1);
-            
+            queryFilter[PurchaseHistory.FILTER_FLAGS] |= flag;
         }
-        
-        return historiesResult;
     }
-    
+
     /**
      * change the PIN
      * @param apdu 
@@ -703,7 +2313,7 @@ public class SelfServiceGasStation extends Applet implements ExtendedLength {
         byte[] buffer = apdu.getBuffer();
         
         // retrieve the new PIN
-        short byteRead = apdu.setIncomingAndReceive();
+        short byteRead = receive(apdu);
         
         // check the present PIN is validated
         if (!pin.isValidated()) {
@@ -717,11 +2327,13 @@ public class SelfServiceGasStation extends Applet implements ExtendedLength {
         
         // if no error, update the PIN
         pin.update(buffer, (short) ISO7816.OFFSET_CDATA, (byte) byteRead);
+        nvmWrites[0] += byteRead;
         
     }
     
     /**
-     * get last purchase history
+     * get last purchase history, or the last P1 purchase histories from the
+     * most recent one
      * @param apdu 
      */
     private void getLastPurchaseHistory(APDU apdu) {
@@ -733,38 +2345,20 @@ public class SelfServiceGasStation extends Applet implements ExtendedLength {
         }
         
         // if purchaseHistories is empty, throw SW_PURCHASE_INFO_NOT_FOUND
-        if (purchaseHistories.getLength() == 0) {
+        if (purchaseHistory.size() == 0) {
             ISOException.throwIt(SW_PURCHASE_INFO_NOT_FOUND);
             return;
         }
         
-        // find recent history
-        
-        // create historiesResult to save search result
-        Util.arrayFillNonAtomic(scratchSpace, (short) 0, (short) scratchSpace.length, (byte) 0);
-        purchaseHistoriesTag.toBytes(scratchSpace, (short) 0);
-        ConstructedBERTLV historiesResult = (ConstructedBERTLV) BERTLV.getInstance(scratchSpace, (short) 0, (short) 2);
-        
-        ConstructedBERTLV tempPurchaseInfo = (ConstructedBERTLV) purchaseHistories.find(purchaseInfoTag);
-        ConstructedBERTLV lastPurchaseInfo = tempPurchaseInfo;
-        while (tempPurchaseInfo != null) {
-            lastPurchaseInfo = tempPurchaseInfo;
-            tempPurchaseInfo = (ConstructedBERTLV) purchaseHistories.findNext(purchaseInfoTag, tempPurchaseInfo, (short) 1);
-            
+        // number of histories requested, 0 means the last one only
+        short number = (short) (buffer[ISO7816.OFFSET_P1] & 0xFF);
+        if (number == 0) {
+            number = 1;
         }
-        historiesResult.append(lastPurchaseInfo);
         
-        if (historiesResult.getLength() == 0) {
-            ISOException.throwIt(SW_PURCHASE_INFO_NOT_FOUND);
-        } else {
-            // write purchase histories to exchangeData array
-            short numBytes = historiesResult.toBytes(exchangeData, (short) 0);
-
-            // send data to the host application
-            apdu.setOutgoing();
-            apdu.setOutgoingLength(numBytes);
-            apdu.sendBytesLong(exchangeData, (short) 0, numBytes);
-        }
+        // send data to the host application, the records are encoded straight
+        // into the APDU buffer from the most recent one
+        sendHistories(apdu, purchaseHistory.openLast(outputCursor, number), (short) 0);
         
     }
     
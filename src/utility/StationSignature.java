@@ -0,0 +1,216 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package utility;
+
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.Util;
+import javacard.security.AESKey;
+import javacard.security.CryptoException;
+import javacard.security.ECPublicKey;
+import javacard.security.KeyBuilder;
+import javacard.security.Signature;
+
+/**
+ * Verifier of the station signature of the update messages. The key and the
+ * Signature instance are created once at install time and reused by every
+ * update, the signature is verified in place on the message buffer.
+ *
+ * The signature covers the bytes of the message value before the signature
+ * TLV, which is the last one of the message.
+ */
+class StationSignature {
+
+    /**
+     * Algorithm: the signature is the 8 bytes dummy signature (no key)
+     */
+    final static byte ALG_DUMMY = (byte) 0x00;
+
+    /**
+     * Algorithm: AES-CMAC with a 128 bit key, the signature is the 16 bytes
+     * MAC
+     */
+    final static byte ALG_AES_CMAC = (byte) 0x01;
+
+    /**
+     * Algorithm: ECDSA with SHA-256 on the P-256 curve, the key is the public
+     * point of the station (uncompressed, 65 bytes), the signature is DER
+     * encoded
+     */
+    final static byte ALG_ECDSA_P256 = (byte) 0x02;
+
+    /**
+     * Length of the dummy signature
+     */
+    final static short DUMMY_LENGTH = 8;
+
+    /**
+     * Length of an AES-128 key and of an AES-CMAC
+     */
+    final static short AES_CMAC_LENGTH = 16;
+
+    /**
+     * Length of an uncompressed P-256 point
+     */
+    final static short EC_POINT_LENGTH = 65;
+
+    /**
+     * Minimum length of a DER encoded P-256 ECDSA signature
+     */
+    final static short MIN_ECDSA_LENGTH = 8;
+
+    /**
+     * Maximum length of a DER encoded P-256 ECDSA signature
+     */
+    final static short MAX_ECDSA_LENGTH = 72;
+
+    /**
+     * dummy signature
+     */
+    private static final byte[] dummySignature = {(byte) 0x88, (byte) 0x88, (byte) 0x88, (byte) 0x88, (byte) 0x88, (byte) 0x88, (byte) 0x88, (byte) 0x88};
+
+    /**
+     * Prime of the field of the P-256 curve
+     */
+    private static final byte[] P256_FIELD = {
+        (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x01,
+        (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00,
+        (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+        (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF};
+
+    /**
+     * Coefficient a of the P-256 curve
+     */
+    private static final byte[] P256_A = {
+        (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x01,
+        (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00,
+        (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+        (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFC};
+
+    /**
+     * Coefficient b of the P-256 curve
+     */
+    private static final byte[] P256_B = {
+        (byte) 0x5A, (byte) 0xC6, (byte) 0x35, (byte) 0xD8, (byte) 0xAA, (byte) 0x3A, (byte) 0x93, (byte) 0xE7,
+        (byte) 0xB3, (byte) 0xEB, (byte) 0xBD, (byte) 0x55, (byte) 0x76, (byte) 0x98, (byte) 0x86, (byte) 0xBC,
+        (byte) 0x65, (byte) 0x1D, (byte) 0x06, (byte) 0xB0, (byte) 0xCC, (byte) 0x53, (byte) 0xB0, (byte) 0xF6,
+        (byte) 0x3B, (byte) 0xCE, (byte) 0x3C, (byte) 0x3E, (byte) 0x27, (byte) 0xD2, (byte) 0x60, (byte) 0x4B};
+
+    /**
+     * Base point of the P-256 curve (uncompressed)
+     */
+    private static final byte[] P256_G = {
+        (byte) 0x04, (byte) 0x6B, (byte) 0x17, (byte) 0xD1, (byte) 0xF2, (byte) 0xE1, (byte) 0x2C, (byte) 0x42,
+        (byte) 0x47, (byte) 0xF8, (byte) 0xBC, (byte) 0xE6, (byte) 0xE5, (byte) 0x63, (byte) 0xA4, (byte) 0x40,
+        (byte) 0xF2, (byte) 0x77, (byte) 0x03, (byte) 0x7D, (byte) 0x81, (byte) 0x2D, (byte) 0xEB, (byte) 0x33,
+        (byte) 0xA0, (byte) 0xF4, (byte) 0xA1, (byte) 0x39, (byte) 0x45, (byte) 0xD8, (byte) 0x98, (byte) 0xC2,
+        (byte) 0x96, (byte) 0x4F, (byte) 0xE3, (byte) 0x42, (byte) 0xE2, (byte) 0xFE, (byte) 0x1A, (byte) 0x7F,
+        (byte) 0x9B, (byte) 0x8E, (byte) 0xE7, (byte) 0xEB, (byte) 0x4A, (byte) 0x7C, (byte) 0x0F, (byte) 0x9E,
+        (byte) 0x16, (byte) 0x2B, (byte) 0xCE, (byte) 0x33, (byte) 0x57, (byte) 0x6B, (byte) 0x31, (byte) 0x5E,
+        (byte) 0xCE, (byte) 0xCB, (byte) 0xB6, (byte) 0x40, (byte) 0x68, (byte) 0x37, (byte) 0xBF, (byte) 0x51,
+        (byte) 0xF5};
+
+    /**
+     * Order of the base point of the P-256 curve
+     */
+    private static final byte[] P256_R = {
+        (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00,
+        (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+        (byte) 0xBC, (byte) 0xE6, (byte) 0xFA, (byte) 0xAD, (byte) 0xA7, (byte) 0x17, (byte) 0x9E, (byte) 0x84,
+        (byte) 0xF3, (byte) 0xB9, (byte) 0xCA, (byte) 0xC2, (byte) 0xFC, (byte) 0x63, (byte) 0x25, (byte) 0x51};
+
+    /**
+     * Algorithm of the signature
+     */
+    private byte algorithm;
+
+    /**
+     * Signature instance initialized with the station key in MODE_VERIFY,
+     * null for ALG_DUMMY
+     */
+    private Signature signature;
+
+    /**
+     * Creates the verifier
+     *
+     * @param algorithm: ALG_DUMMY, ALG_AES_CMAC or ALG_ECDSA_P256
+     * @param buffer: buffer containing the key
+     * @param keyOffset: offset of the key
+     * @param keyLength: length of the key, 16 for AES-CMAC, 65 for ECDSA
+     */
+    StationSignature(byte algorithm, byte[] buffer, short keyOffset, short keyLength) {
+        this.algorithm = algorithm;
+        
+        switch (algorithm) {
+            case ALG_DUMMY:
+                break;
+            case ALG_AES_CMAC:
+                if (keyLength != AES_CMAC_LENGTH) {
+                    ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+                }
+                AESKey aesKey = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_128, false);
+                aesKey.setKey(buffer, keyOffset);
+                signature = Signature.getInstance(Signature.ALG_AES_CMAC_128, false);
+                signature.init(aesKey, Signature.MODE_VERIFY);
+                break;
+            case ALG_ECDSA_P256:
+                if (keyLength != EC_POINT_LENGTH) {
+                    ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+                }
+                ECPublicKey ecKey = (ECPublicKey) KeyBuilder.buildKey(KeyBuilder.TYPE_EC_FP_PUBLIC, KeyBuilder.LENGTH_EC_FP_256, false);
+                ecKey.setFieldFP(P256_FIELD, (short) 0, (short) P256_FIELD.length);
+                ecKey.setA(P256_A, (short) 0, (short) P256_A.length);
+                ecKey.setB(P256_B, (short) 0, (short) P256_B.length);
+                ecKey.setG(P256_G, (short) 0, (short) P256_G.length);
+                ecKey.setR(P256_R, (short) 0, (short) P256_R.length);
+                ecKey.setK((short) 1);
+                ecKey.setW(buffer, keyOffset, keyLength);
+                signature = Signature.getInstance(Signature.ALG_ECDSA_SHA_256, false);
+                signature.init(ecKey, Signature.MODE_VERIFY);
+                break;
+            default:
+                ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+    }
+
+    /**
+     * @return true if a signature of this length can be valid
+     */
+    boolean isValidLength(short length) {
+        switch (algorithm) {
+            case ALG_AES_CMAC:
+                return length == AES_CMAC_LENGTH;
+            case ALG_ECDSA_P256:
+                return length >= MIN_ECDSA_LENGTH && length <= MAX_ECDSA_LENGTH;
+            default:
+                return length == DUMMY_LENGTH;
+        }
+    }
+
+    /**
+     * verify a signature, in place
+     *
+     * @param buffer: buffer containing the signed data and the signature
+     * @param dataOffset: offset of the signed data
+     * @param dataLength: length of the signed data
+     * @param signatureOffset: offset of the signature
+     * @param signatureLength: length of the signature
+     * @return true if the signature is valid
+     */
+    boolean verify(byte[] buffer, short dataOffset, short dataLength, short signatureOffset, short signatureLength) {
+        if (signature == null) {
+            return signatureLength == DUMMY_LENGTH
+                    && Util.arrayCompare(buffer, signatureOffset, dummySignature, (short) 0, DUMMY_LENGTH) == 0;
+        }
+        
+        try {
+            return signature.verify(buffer, dataOffset, dataLength, buffer, signatureOffset, signatureLength);
+        } catch (CryptoException e) {
+            // a malformed signature is an invalid one
+            return false;
+        }
+    }
+}